@@ -0,0 +1,76 @@
+package com.toao.servicecentre.benchmarks;
+
+import com.toao.servicecentre.ServiceCentre;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long it takes a ServiceCentre to report a failed startup, with one service in the
+ * top level failing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FailedStartupBenchmark {
+    @Param({"100", "1000", "10000"})
+    int services;
+
+    @Param({"1", "10"})
+    int levels;
+
+    @Param({"false", "true"})
+    boolean failFast;
+
+    private ExecutorService startupExecutor;
+    private Topology topology;
+    private ServiceCentre serviceCentre;
+
+    @Setup(Level.Trial)
+    public void createExecutor() {
+        startupExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdownExecutor() {
+        startupExecutor.shutdownNow();
+    }
+
+    @Setup(Level.Invocation)
+    public void createServiceCentre() {
+        topology = Topology.create(services, levels, 0, StartupCost.FIXED, 1, startupExecutor);
+
+        serviceCentre = topology.createInjector().getInstance(ServiceCentre.class);
+        serviceCentre.setFailFast(failFast);
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopServices() {
+        // Without fail-fast the services that did start are left running
+        for (SyntheticService service : topology.services()) {
+            service.stopAsync();
+        }
+        for (SyntheticService service : topology.services()) {
+            try {
+                service.awaitTerminated();
+            } catch (IllegalStateException e) {
+                // The failed service
+            }
+        }
+    }
+
+    @Benchmark
+    public ServiceCentre failedStart() {
+        try {
+            serviceCentre.startAsync().awaitRunning();
+        } catch (IllegalStateException e) {
+            // Expected, the failure is what's being measured
+        }
+        return serviceCentre;
+    }
+}
@@ -0,0 +1,69 @@
+package com.toao.servicecentre.benchmarks;
+
+import com.toao.servicecentre.ServiceCentre;
+import com.toao.servicecentre.ServiceCentre.StartupOrder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Start and stop latency of a ServiceCentre managing synthetic services.
+ *
+ * With {@link StartupCost#NONE} the services start instantly, so what's left is the cost
+ * of the ServiceCentre itself. Run with {@code -prof gc} for allocation rates. The services are
+ * bound by class and injected with each other, so their provisioning is measured as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ServiceCentreBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    int services;
+
+    @Param({"1", "4", "10"})
+    int levels;
+
+    // The services each one injects from the levels below, which only DEPENDENCIES can use
+    @Param({"0", "1", "4"})
+    int fanOut;
+
+    @Param({"NONE", "FIXED", "EXPONENTIAL"})
+    StartupCost startupCost;
+
+    @Param({"LEVELS", "DEPENDENCIES"})
+    StartupOrder startupOrder;
+
+    private ExecutorService startupExecutor;
+    private ServiceCentre serviceCentre;
+
+    @Setup(Level.Trial)
+    public void createExecutor() {
+        startupExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdownExecutor() {
+        startupExecutor.shutdownNow();
+    }
+
+    // Guava services can only be started once, so every invocation needs a fresh set
+    @Setup(Level.Invocation)
+    public void createServiceCentre() {
+        Topology topology = Topology.create(services, levels, fanOut, startupCost, 0, startupExecutor);
+
+        serviceCentre = topology.createInjector().getInstance(ServiceCentre.class);
+        serviceCentre.setStartupOrder(startupOrder);
+    }
+
+    @Benchmark
+    public ServiceCentre startAndStop() {
+        serviceCentre.startAsync().awaitRunning();
+        serviceCentre.stopAsync().awaitTerminated();
+        return serviceCentre;
+    }
+}
@@ -0,0 +1,41 @@
+package com.toao.servicecentre.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long each synthetic service takes to start.
+ */
+public enum StartupCost {
+    /**
+     * Running as soon as it's started, on the starting thread. Measures pure orchestration.
+     */
+    NONE {
+        @Override
+        long nextNanos(Random random) {
+            return 0;
+        }
+    },
+    /**
+     * The same for every service.
+     */
+    FIXED {
+        @Override
+        long nextNanos(Random random) {
+            return MEAN_NANOS;
+        }
+    },
+    /**
+     * Exponentially distributed with the same mean, so a few services dominate.
+     */
+    EXPONENTIAL {
+        @Override
+        long nextNanos(Random random) {
+            return (long) (-Math.log(1 - random.nextDouble()) * MEAN_NANOS);
+        }
+    };
+
+    static final long MEAN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    abstract long nextNanos(Random random);
+}
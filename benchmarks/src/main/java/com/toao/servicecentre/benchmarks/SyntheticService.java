@@ -0,0 +1,56 @@
+package com.toao.servicecentre.benchmarks;
+
+import com.google.common.util.concurrent.AbstractService;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A service that does nothing but take a set amount of time to start, or fail to.
+ *
+ * Levels and dependencies come from the class, so the topology generates a subclass for each
+ * service, which injects the services it depends on and passes its index up.
+ */
+public abstract class SyntheticService extends AbstractService {
+    private final long startupNanos;
+    private final boolean failOnStart;
+    private final Executor executor;
+
+    protected SyntheticService(Topology topology, int index) {
+        this.startupNanos = topology.startupNanos(index);
+        this.failOnStart = topology.failsOnStart(index);
+        this.executor = topology.executor();
+
+        topology.provisioned(this);
+    }
+
+    @Override
+    protected void doStart() {
+        if (startupNanos == 0 && !failOnStart) {
+            notifyStarted();
+            return;
+        }
+
+        executor.execute(() -> {
+            spin(startupNanos);
+
+            if (failOnStart) {
+                notifyFailed(new IllegalStateException("Synthetic startup failure"));
+            } else {
+                notifyStarted();
+            }
+        });
+    }
+
+    @Override
+    protected void doStop() {
+        notifyStopped();
+    }
+
+    // Busy wait, sleeping has far too coarse a granularity for microsecond startup costs
+    private static void spin(long nanos) {
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.toao.servicecentre.benchmarks;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * A set of synthetic services spread evenly over a number of levels, so each level barrier
+ * fans in from and out to services / levels services.
+ *
+ * Every service above level 0 injects up to fanOut random services from the levels below it.
+ * The ServiceCentre finds dependencies by class, so every service gets a class of its own,
+ * generated and compiled the first time a structure is asked for and shared by every
+ * invocation with the same count, levels and fan-out. The services are bound by class, so the
+ * Injector provisions them through their real dependencies.
+ */
+public final class Topology {
+    private static final String PACKAGE = "com.toao.servicecentre.benchmarks.generated";
+    // Compiled classes by count, levels and fan-out
+    private static final Map<String, List<Class<? extends SyntheticService>>> COMPILED = new HashMap<>();
+
+    private final long[] startupNanos;
+    private final int failing;
+    private final Executor executor;
+    private final List<Class<? extends SyntheticService>> classes;
+    private final Queue<SyntheticService> services = new ConcurrentLinkedQueue<>();
+
+    private Topology(long[] startupNanos, int failing, Executor executor, List<Class<? extends SyntheticService>> classes) {
+        this.startupNanos = startupNanos;
+        this.failing = failing;
+        this.executor = executor;
+        this.classes = classes;
+    }
+
+    /**
+     * @param fanOut  the number of services each service above level 0 injects from the levels
+     *                below, or all of them if there are fewer
+     * @param failing the number of services in the top level that fail to start
+     */
+    static Topology create(int count, int levels, int fanOut, StartupCost cost, int failing, Executor executor) {
+        if (levels < 1) {
+            throw new IllegalArgumentException("At least one level is needed, not " + levels);
+        }
+        if (fanOut < 0) {
+            throw new IllegalArgumentException("The fan-out can't be negative, it was " + fanOut);
+        }
+
+        // Seeded so every invocation sees the same startup costs
+        Random random = new Random(count * 31L + levels);
+        long[] startupNanos = new long[count];
+
+        for (int i = 0; i < count; i++) {
+            startupNanos[i] = cost.nextNanos(random);
+        }
+
+        return new Topology(startupNanos, failing, executor, compiled(count, levels, fanOut));
+    }
+
+    /**
+     * The services the Injector has constructed so far.
+     */
+    List<SyntheticService> services() {
+        return new ArrayList<>(services);
+    }
+
+    Injector createInjector() {
+        return Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                bind(Topology.class).toInstance(Topology.this);
+
+                for (Class<? extends SyntheticService> service : classes) {
+                    activeServices.addBinding().to(service);
+                }
+            }
+        });
+    }
+
+    void provisioned(SyntheticService service) {
+        services.add(service);
+    }
+
+    long startupNanos(int index) {
+        return startupNanos[index];
+    }
+
+    boolean failsOnStart(int index) {
+        return index >= startupNanos.length - failing;
+    }
+
+    Executor executor() {
+        return executor;
+    }
+
+    private static List<Class<? extends SyntheticService>> compiled(int count, int levels, int fanOut) {
+        String structure = count + "/" + levels + "/" + fanOut;
+
+        synchronized (COMPILED) {
+            List<Class<? extends SyntheticService>> compiled = COMPILED.get(structure);
+
+            if (compiled == null) {
+                compiled = compile(count, levels, fanOut);
+                COMPILED.put(structure, compiled);
+            }
+
+            return compiled;
+        }
+    }
+
+    private static List<Class<? extends SyntheticService>> compile(int count, int levels, int fanOut) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("Topologies are compiled when they are created, so the benchmarks need a JDK");
+        }
+
+        // Seeded so every trial injects the same dependencies
+        Random random = new Random(count * 31L + levels * 17L + fanOut);
+        List<JavaFileObject> sources = new ArrayList<>(count);
+        int firstInLevel = 0;
+
+        for (int i = 0; i < count; i++) {
+            int level = (int) ((long) i * levels / count);
+            if (i > 0 && level != (int) ((long) (i - 1) * levels / count)) {
+                firstInLevel = i;
+            }
+
+            // The services are ordered by level, so the ones below are the ones before the level
+            Set<Integer> dependencies = new LinkedHashSet<>();
+            int wanted = Math.min(fanOut, firstInLevel);
+            while (dependencies.size() < wanted) {
+                dependencies.add(random.nextInt(firstInLevel));
+            }
+
+            sources.add(source(i, level, dependencies));
+        }
+
+        Map<String, ByteArrayOutputStream> bytecode = new HashMap<>();
+        JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(
+            compiler.getStandardFileManager(null, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+                                                       FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("bytes:///" + className.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream output = new ByteArrayOutputStream();
+                        bytecode.put(className, output);
+                        return output;
+                    }
+                };
+            }
+        };
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        List<String> options = Arrays.asList("-proc:none", "-classpath", System.getProperty("java.class.path"));
+
+        if (!compiler.getTask(null, fileManager, diagnostics, options, null, sources).call()) {
+            throw new IllegalStateException("Unable to compile the topology: " + diagnostics.getDiagnostics());
+        }
+
+        ClassLoader loader = new ClassLoader(Topology.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                ByteArrayOutputStream output = bytecode.get(name);
+                if (output == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                byte[] bytes = output.toByteArray();
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        };
+
+        List<Class<? extends SyntheticService>> classes = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                classes.add(loader.loadClass(PACKAGE + ".Service" + i).asSubclass(SyntheticService.class));
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Compiled topology is missing a class", e);
+        }
+        return classes;
+    }
+
+    private static JavaFileObject source(int index, int level, Set<Integer> dependencies) {
+        StringBuilder parameters = new StringBuilder(Topology.class.getName() + " topology");
+        for (int dependency : dependencies) {
+            parameters.append(", Service").append(dependency).append(" dependency").append(dependency);
+        }
+
+        String name = "Service" + index;
+        String source = "package " + PACKAGE + ";\n"
+            + "@javax.inject.Singleton\n"
+            + "@com.toao.servicecentre.annotations.ManagedService(level = " + level + ")\n"
+            + "public class " + name + " extends " + SyntheticService.class.getName() + " {\n"
+            + "    @javax.inject.Inject\n"
+            + "    public " + name + "(" + parameters + ") {\n"
+            + "        super(topology, " + index + ");\n"
+            + "    }\n"
+            + "}\n";
+
+        return new SimpleJavaFileObject(URI.create("string:///" + PACKAGE.replace('.', '/') + "/" + name + ".java"),
+            JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+    }
+}
@@ -0,0 +1,695 @@
+package com.toao.servicecentre.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Checks the managed services being compiled and writes a StartupPlan for them.
+ *
+ * Every concrete class in the compilation that is a Guava Service and has a ManagedService
+ * annotation on itself, a superclass or an interface ends up in the plan, along with the
+ * annotation's values and the types it has injected, with their type arguments and qualifiers.
+ * Annotated classes that aren't services and
+ * cycles between services at the same level are compile errors. Dependencies on higher level
+ * services are warned about, ServiceCentre ignores them when working out the startup order.
+ *
+ * The plan is written to {@code <common package>.GeneratedStartupPlan} unless the
+ * {@code servicecentre.plan} option names another class, and is registered in
+ * META-INF/services so ServiceCentre picks it up. The planned classes are also listed in
+ * META-INF/servicecentre/managed-services, which ManagedServiceModule binds them from.
+ *
+ * An incremental compile only has the changed classes, so the services listed by the last
+ * compile that are still on the classpath are planned again from their class files, and the
+ * existing registrations are kept, rather than the plan being cut down to this compile.
+ */
+@SupportedAnnotationTypes(ManagedServiceProcessor.MANAGED_SERVICE)
+@SupportedOptions(ManagedServiceProcessor.PLAN_OPTION)
+public class ManagedServiceProcessor extends AbstractProcessor {
+    static final String MANAGED_SERVICE = "com.toao.servicecentre.annotations.ManagedService";
+    static final String PLAN_OPTION = "servicecentre.plan";
+
+    private static final String SERVICE = "com.google.common.util.concurrent.Service";
+    private static final String STARTUP_PLAN = "com.toao.servicecentre.StartupPlan";
+    private static final String DEFAULT_PLAN_NAME = "GeneratedStartupPlan";
+    private static final String SERVICE_INDEX = "META-INF/servicecentre/managed-services";
+
+    private final Map<String, PlannedService> planned = new LinkedHashMap<>();
+    private boolean planWritten;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() == ElementKind.CLASS && !isService(element.asType())) {
+                    error(element, "%s is annotated with @ManagedService but does not implement %s", element, SERVICE);
+                }
+            }
+        }
+
+        for (Element root : roundEnv.getRootElements()) {
+            planTypes(root);
+        }
+
+        // Written as soon as there's something to write, sources created in the last round aren't compiled
+        if (!planWritten && !planned.isEmpty()) {
+            planPreviousServices();
+            checkForCycles();
+            writePlan();
+            planWritten = true;
+        }
+
+        return false;
+    }
+
+    private void planTypes(Element element) {
+        if (element.getKind() == ElementKind.CLASS && !element.getModifiers().contains(Modifier.ABSTRACT)) {
+            TypeElement type = (TypeElement) element;
+
+            if (planWritten) {
+                if (findAnnotated(type) != null && isService(type.asType())) {
+                    warning(type, "%s was generated after the startup plan was written, ServiceCentre will inspect it at runtime", type);
+                }
+            } else {
+                plan(type);
+            }
+        }
+
+        for (Element enclosed : element.getEnclosedElements()) {
+            if (enclosed.getKind().isClass() || enclosed.getKind().isInterface()) {
+                planTypes(enclosed);
+            }
+        }
+    }
+
+    private void plan(TypeElement type) {
+        TypeElement annotated = findAnnotated(type);
+
+        if (annotated != null && isService(type.asType())) {
+            planned.put(binaryName(type), new PlannedService(type, binaryName(annotated), managedService(annotated),
+                isSingleton(type), supertypes(type), dependencies(type)));
+        }
+    }
+
+    /**
+     * Plans the services from the last compile's index that weren't in this one. Those that
+     * have been deleted, or are no longer managed services, are dropped.
+     */
+    private void planPreviousServices() {
+        for (String name : readResource(SERVICE_INDEX)) {
+            if (planned.containsKey(name)) {
+                continue;
+            }
+
+            // Binary names of nested classes have a $ where the canonical name has a dot
+            TypeElement type = processingEnv.getElementUtils().getTypeElement(name.replace('$', '.'));
+
+            if (type != null && type.getKind() == ElementKind.CLASS && !type.getModifiers().contains(Modifier.ABSTRACT)) {
+                plan(type);
+            }
+        }
+    }
+
+    /**
+     * The lines of a resource written by an earlier compile, empty if there isn't one.
+     */
+    private List<String> readResource(String name) {
+        List<String> lines = new ArrayList<>();
+
+        try {
+            FileObject resource = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", name);
+
+            try (BufferedReader reader = new BufferedReader(resource.openReader(true))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (!line.trim().isEmpty()) {
+                        lines.add(line.trim());
+                    }
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // Nothing from an earlier compile, some Filers throw rather than return a missing file
+        }
+
+        return lines;
+    }
+
+    /**
+     * Finds the annotation the same way ServiceCentre does at runtime: the class and its
+     * superclasses first, nearest first, then their interfaces breadth first.
+     */
+    private TypeElement findAnnotated(TypeElement type) {
+        Deque<TypeElement> interfaces = new ArrayDeque<>();
+
+        for (TypeElement klass = type; klass != null; klass = superclass(klass)) {
+            if (managedService(klass) != null) {
+                return klass;
+            }
+            for (TypeMirror implemented : klass.getInterfaces()) {
+                interfaces.add(asElement(implemented));
+            }
+        }
+
+        Set<TypeElement> seen = new HashSet<>();
+        while (!interfaces.isEmpty()) {
+            TypeElement implemented = interfaces.poll();
+
+            if (seen.add(implemented)) {
+                if (managedService(implemented) != null) {
+                    return implemented;
+                }
+                for (TypeMirror extended : implemented.getInterfaces()) {
+                    interfaces.add(asElement(extended));
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private boolean isSingleton(TypeElement type) {
+        for (TypeElement klass = type; klass != null; klass = superclass(klass)) {
+            if (hasAnnotation(klass, "javax.inject.Singleton") || hasAnnotation(klass, "com.google.inject.Singleton")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The injected constructor parameters, fields and method parameters of the class and its
+     * superclasses, with their qualifiers. Providers are left out, they don't need the service
+     * to be running.
+     */
+    private Dependencies dependencies(TypeElement type) {
+        Dependencies dependencies = new Dependencies();
+
+        for (TypeElement klass = type; klass != null; klass = superclass(klass)) {
+            for (Element member : klass.getEnclosedElements()) {
+                if (!isInjected(member)) {
+                    continue;
+                }
+
+                if (member.getKind() == ElementKind.FIELD) {
+                    addDependency(dependencies, member);
+                } else if (member.getKind() == ElementKind.METHOD || (member.getKind() == ElementKind.CONSTRUCTOR && klass == type)) {
+                    for (VariableElement parameter : ((ExecutableElement) member).getParameters()) {
+                        addDependency(dependencies, parameter);
+                    }
+                }
+            }
+        }
+
+        return dependencies;
+    }
+
+    private void addDependency(Dependencies dependencies, Element injected) {
+        TypeMirror dependency = injected.asType();
+
+        if (dependency.getKind() != TypeKind.DECLARED) {
+            return;
+        }
+
+        String name = binaryName(asElement(dependency));
+
+        if (name.equals("com.google.inject.Provider") || name.equals("javax.inject.Provider")) {
+            return;
+        }
+
+        String planned = typeName(dependency);
+
+        if (planned == null) {
+            // A type variable, or a primitive array, can't be rebuilt from the plan
+            dependencies.planned = false;
+            planned = name;
+        }
+
+        dependencies.add(planned, qualifier(injected, dependencies));
+    }
+
+    /**
+     * The binary name of the type followed by its type arguments, the way ServiceCentre reads
+     * them back from the plan, or null for types that aren't written that way.
+     */
+    private String typeName(TypeMirror type) {
+        switch (type.getKind()) {
+            case DECLARED:
+                DeclaredType declared = (DeclaredType) type;
+                String name = binaryName(asElement(declared));
+
+                if (declared.getTypeArguments().isEmpty()) {
+                    return name;
+                }
+
+                // An inner class of a generic class has an owner with type arguments of its own
+                TypeMirror enclosing = declared.getEnclosingType();
+                if (enclosing.getKind() == TypeKind.DECLARED && !((DeclaredType) enclosing).getTypeArguments().isEmpty()) {
+                    return null;
+                }
+
+                StringBuilder builder = new StringBuilder(name).append('<');
+                for (TypeMirror argument : declared.getTypeArguments()) {
+                    String argumentName = typeName(argument);
+                    if (argumentName == null) {
+                        return null;
+                    }
+                    if (builder.charAt(builder.length() - 1) != '<') {
+                        builder.append(", ");
+                    }
+                    builder.append(argumentName);
+                }
+                return builder.append('>').toString();
+            case WILDCARD:
+                WildcardType wildcard = (WildcardType) type;
+
+                if (wildcard.getExtendsBound() != null) {
+                    String bound = typeName(wildcard.getExtendsBound());
+                    return bound == null ? null : "? extends " + bound;
+                }
+                if (wildcard.getSuperBound() != null) {
+                    String bound = typeName(wildcard.getSuperBound());
+                    return bound == null ? null : "? super " + bound;
+                }
+                return "?";
+            case ARRAY:
+                String component = typeName(((ArrayType) type).getComponentType());
+                return component == null ? null : component + "[]";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * The binding annotation on an injected field or parameter, null if there isn't one. A
+     * qualifier with values other than a name can't be rebuilt from the plan, so the service's
+     * dependencies are left for ServiceCentre to inspect at runtime.
+     */
+    private String qualifier(Element injected, Dependencies dependencies) {
+        for (AnnotationMirror annotation : injected.getAnnotationMirrors()) {
+            TypeElement annotationType = asElement(annotation.getAnnotationType());
+
+            if (!hasAnnotation(annotationType, "javax.inject.Qualifier")
+                && !hasAnnotation(annotationType, "com.google.inject.BindingAnnotation")) {
+                continue;
+            }
+
+            String name = binaryName(annotationType);
+
+            if (name.equals("javax.inject.Named") || name.equals("com.google.inject.name.Named")) {
+                for (AnnotationValue value : annotation.getElementValues().values()) {
+                    return name + "(" + value.getValue() + ")";
+                }
+            }
+
+            for (Element member : annotationType.getEnclosedElements()) {
+                if (member.getKind() == ElementKind.METHOD) {
+                    dependencies.planned = false;
+                }
+            }
+
+            return name;
+        }
+
+        return null;
+    }
+
+    private boolean isInjected(Element member) {
+        return hasAnnotation(member, "javax.inject.Inject") || hasAnnotation(member, "com.google.inject.Inject");
+    }
+
+    /**
+     * The names the service can be injected by: each supertype's binary name, and also with its
+     * type arguments where it has them, so a dependency on {@code Store<User>} only matches the
+     * services that are one.
+     */
+    private Set<String> supertypes(TypeElement type) {
+        Set<String> supertypes = new HashSet<>();
+        Deque<TypeMirror> pending = new ArrayDeque<>();
+        pending.add(type.asType());
+
+        while (!pending.isEmpty()) {
+            TypeMirror next = pending.poll();
+            boolean added = supertypes.add(binaryName(asElement(next)));
+
+            String name = typeName(next);
+            if (name != null) {
+                added |= supertypes.add(name);
+            }
+
+            if (added) {
+                for (TypeMirror supertype : processingEnv.getTypeUtils().directSupertypes(next)) {
+                    if (supertype.getKind() == TypeKind.DECLARED) {
+                        pending.add(supertype);
+                    }
+                }
+            }
+        }
+
+        return supertypes;
+    }
+
+    /**
+     * Reports the first cycle found among the dependencies ServiceCentre would keep, which are
+     * those on services at the same or a lower level. The services are indexed by their supertypes
+     * first, as with ServiceCentre's own dependency resolution, rather than checking every service
+     * for every dependency.
+     */
+    private void checkForCycles() {
+        Map<String, List<PlannedService>> bySupertype = new HashMap<>();
+
+        for (PlannedService service : planned.values()) {
+            for (String supertype : service.supertypes) {
+                bySupertype.computeIfAbsent(supertype, name -> new ArrayList<>()).add(service);
+            }
+        }
+
+        Map<PlannedService, List<PlannedService>> edges = new HashMap<>();
+
+        for (PlannedService service : planned.values()) {
+            List<PlannedService> kept = new ArrayList<>();
+
+            for (String dependency : service.dependencies.types) {
+                for (PlannedService candidate : bySupertype.getOrDefault(dependency, Collections.<PlannedService>emptyList())) {
+                    if (candidate == service) {
+                        continue;
+                    }
+
+                    if (candidate.level() > service.level()) {
+                        warning(service.type, "%s depends on %s at the higher level %d, the dependency is ignored when ordering startup",
+                            service.type, candidate.type, candidate.level());
+                    } else {
+                        kept.add(candidate);
+                    }
+                }
+            }
+
+            edges.put(service, kept);
+        }
+
+        Set<PlannedService> finished = new HashSet<>();
+
+        for (PlannedService service : planned.values()) {
+            List<PlannedService> cycle = findCycle(service, edges, new ArrayList<>(), finished);
+
+            if (cycle != null) {
+                StringBuilder path = new StringBuilder();
+                for (PlannedService member : cycle) {
+                    if (path.length() > 0) {
+                        path.append(" -> ");
+                    }
+                    path.append(member.type.getSimpleName());
+                }
+                error(cycle.get(0).type, "Dependency cycle between managed services: %s", path);
+                return;
+            }
+        }
+    }
+
+    private List<PlannedService> findCycle(PlannedService service, Map<PlannedService, List<PlannedService>> edges,
+                                           List<PlannedService> path, Set<PlannedService> finished) {
+        int index = path.indexOf(service);
+
+        if (index >= 0) {
+            List<PlannedService> cycle = new ArrayList<>(path.subList(index, path.size()));
+            cycle.add(service);
+            return cycle;
+        }
+
+        if (finished.contains(service)) {
+            return null;
+        }
+
+        path.add(service);
+        for (PlannedService dependency : edges.get(service)) {
+            List<PlannedService> cycle = findCycle(dependency, edges, path, finished);
+            if (cycle != null) {
+                return cycle;
+            }
+        }
+        path.remove(path.size() - 1);
+        finished.add(service);
+
+        return null;
+    }
+
+    private void writePlan() {
+        String planName = processingEnv.getOptions().get(PLAN_OPTION);
+        if (planName == null) {
+            String planPackage = commonPackage();
+            planName = planPackage.isEmpty() ? DEFAULT_PLAN_NAME : planPackage + "." + DEFAULT_PLAN_NAME;
+        }
+
+        int lastDot = planName.lastIndexOf('.');
+        String planPackage = lastDot < 0 ? "" : planName.substring(0, lastDot);
+        String simpleName = planName.substring(lastDot + 1);
+
+        Element[] originating = new Element[planned.size()];
+        int i = 0;
+        for (PlannedService service : planned.values()) {
+            originating[i++] = service.type;
+        }
+
+        // Other plans registered by earlier compiles are kept while their classes are still there
+        Set<String> registered = new LinkedHashSet<>();
+        for (String previous : readResource("META-INF/services/" + STARTUP_PLAN)) {
+            if (processingEnv.getElementUtils().getTypeElement(previous) != null) {
+                registered.add(previous);
+            }
+        }
+        registered.add(planName);
+
+        try {
+            JavaFileObject source = processingEnv.getFiler().createSourceFile(planName, originating);
+            try (Writer writer = source.openWriter()) {
+                writePlanSource(writer, planPackage, simpleName);
+            }
+
+            FileObject registration = processingEnv.getFiler()
+                .createResource(StandardLocation.CLASS_OUTPUT, "", "META-INF/services/" + STARTUP_PLAN, originating);
+            try (Writer writer = registration.openWriter()) {
+                for (String name : registered) {
+                    writer.write(name + "\n");
+                }
+            }
+
+            FileObject index = processingEnv.getFiler()
+                .createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_INDEX, originating);
+            try (Writer writer = index.openWriter()) {
+                for (String name : planned.keySet()) {
+                    writer.write(name + "\n");
+                }
+            }
+        } catch (IOException e) {
+            error(null, "Unable to write startup plan %s: %s", planName, e.getMessage());
+        }
+    }
+
+    private void writePlanSource(Writer writer, String planPackage, String simpleName) throws IOException {
+        if (!planPackage.isEmpty()) {
+            writer.write("package " + planPackage + ";\n\n");
+        }
+
+        writer.write("import " + STARTUP_PLAN + ";\n\n");
+        writer.write("import java.util.Arrays;\n");
+        writer.write("import java.util.Collections;\n");
+        writer.write("import java.util.HashMap;\n");
+        writer.write("import java.util.Map;\n\n");
+        writer.write("/**\n * Generated by " + getClass().getName() + ", do not edit.\n */\n");
+        writer.write("public final class " + simpleName + " implements StartupPlan {\n");
+        writer.write("    private static final Map<String, PlannedService> SERVICES = new HashMap<>();\n\n");
+        writer.write("    static {\n");
+
+        for (Map.Entry<String, PlannedService> entry : planned.entrySet()) {
+            PlannedService service = entry.getValue();
+
+            Dependencies dependencies = service.dependencies;
+
+            writer.write("        SERVICES.put(" + literal(entry.getKey()) + ", new PlannedService("
+                + literal(service.annotatedType) + ", " + service.singleton + ", "
+                + value(service.annotation, "level") + ", " + value(service.annotation, "lazy") + ", "
+                + value(service.annotation, "startupTimeoutMillis") + "L, "
+                + value(service.annotation, "shutdownTimeoutMillis") + "L, "
+                + listLiteral(resources(service.annotation)) + ", "
+                + (dependencies.planned ? listLiteral(dependencies.types) : "null") + ", "
+                + (dependencies.planned ? listLiteral(dependencies.qualifiers) : "null") + "));\n");
+        }
+
+        writer.write("    }\n\n");
+        writer.write("    @Override\n");
+        writer.write("    public Map<String, PlannedService> services() {\n");
+        writer.write("        return Collections.unmodifiableMap(SERVICES);\n");
+        writer.write("    }\n");
+        writer.write("}\n");
+    }
+
+    private String commonPackage() {
+        String common = null;
+
+        for (PlannedService service : planned.values()) {
+            String servicePackage = processingEnv.getElementUtils().getPackageOf(service.type).getQualifiedName().toString();
+
+            if (common == null) {
+                common = servicePackage;
+            } else {
+                while (!(servicePackage.equals(common) || servicePackage.startsWith(common + "."))) {
+                    int lastDot = common.lastIndexOf('.');
+                    common = lastDot < 0 ? "" : common.substring(0, lastDot);
+                }
+            }
+        }
+
+        return common;
+    }
+
+    private static String literal(String value) {
+        if (value == null) {
+            // Cast, so a lone null isn't taken for the whole varargs array
+            return "(String) null";
+        }
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String listLiteral(List<String> values) {
+        if (values.isEmpty()) {
+            return "Collections.<String>emptyList()";
+        }
+
+        StringBuilder builder = new StringBuilder("Arrays.asList(");
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(literal(values.get(i)));
+        }
+        return builder.append(")").toString();
+    }
+
+    /**
+     * The value of one of the annotation's members, or its default.
+     */
+    private Object value(AnnotationMirror annotation, String member) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value :
+            processingEnv.getElementUtils().getElementValuesWithDefaults(annotation).entrySet()) {
+            if (value.getKey().getSimpleName().contentEquals(member)) {
+                return value.getValue().getValue();
+            }
+        }
+        return null;
+    }
+
+    private List<String> resources(AnnotationMirror annotation) {
+        List<String> resources = new ArrayList<>();
+
+        for (Object resource : (List<?>) value(annotation, "resources")) {
+            resources.add((String) ((AnnotationValue) resource).getValue());
+        }
+
+        return resources;
+    }
+
+    private boolean isService(TypeMirror type) {
+        TypeElement service = processingEnv.getElementUtils().getTypeElement(SERVICE);
+
+        return service != null && processingEnv.getTypeUtils().isAssignable(type,
+            processingEnv.getTypeUtils().erasure(service.asType()));
+    }
+
+    private AnnotationMirror managedService(Element element) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            if (asElement(annotation.getAnnotationType()).getQualifiedName().contentEquals(MANAGED_SERVICE)) {
+                return annotation;
+            }
+        }
+        return null;
+    }
+
+    private boolean hasAnnotation(Element element, String annotationName) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            if (asElement(annotation.getAnnotationType()).getQualifiedName().contentEquals(annotationName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private TypeElement superclass(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        return superclass.getKind() == TypeKind.DECLARED ? asElement(superclass) : null;
+    }
+
+    private static TypeElement asElement(TypeMirror type) {
+        return (TypeElement) ((DeclaredType) type).asElement();
+    }
+
+    private String binaryName(TypeElement type) {
+        return processingEnv.getElementUtils().getBinaryName(type).toString();
+    }
+
+    private void error(Element element, String format, Object... args) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, String.format(format, args), element);
+    }
+
+    private void warning(Element element, String format, Object... args) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, String.format(format, args), element);
+    }
+
+    private final class PlannedService {
+        final TypeElement type;
+        final String annotatedType;
+        final AnnotationMirror annotation;
+        final boolean singleton;
+        final Set<String> supertypes;
+        final Dependencies dependencies;
+
+        PlannedService(TypeElement type, String annotatedType, AnnotationMirror annotation, boolean singleton,
+                       Set<String> supertypes, Dependencies dependencies) {
+            this.type = type;
+            this.annotatedType = annotatedType;
+            this.annotation = annotation;
+            this.singleton = singleton;
+            this.supertypes = supertypes;
+            this.dependencies = dependencies;
+        }
+
+        int level() {
+            return (Integer) value(annotation, "level");
+        }
+    }
+
+    /**
+     * The injected types and their qualifiers, in the order they were found, without repeats.
+     */
+    private static final class Dependencies {
+        final List<String> types = new ArrayList<>();
+        final List<String> qualifiers = new ArrayList<>();
+        final Set<List<String>> seen = new HashSet<>();
+        boolean planned = true;
+
+        void add(String type, String qualifier) {
+            if (seen.add(Arrays.asList(type, qualifier))) {
+                types.add(type);
+                qualifiers.add(qualifier);
+            }
+        }
+    }
+}
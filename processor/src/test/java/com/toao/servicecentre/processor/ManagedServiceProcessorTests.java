@@ -0,0 +1,373 @@
+package com.toao.servicecentre.processor;
+
+import com.toao.servicecentre.StartupPlan;
+import com.toao.servicecentre.StartupPlan.PlannedService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.*;
+import java.io.File;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class ManagedServiceProcessorTests {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    File output;
+
+    @Before
+    public void createOutput() throws Exception {
+        output = temporaryFolder.newFolder("processor");
+    }
+
+    @Test
+    public void testGeneratesPlan() throws Exception {
+        DiagnosticCollector<JavaFileObject> diagnostics = compile(
+            source("example.Storage",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService(level = 1)",
+                "public interface Storage extends com.google.common.util.concurrent.Service {}"),
+            source("example.DiskStorage",
+                "package example;",
+                "@javax.inject.Singleton",
+                "public class DiskStorage extends com.google.common.util.concurrent.AbstractIdleService implements Storage {",
+                "    protected void startUp() {}",
+                "    protected void shutDown() {}",
+                "}"),
+            source("example.Api",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService(level = 2)",
+                "public class Api extends com.google.common.util.concurrent.AbstractIdleService {",
+                "    @javax.inject.Inject Api(Storage storage, javax.inject.Provider<Api> self) {}",
+                "    protected void startUp() {}",
+                "    protected void shutDown() {}",
+                "}"));
+
+        assertTrue("compiles: " + diagnostics.getDiagnostics(), errors(diagnostics).isEmpty());
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{output.toURI().toURL()}, getClass().getClassLoader())) {
+            StartupPlan plan = (StartupPlan) loader.loadClass("example.GeneratedStartupPlan").getDeclaredConstructor().newInstance();
+            Map<String, PlannedService> services = plan.services();
+
+            assertEquals("both services are planned", 2, services.size());
+
+            PlannedService storage = services.get("example.DiskStorage");
+            assertEquals("annotation is on the interface", "example.Storage", storage.getAnnotatedType());
+            assertTrue("is a singleton", storage.isSingleton());
+
+            PlannedService api = services.get("example.Api");
+            assertFalse("is not a singleton", api.isSingleton());
+            assertEquals("providers are not dependencies", Arrays.asList("example.Storage"), api.getDependencies());
+
+            assertTrue("plan is registered", loader.getResource("META-INF/services/com.toao.servicecentre.StartupPlan") != null);
+
+            List<String> indexed = Files.readAllLines(new File(output, "META-INF/servicecentre/managed-services").toPath());
+            assertEquals("services are indexed", Arrays.asList("example.DiskStorage", "example.Api"), indexed);
+        }
+    }
+
+    @Test
+    public void testPlansQualifiers() throws Exception {
+        DiagnosticCollector<JavaFileObject> diagnostics = compile(
+            source("example.Storage",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService(level = 1)",
+                "public interface Storage extends com.google.common.util.concurrent.Service {}"),
+            source("example.Fast",
+                "package example;",
+                "@javax.inject.Qualifier @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)",
+                "public @interface Fast {}"),
+            source("example.Region",
+                "package example;",
+                "@javax.inject.Qualifier @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)",
+                "public @interface Region { String value(); }"),
+            source("example.Api",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService(level = 2)",
+                "public class Api extends com.google.common.util.concurrent.AbstractIdleService {",
+                "    @javax.inject.Inject @Fast Storage fast;",
+                "    @javax.inject.Inject Api(@javax.inject.Named(\"primary\") Storage primary, Storage storage) {}",
+                "    protected void startUp() {}",
+                "    protected void shutDown() {}",
+                "}"),
+            source("example.RegionalApi",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService(level = 2)",
+                "public class RegionalApi extends com.google.common.util.concurrent.AbstractIdleService {",
+                "    @javax.inject.Inject @Region(\"eu\") Storage storage;",
+                "    protected void startUp() {}",
+                "    protected void shutDown() {}",
+                "}"));
+
+        assertTrue("compiles: " + diagnostics.getDiagnostics(), errors(diagnostics).isEmpty());
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{output.toURI().toURL()}, getClass().getClassLoader())) {
+            StartupPlan plan = (StartupPlan) loader.loadClass("example.GeneratedStartupPlan").getDeclaredConstructor().newInstance();
+
+            PlannedService api = plan.services().get("example.Api");
+            assertEquals("each qualified dependency is kept", Arrays.asList("example.Storage", "example.Storage", "example.Storage"),
+                api.getDependencies());
+            assertEquals("qualifiers", Arrays.asList("example.Fast", "javax.inject.Named(primary)", null), api.getQualifiers());
+
+            PlannedService regional = plan.services().get("example.RegionalApi");
+            assertNull("qualifier with values is left for runtime", regional.getDependencies());
+        }
+    }
+
+    @Test
+    public void testPlansAnnotationValues() throws Exception {
+        DiagnosticCollector<JavaFileObject> diagnostics = compile(
+            source("example.Reports",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService(level = 3, lazy = true, startupTimeoutMillis = 500,",
+                "    shutdownTimeoutMillis = 200, resources = {\"db:2\", \"disk\"})",
+                "public class Reports extends com.google.common.util.concurrent.AbstractIdleService {",
+                "    protected void startUp() {}",
+                "    protected void shutDown() {}",
+                "}"),
+            source("example.Api",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService",
+                "public class Api extends com.google.common.util.concurrent.AbstractIdleService {",
+                "    protected void startUp() {}",
+                "    protected void shutDown() {}",
+                "}"));
+
+        assertTrue("compiles: " + diagnostics.getDiagnostics(), errors(diagnostics).isEmpty());
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{output.toURI().toURL()}, getClass().getClassLoader())) {
+            StartupPlan plan = (StartupPlan) loader.loadClass("example.GeneratedStartupPlan").getDeclaredConstructor().newInstance();
+
+            PlannedService reports = plan.services().get("example.Reports");
+            assertEquals("level", 3, reports.getLevel());
+            assertTrue("lazy", reports.isLazy());
+            assertEquals("startup timeout", 500, reports.getStartupTimeoutMillis());
+            assertEquals("shutdown timeout", 200, reports.getShutdownTimeoutMillis());
+            assertEquals("resources", Arrays.asList("db:2", "disk"), reports.getResources());
+
+            PlannedService api = plan.services().get("example.Api");
+            assertEquals("default level", 0, api.getLevel());
+            assertFalse("not lazy by default", api.isLazy());
+            assertTrue("no resources by default", api.getResources().isEmpty());
+        }
+    }
+
+    @Test
+    public void testPlansTypeArguments() throws Exception {
+        DiagnosticCollector<JavaFileObject> diagnostics = compile(
+            source("example.Store",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService",
+                "public interface Store<T> extends com.google.common.util.concurrent.Service {}"),
+            source("example.UserStore",
+                "package example;",
+                "public class UserStore extends com.google.common.util.concurrent.AbstractIdleService implements Store<String> {",
+                "    protected void startUp() {}",
+                "    protected void shutDown() {}",
+                "}"),
+            source("example.OrderStore",
+                "package example;",
+                "public class OrderStore extends com.google.common.util.concurrent.AbstractIdleService implements Store<Integer> {",
+                "    @javax.inject.Inject Api api;",
+                "    protected void startUp() {}",
+                "    protected void shutDown() {}",
+                "}"),
+            source("example.Api",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService",
+                "public class Api<T> extends com.google.common.util.concurrent.AbstractIdleService {",
+                "    @javax.inject.Inject Store<String> users;",
+                "    @javax.inject.Inject java.util.List<? extends Store<String>[]> all;",
+                "    protected void startUp() {}",
+                "    protected void shutDown() {}",
+                "}"),
+            source("example.Generic",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService",
+                "public class Generic<T> extends com.google.common.util.concurrent.AbstractIdleService {",
+                "    @javax.inject.Inject Store<T> store;",
+                "    protected void startUp() {}",
+                "    protected void shutDown() {}",
+                "}"));
+
+        // Matched by their raw types, Api and OrderStore would be a cycle
+        assertTrue("compiles: " + diagnostics.getDiagnostics(), errors(diagnostics).isEmpty());
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{output.toURI().toURL()}, getClass().getClassLoader())) {
+            StartupPlan plan = (StartupPlan) loader.loadClass("example.GeneratedStartupPlan").getDeclaredConstructor().newInstance();
+
+            assertEquals("type arguments are kept",
+                Arrays.asList("example.Store<java.lang.String>", "java.util.List<? extends example.Store<java.lang.String>[]>"),
+                plan.services().get("example.Api").getDependencies());
+            assertNull("type variables are left for runtime", plan.services().get("example.Generic").getDependencies());
+        }
+    }
+
+    @Test
+    public void testIncrementalCompileKeepsEarlierServices() throws Exception {
+        compile(
+            source("example.Storage",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService(level = 1)",
+                "public class Storage extends com.google.common.util.concurrent.AbstractIdleService {",
+                "    protected void startUp() {}",
+                "    protected void shutDown() {}",
+                "}"),
+            source("example.Removed",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService(level = 1)",
+                "public class Removed extends com.google.common.util.concurrent.AbstractIdleService {",
+                "    protected void startUp() {}",
+                "    protected void shutDown() {}",
+                "}"));
+
+        assertTrue("removed", new File(output, "example/Removed.class").delete());
+
+        // Only the new class, with the earlier output on the classpath
+        DiagnosticCollector<JavaFileObject> diagnostics = compile(
+            source("example.Api",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService(level = 2)",
+                "public class Api extends com.google.common.util.concurrent.AbstractIdleService {",
+                "    @javax.inject.Inject Storage storage;",
+                "    protected void startUp() {}",
+                "    protected void shutDown() {}",
+                "}"));
+
+        assertTrue("compiles: " + diagnostics.getDiagnostics(), errors(diagnostics).isEmpty());
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{output.toURI().toURL()}, getClass().getClassLoader())) {
+            StartupPlan plan = (StartupPlan) loader.loadClass("example.GeneratedStartupPlan").getDeclaredConstructor().newInstance();
+
+            assertTrue("earlier service is still planned", plan.services().containsKey("example.Storage"));
+            assertEquals("new service is planned", Arrays.asList("example.Storage"),
+                plan.services().get("example.Api").getDependencies());
+            assertFalse("deleted service is dropped", plan.services().containsKey("example.Removed"));
+
+            List<String> indexed = Files.readAllLines(new File(output, "META-INF/servicecentre/managed-services").toPath());
+            assertEquals("index is merged", Arrays.asList("example.Api", "example.Storage"), indexed);
+
+            List<String> registered = Files.readAllLines(new File(output, "META-INF/services/com.toao.servicecentre.StartupPlan").toPath());
+            assertEquals("plan is registered once", Arrays.asList("example.GeneratedStartupPlan"), registered);
+        }
+    }
+
+    @Test
+    public void testNotAService() throws Exception {
+        DiagnosticCollector<JavaFileObject> diagnostics = compile(
+            source("example.Plain",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService",
+                "public class Plain {}"));
+
+        List<String> errors = errors(diagnostics);
+
+        assertEquals("one error", 1, errors.size());
+        assertTrue("error names the class", errors.get(0).contains("example.Plain"));
+    }
+
+    @Test
+    public void testCycle() throws Exception {
+        DiagnosticCollector<JavaFileObject> diagnostics = compile(
+            source("example.First",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService",
+                "public class First extends com.google.common.util.concurrent.AbstractIdleService {",
+                "    @javax.inject.Inject Second second;",
+                "    protected void startUp() {}",
+                "    protected void shutDown() {}",
+                "}"),
+            source("example.Second",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService",
+                "public class Second extends com.google.common.util.concurrent.AbstractIdleService {",
+                "    @javax.inject.Inject First first;",
+                "    protected void startUp() {}",
+                "    protected void shutDown() {}",
+                "}"));
+
+        List<String> errors = errors(diagnostics);
+
+        assertEquals("one error", 1, errors.size());
+        assertTrue("error describes the cycle", errors.get(0).contains("First -> Second -> First"));
+    }
+
+    @Test
+    public void testHigherLevelDependencyIsNotACycle() throws Exception {
+        DiagnosticCollector<JavaFileObject> diagnostics = compile(
+            source("example.Low",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService(level = 0)",
+                "public class Low extends com.google.common.util.concurrent.AbstractIdleService {",
+                "    @javax.inject.Inject High high;",
+                "    protected void startUp() {}",
+                "    protected void shutDown() {}",
+                "}"),
+            source("example.High",
+                "package example;",
+                "@com.toao.servicecentre.annotations.ManagedService(level = 1)",
+                "public class High extends com.google.common.util.concurrent.AbstractIdleService {",
+                "    @javax.inject.Inject Low low;",
+                "    protected void startUp() {}",
+                "    protected void shutDown() {}",
+                "}"));
+
+        assertTrue("compiles", errors(diagnostics).isEmpty());
+
+        boolean warned = false;
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            warned |= diagnostic.getKind() == Diagnostic.Kind.WARNING && diagnostic.getMessage(null).contains("higher level");
+        }
+        assertTrue("back-reference is warned about", warned);
+    }
+
+    private DiagnosticCollector<JavaFileObject> compile(JavaFileObject... sources) throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+
+        // The output is on the classpath, as it is for an incremental compile
+        List<String> options = Arrays.asList("-d", output.getPath(), "-classpath",
+            output.getPath() + File.pathSeparator + System.getProperty("java.class.path"));
+
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics, options, null, Arrays.asList(sources));
+        task.setProcessors(Arrays.asList(new ManagedServiceProcessor()));
+        task.call();
+
+        return diagnostics;
+    }
+
+    private static List<String> errors(DiagnosticCollector<JavaFileObject> diagnostics) {
+        List<String> errors = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.add(diagnostic.getMessage(null));
+            }
+        }
+        return errors;
+    }
+
+    private static JavaFileObject source(String className, String... lines) {
+        URI uri = URI.create("string:///" + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension);
+
+        return new SimpleJavaFileObject(uri, JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return String.join("\n", lines);
+            }
+        };
+    }
+}
@@ -0,0 +1,142 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for lifecycle transitions, so that startup and shutdown show up
+ * alongside GC, lock and I/O events in the same recording. Only loaded through
+ * {@link LifecycleEvents#create()} on runtimes that have JFR.
+ *
+ * Events that aren't enabled in the recording are never begun, so this costs a check per
+ * transition when nothing is recording.
+ */
+final class FlightRecorderEvents implements LifecycleEvents {
+    @Override
+    public Object beginStart(Service service, int level) {
+        ServiceStartEvent event = new ServiceStartEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+
+        event.service = service.getClass().getName();
+        event.level = level;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public Object beginStop(Service service, int level) {
+        ServiceStopEvent event = new ServiceStopEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+
+        event.service = service.getClass().getName();
+        event.level = level;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public Object beginLevelStart(int level) {
+        LevelStartEvent event = new LevelStartEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+
+        event.level = level;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public Object beginLevelStop(int level) {
+        LevelStopEvent event = new LevelStopEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+
+        event.level = level;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void end(Object handle) {
+        if (handle != null) {
+            ((Event) handle).commit();
+        }
+    }
+
+    @Override
+    public void failed(Service service, int level, Throwable failure) {
+        ServiceFailureEvent event = new ServiceFailureEvent();
+        if (event.isEnabled()) {
+            event.service = service.getClass().getName();
+            event.level = level;
+            event.failure = String.valueOf(failure);
+            event.commit();
+        }
+    }
+
+    @Name("com.toao.servicecentre.ServiceStart")
+    @Label("Service Start")
+    @Description("From startAsync() until the service is running")
+    @Category("ServiceCentre")
+    static final class ServiceStartEvent extends Event {
+        @Label("Service")
+        String service;
+
+        @Label("Level")
+        int level;
+    }
+
+    @Name("com.toao.servicecentre.ServiceStop")
+    @Label("Service Stop")
+    @Description("From stopAsync() until the service has terminated")
+    @Category("ServiceCentre")
+    static final class ServiceStopEvent extends Event {
+        @Label("Service")
+        String service;
+
+        @Label("Level")
+        int level;
+    }
+
+    @Name("com.toao.servicecentre.ServiceFailure")
+    @Label("Service Failure")
+    @Category("ServiceCentre")
+    static final class ServiceFailureEvent extends Event {
+        @Label("Service")
+        String service;
+
+        @Label("Level")
+        int level;
+
+        @Label("Failure")
+        String failure;
+    }
+
+    @Name("com.toao.servicecentre.LevelStart")
+    @Label("Level Start")
+    @Description("From the first service in the level starting until the level's barrier is passed")
+    @Category("ServiceCentre")
+    static final class LevelStartEvent extends Event {
+        @Label("Level")
+        int level;
+    }
+
+    @Name("com.toao.servicecentre.LevelStop")
+    @Label("Level Stop")
+    @Description("From the level's services being stopped until they have all terminated")
+    @Category("ServiceCentre")
+    static final class LevelStopEvent extends Event {
+        @Label("Level")
+        int level;
+    }
+}
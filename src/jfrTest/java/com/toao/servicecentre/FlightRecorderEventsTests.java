@@ -0,0 +1,90 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.testone.*;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class FlightRecorderEventsTests {
+    Module testModule;
+
+    @Before
+    public void setupServices() {
+        testModule = new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(ServiceOne.class).to(AbstractServiceOne.class);
+                bind(ServiceTwo.class).to(AbstractServiceTwo.class);
+                bind(ServiceThree.class).to(AbstractServiceThree.class);
+
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(AbstractServiceOne.class);
+                activeServices.addBinding().to(AbstractServiceTwo.class);
+                activeServices.addBinding().to(AbstractServiceThree.class);
+            }
+        };
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        Injector injector = Guice.createInjector(testModule);
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+
+        Path file = Files.createTempFile("servicecentre", ".jfr");
+
+        try (Recording recording = new Recording()) {
+            recording.enable("com.toao.servicecentre.ServiceStart");
+            recording.enable("com.toao.servicecentre.ServiceStop");
+            recording.enable("com.toao.servicecentre.LevelStart");
+            recording.start();
+
+            serviceCentre.startAsync().awaitRunning();
+            serviceCentre.stopAsync().awaitTerminated();
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        Set<String> started = new HashSet<>();
+        int stops = 0;
+        int levels = 0;
+
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            String name = event.getEventType().getName();
+
+            if (name.equals("com.toao.servicecentre.ServiceStart")) {
+                started.add(event.getString("service"));
+            } else if (name.equals("com.toao.servicecentre.ServiceStop")) {
+                stops++;
+            } else if (name.equals("com.toao.servicecentre.LevelStart")) {
+                levels++;
+            }
+        }
+
+        assertTrue("service start recorded", started.contains(AbstractServiceTwo.class.getName()));
+        assertEquals("every service started", 3, started.size());
+        assertEquals("every service stopped", 3, stops);
+        assertEquals("every level started", 3, levels);
+
+        Files.delete(file);
+    }
+}
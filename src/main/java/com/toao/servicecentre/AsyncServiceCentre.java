@@ -0,0 +1,425 @@
+package com.toao.servicecentre;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.*;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.ServiceCentre.ServicesFailedException;
+import com.toao.servicecentre.ServiceCentre.StartupOrder;
+import com.toao.servicecentre.ServiceGraph.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+/**
+ * A {@link ServiceCentre} that doesn't use any threads of its own.
+ *
+ * Startup and shutdown are driven entirely from {@link Service.Listener} callbacks, so the
+ * next services are started on whichever thread the last of their dependencies became
+ * running on. Progress can be followed through the futures returned by {@link #levelRunning(int)},
+ * {@link #allRunning()} and {@link #allTerminated()}.
+ *
+ * There is no thread to wait with, so the timeouts on {@link com.toao.servicecentre.annotations.ManagedService}
+ * are not applied. Lazy services are started along with everything else, and services are
+ * not supervised.
+ */
+@Singleton
+public class AsyncServiceCentre extends AbstractService {
+    private static Logger sLogger = LoggerFactory.getLogger(AsyncServiceCentre.class);
+    private final Injector injector;
+    private final LifecycleRecorder recorder = new LifecycleRecorder();
+    private final ConcurrentMap<Integer, SettableFuture<Void>> levelsRunning = new ConcurrentHashMap<>();
+    private final SettableFuture<Void> allRunning = SettableFuture.create();
+    private final SettableFuture<Void> allTerminated = SettableFuture.create();
+    private final Map<Service, Throwable> failedServices = Collections.synchronizedMap(new LinkedHashMap<Service, Throwable>());
+    private volatile StartupOrder startupOrder = StartupOrder.LEVELS;
+    private volatile ServiceGraph graph;
+    private volatile List<Integer> levels = Collections.emptyList();
+    // Levels below this are all running
+    private volatile int runningBelow = Integer.MIN_VALUE;
+    private volatile Throwable startupFailure;
+    private final AtomicBoolean startupSettled = new AtomicBoolean();
+    private final AtomicBoolean shutdownSettled = new AtomicBoolean();
+
+    // Guarded by lock
+    private final Object lock = new Object();
+    private final Map<Node, Integer> remaining = new IdentityHashMap<>();
+    private final Set<Node> settled = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean stopping;
+    private int inFlight;
+    private int unsettledServices;
+
+    @Inject
+    public AsyncServiceCentre(Injector injector) {
+        this.injector = injector;
+    }
+
+    /**
+     * Sets how services are ordered on startup, must be called before the AsyncServiceCentre is started.
+     */
+    public void setStartupOrder(StartupOrder startupOrder) {
+        this.startupOrder = startupOrder;
+    }
+
+    /**
+     * Completes once every service at the given level and below is running.
+     */
+    public ListenableFuture<Void> levelRunning(int level) {
+        SettableFuture<Void> future = levelsRunning.computeIfAbsent(level, l -> SettableFuture.create());
+
+        if (level < runningBelow) {
+            future.set(null);
+        } else if (startupFailure != null) {
+            future.setException(startupFailure);
+        }
+
+        return future;
+    }
+
+    /**
+     * Completes once every service is running, or fails with a {@link ServicesFailedException}.
+     */
+    public ListenableFuture<Void> allRunning() {
+        return allRunning;
+    }
+
+    /**
+     * Completes once every service has shut down, or fails with a {@link ServicesFailedException}.
+     */
+    public ListenableFuture<Void> allTerminated() {
+        return allTerminated;
+    }
+
+    public LifecycleReport getLifecycleReport() {
+        return recorder.report(graph);
+    }
+
+    /**
+     * Adapts any of the futures from this class for code that works with {@link CompletableFuture}.
+     */
+    public static <T> CompletableFuture<T> toCompletableFuture(ListenableFuture<T> future) {
+        final CompletableFuture<T> completable = new CompletableFuture<>();
+
+        Futures.addCallback(future, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                completable.complete(result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                completable.completeExceptionally(t);
+            }
+        }, directExecutor());
+
+        return completable;
+    }
+
+    @Override
+    protected void doStart() {
+        List<Node> ready = new ArrayList<>();
+
+        try {
+            recorder.startupBegan();
+
+            ManagedServices managedServices = ManagedServices.load(injector);
+            Multimap<Integer, Service> byLevel = managedServices.byLevel();
+
+            for (Map.Entry<Integer, Service> entry : byLevel.entries()) {
+                recorder.register(entry.getKey(), entry.getValue());
+            }
+
+            List<Integer> sortedLevels = Lists.newArrayList(byLevel.keySet());
+            Collections.sort(sortedLevels);
+            levels = sortedLevels;
+
+            graph = ServiceGraph.build(injector, byLevel, startupOrder == StartupOrder.DEPENDENCIES);
+
+            sLogger.info("Starting {} services", byLevel.size());
+
+            for (Node node : graph.nodes()) {
+                if (!node.isBarrier()) {
+                    node.service.addListener(new ServiceListener(node), directExecutor());
+                }
+            }
+
+            synchronized (lock) {
+                unsettledServices = byLevel.size();
+                for (Node node : graph.nodes()) {
+                    remaining.put(node, node.dependencies.size());
+                }
+                for (Node node : graph.nodes()) {
+                    if (node.dependencies.isEmpty()) {
+                        makeReady(node, ready);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            startupSettled.set(true);
+            notifyFailed(e);
+            failLevels(e);
+            allRunning.setException(e);
+            return;
+        }
+
+        startAll(ready);
+        checkStarted();
+    }
+
+    @Override
+    protected void doStop() {
+        List<Node> ready = new ArrayList<>();
+
+        recorder.shutdownBegan();
+
+        synchronized (lock) {
+            stopping = true;
+            settled.clear();
+            remaining.clear();
+            unsettledServices = 0;
+
+            for (Node node : graph.nodes()) {
+                remaining.put(node, node.dependents.size());
+                if (!node.isBarrier()) {
+                    unsettledServices++;
+                }
+            }
+            for (Node node : graph.nodes()) {
+                if (node.dependents.isEmpty()) {
+                    makeReady(node, ready);
+                }
+            }
+        }
+
+        stopAll(ready);
+        checkStopped();
+    }
+
+    /**
+     * Barriers pass as soon as they're ready, services are added to the list to be started
+     * or stopped once the lock is released.
+     */
+    private void makeReady(Node node, List<Node> ready) {
+        if (!node.isBarrier()) {
+            ready.add(node);
+            inFlight++;
+            return;
+        }
+
+        settled.add(node);
+
+        if (!stopping) {
+            recorder.levelRunning(node.level);
+            int index = levels.indexOf(node.level);
+            runningBelow = index + 1 < levels.size() ? levels.get(index + 1) : Integer.MAX_VALUE;
+        } else {
+            recorder.levelTerminated(node.level);
+        }
+
+        release(node, ready);
+    }
+
+    private void release(Node node, List<Node> ready) {
+        for (Node next : stopping ? node.dependencies : node.dependents) {
+            if (remaining.merge(next, -1, Integer::sum) == 0) {
+                makeReady(next, ready);
+            }
+        }
+    }
+
+    private void startAll(List<Node> ready) {
+        completeLevels();
+
+        for (Node node : ready) {
+            try {
+                sLogger.debug("Starting service {} at level {}", node, node.level);
+                recorder.startRequested(node.service);
+                node.service.startAsync();
+            } catch (Exception e) {
+                // We may get an error as soon as we call start(), need to deal with it
+                onStartFailed(node, e);
+            }
+        }
+    }
+
+    private void stopAll(List<Node> ready) {
+        for (Node node : ready) {
+            sLogger.debug("Stopping service {} at level {}", node, node.level);
+            recorder.stopRequested(node.service);
+            node.service.stopAsync();
+
+            // Listeners aren't called for services that were already stopped or failed
+            State state = node.service.state();
+            if (state == State.TERMINATED) {
+                onTerminated(node, null);
+            } else if (state == State.FAILED) {
+                onTerminated(node, node.service.failureCause());
+            }
+        }
+    }
+
+    private void onRunning(Node node) {
+        List<Node> ready = new ArrayList<>();
+
+        synchronized (lock) {
+            if (stopping || !settled.add(node)) {
+                return;
+            }
+            inFlight--;
+            unsettledServices--;
+
+            if (failedServices.isEmpty()) {
+                release(node, ready);
+            }
+        }
+
+        startAll(ready);
+        checkStarted();
+    }
+
+    private void onStartFailed(Node node, Throwable failure) {
+        synchronized (lock) {
+            if (stopping || !settled.add(node)) {
+                return;
+            }
+            inFlight--;
+            unsettledServices--;
+            failedServices.put(node.service, failure);
+        }
+
+        sLogger.error("Service " + node + " failed with exception: " + failure, failure);
+        checkStarted();
+    }
+
+    private void onTerminated(Node node, Throwable failure) {
+        List<Node> ready = new ArrayList<>();
+
+        synchronized (lock) {
+            if (!stopping || !settled.add(node)) {
+                return;
+            }
+            inFlight--;
+            unsettledServices--;
+
+            if (failure != null) {
+                failedServices.put(node.service, failure);
+            }
+
+            recorder.terminated(node.service);
+            release(node, ready);
+        }
+
+        stopAll(ready);
+        checkStopped();
+    }
+
+    private void checkStarted() {
+        boolean running;
+
+        synchronized (lock) {
+            if (stopping || inFlight > 0 || (failedServices.isEmpty() && unsettledServices > 0)) {
+                return;
+            }
+            running = failedServices.isEmpty();
+        }
+
+        if (!startupSettled.compareAndSet(false, true)) {
+            return;
+        }
+
+        // Update our own state before completing the futures, so anyone waiting on them sees it
+        if (running) {
+            recorder.startupFinished();
+            sLogger.info("All services started successfully: {}", getLifecycleReport());
+            notifyStarted();
+            completeLevels();
+            allRunning.set(null);
+        } else {
+            ServicesFailedException failure = new ServicesFailedException(new LinkedHashMap<>(failedServices));
+            sLogger.error("Services {} failed startup", failure.getMessage());
+            notifyFailed(failure);
+            failLevels(failure);
+            allRunning.setException(failure);
+        }
+    }
+
+    private void checkStopped() {
+        synchronized (lock) {
+            if (unsettledServices > 0) {
+                return;
+            }
+        }
+
+        if (!shutdownSettled.compareAndSet(false, true)) {
+            return;
+        }
+
+        recorder.shutdownFinished();
+
+        if (failedServices.isEmpty()) {
+            sLogger.info("All services shut down successfully");
+            notifyStopped();
+            allTerminated.set(null);
+        } else {
+            ServicesFailedException failure = new ServicesFailedException(new LinkedHashMap<>(failedServices));
+            sLogger.error("Services {} failed shutdown", failure.getMessage());
+            notifyFailed(failure);
+            allTerminated.setException(failure);
+        }
+    }
+
+    private void completeLevels() {
+        for (Map.Entry<Integer, SettableFuture<Void>> entry : levelsRunning.entrySet()) {
+            if (entry.getKey() < runningBelow) {
+                entry.getValue().set(null);
+            }
+        }
+    }
+
+    private void failLevels(Throwable failure) {
+        startupFailure = failure;
+        for (SettableFuture<Void> future : levelsRunning.values()) {
+            future.setException(failure);
+        }
+    }
+
+    private class ServiceListener extends Service.Listener {
+        private final Node node;
+
+        ServiceListener(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        public void running() {
+            onRunning(node);
+        }
+
+        @Override
+        public void terminated(State from) {
+            if (from == State.STARTING) {
+                onStartFailed(node, new IllegalStateException("Service " + node + " terminated while starting"));
+            } else {
+                onTerminated(node, null);
+            }
+        }
+
+        @Override
+        public void failed(State from, Throwable failure) {
+            if (from == State.STARTING) {
+                onStartFailed(node, failure);
+            } else {
+                onTerminated(node, failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.toao.servicecentre;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in {@link System#nanoTime()} time, or no deadline at all.
+ */
+final class Deadline {
+    static final Deadline NONE = new Deadline(0, false);
+
+    private final long nanos;
+    private final boolean bounded;
+
+    private Deadline(long nanos, boolean bounded) {
+        this.nanos = nanos;
+        this.bounded = bounded;
+    }
+
+    /**
+     * A deadline the given time from now, or no deadline if the timeout is not positive.
+     */
+    static Deadline after(long timeout, TimeUnit unit) {
+        return timeout > 0 ? new Deadline(System.nanoTime() + unit.toNanos(timeout), true) : NONE;
+    }
+
+    boolean isBounded() {
+        return bounded;
+    }
+
+    /**
+     * Nanoseconds left until the deadline, never negative. Only meaningful if bounded.
+     */
+    long remainingNanos() {
+        return Math.max(0, nanos - System.nanoTime());
+    }
+
+    boolean hasPassed() {
+        return bounded && nanos - System.nanoTime() <= 0;
+    }
+
+    Deadline earliest(Deadline other) {
+        if (!bounded) {
+            return other;
+        } else if (!other.bounded) {
+            return this;
+        }
+        return nanos - other.nanos <= 0 ? this : other;
+    }
+}
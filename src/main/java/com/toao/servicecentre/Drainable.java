@@ -0,0 +1,14 @@
+package com.toao.servicecentre;
+
+/**
+ * Implemented by managed services that should finish the work they have in flight before they
+ * are stopped, such as requests being handled or messages being processed.
+ *
+ * {@link #drain()} is called on the {@link LifecycleExecutor} when the service would otherwise
+ * be stopped. It should stop taking new work and return once the work in flight is done, after
+ * which the service is stopped as usual. The drain counts towards the service's shutdown
+ * timeout. A drain that throws is logged and the service is stopped anyway.
+ */
+public interface Drainable {
+    void drain() throws Exception;
+}
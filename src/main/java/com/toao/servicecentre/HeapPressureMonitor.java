@@ -0,0 +1,159 @@
+package com.toao.servicecentre;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sets a collection usage threshold on the heap memory pools and runs a callback when a pool
+ * is over it. The collection usage is what is left after a garbage collection, so garbage that
+ * is about to be collected doesn't set it off.
+ *
+ * The thresholds belong to the JVM, so they are shared by every open monitor: each pool's is
+ * set for the lowest fraction any of them wants, and each monitor checks the usage it is told
+ * about against its own. The thresholds that were there before the first monitor opened are
+ * put back once the last one closes.
+ *
+ * Notifications arrive on a JMX thread, so the callback is run on the monitor's own thread,
+ * which is free to block on the {@link LifecycleExecutor}.
+ */
+final class HeapPressureMonitor implements NotificationListener {
+    private static Logger sLogger = LoggerFactory.getLogger(HeapPressureMonitor.class);
+
+    // Guarded by the class
+    private static final List<HeapPressureMonitor> OPEN = new ArrayList<>();
+    private static final Map<String, Long> PREVIOUS_THRESHOLDS = new HashMap<>();
+
+    private final List<MemoryPoolMXBean> pools = new ArrayList<>();
+    private final double fraction;
+    private final Runnable onPressure;
+    private final ExecutorService executor;
+
+    /**
+     * @param fraction of each pool's maximum size, above which the callback is run
+     */
+    HeapPressureMonitor(double fraction, Runnable onPressure) {
+        this.fraction = fraction;
+        this.onPressure = onPressure;
+
+        // One thread, and a queue so a burst of notifications doesn't pile up threads
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), runnable -> {
+                Thread thread = new Thread(runnable, "ServiceCentre heap pressure");
+                thread.setDaemon(true);
+                return thread;
+            });
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getCollectionUsage();
+
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+                && usage != null && usage.getMax() > 0) {
+                pools.add(pool);
+            }
+        }
+
+        if (pools.isEmpty()) {
+            sLogger.warn("No heap memory pools support collection usage thresholds, services won't be suspended on heap usage");
+        }
+
+        synchronized (HeapPressureMonitor.class) {
+            if (OPEN.isEmpty()) {
+                for (MemoryPoolMXBean pool : pools) {
+                    PREVIOUS_THRESHOLDS.put(pool.getName(), pool.getCollectionUsageThreshold());
+                }
+            }
+
+            OPEN.add(this);
+            setThresholds();
+        }
+
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+    }
+
+    /**
+     * The pools the threshold was set on.
+     */
+    List<MemoryPoolMXBean> pools() {
+        return pools;
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())
+            || !(notification.getUserData() instanceof CompositeData)) {
+            return;
+        }
+
+        MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData) notification.getUserData());
+        pressure(info.getPoolName(), info.getUsage());
+    }
+
+    /**
+     * A pool was over the lowest threshold after a collection, which may or may not be this monitor's.
+     */
+    void pressure(String poolName, MemoryUsage usage) {
+        if (usage.getMax() <= 0 || usage.getUsed() < usage.getMax() * fraction) {
+            return;
+        }
+
+        sLogger.warn("Heap usage threshold exceeded, {} has {} of {} bytes in use after a collection",
+            poolName, usage.getUsed(), usage.getMax());
+        executor.execute(onPressure);
+    }
+
+    void close() {
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+        } catch (ListenerNotFoundException e) {
+            // Already removed
+        }
+
+        synchronized (HeapPressureMonitor.class) {
+            if (OPEN.remove(this)) {
+                if (OPEN.isEmpty()) {
+                    for (MemoryPoolMXBean pool : pools) {
+                        Long previous = PREVIOUS_THRESHOLDS.remove(pool.getName());
+                        pool.setCollectionUsageThreshold(previous == null ? 0 : previous);
+                    }
+                } else {
+                    setThresholds();
+                }
+            }
+        }
+
+        executor.shutdown();
+    }
+
+    // Called holding the class lock
+    private static void setThresholds() {
+        double lowest = 1;
+        for (HeapPressureMonitor monitor : OPEN) {
+            lowest = Math.min(lowest, monitor.fraction);
+        }
+
+        for (MemoryPoolMXBean pool : OPEN.get(0).pools) {
+            long threshold = Math.max(1, (long) (pool.getCollectionUsage().getMax() * lowest));
+            pool.setCollectionUsageThreshold(threshold);
+
+            sLogger.debug("Suspending services once {} is over {} bytes after a collection", pool.getName(), threshold);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Provider;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Provides a proxy for a lazy managed service that starts it the first time it is called.
+ *
+ * Bind the interface that the rest of the application uses to this provider, and keep the
+ * implementation in the activeServices multibinding as usual:
+ *
+ * <pre>
+ *     bind(Reports.class).toProvider(LazyServiceProvider.of(Reports.class, ReportsService.class));
+ *     activeServices.addBinding().to(ReportsService.class);
+ * </pre>
+ *
+ * The implementation should be a singleton, so that the proxy and the ServiceCentre see the
+ * same instance. Calls to the {@link Service} and {@link Object} methods go straight through
+ * without starting it, anything else blocks until it and its lazy dependencies are running.
+ */
+public final class LazyServiceProvider<T> implements Provider<T> {
+    private final Class<T> type;
+    private final Class<? extends T> implementation;
+    private ServiceCentre serviceCentre;
+    private Injector injector;
+    private volatile T proxy;
+
+    private LazyServiceProvider(Class<T> type, Class<? extends T> implementation) {
+        if (!type.isInterface()) {
+            throw new IllegalArgumentException("Lazy services can only be provided through an interface, " + type + " is a class");
+        }
+        if (!Service.class.isAssignableFrom(implementation)) {
+            throw new IllegalArgumentException(implementation + " does not implement the Guava Service interface");
+        }
+
+        this.type = type;
+        this.implementation = implementation;
+    }
+
+    public static <T> LazyServiceProvider<T> of(Class<T> type, Class<? extends T> implementation) {
+        return new LazyServiceProvider<>(type, implementation);
+    }
+
+    @Inject
+    void initialise(ServiceCentre serviceCentre, Injector injector) {
+        this.serviceCentre = serviceCentre;
+        this.injector = injector;
+    }
+
+    @Override
+    public T get() {
+        if (proxy == null) {
+            synchronized (this) {
+                if (proxy == null) {
+                    proxy = type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new StartingHandler()));
+                }
+            }
+        }
+        return proxy;
+    }
+
+    private final class StartingHandler implements InvocationHandler {
+        private volatile Object target;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object original = target;
+
+            if (original == null) {
+                original = target = injector.getInstance(implementation);
+            }
+
+            Class<?> declaringClass = method.getDeclaringClass();
+
+            if (declaringClass != Object.class && declaringClass != Service.class) {
+                serviceCentre.startOnDemand((Service) original);
+            }
+
+            // It may have been replaced by a fresh instance since
+            Object service = serviceCentre.currentInstance((Service) original);
+
+            try {
+                return method.invoke(service, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Where lifecycle transitions are reported as profiling events.
+ *
+ * Durations are reported by beginning an event, which returns a handle, and later ending it
+ * with that handle. Handles may be null, and ending a null handle does nothing.
+ *
+ * The Java Flight Recorder implementation is only loaded if the runtime has JFR, so that
+ * nothing refers to the jdk.jfr classes on runtimes that don't. It's compiled from its own
+ * source set and is missing from jars built without JFR, which reports no events either.
+ */
+interface LifecycleEvents {
+    LifecycleEvents NONE = new LifecycleEvents() {
+        @Override
+        public Object beginStart(Service service, int level) {
+            return null;
+        }
+
+        @Override
+        public Object beginStop(Service service, int level) {
+            return null;
+        }
+
+        @Override
+        public Object beginLevelStart(int level) {
+            return null;
+        }
+
+        @Override
+        public Object beginLevelStop(int level) {
+            return null;
+        }
+
+        @Override
+        public void end(Object handle) {
+        }
+
+        @Override
+        public void failed(Service service, int level, Throwable failure) {
+        }
+    };
+
+    Object beginStart(Service service, int level);
+
+    Object beginStop(Service service, int level);
+
+    /**
+     * From the first service in the level being started until every service in it is running.
+     */
+    Object beginLevelStart(int level);
+
+    Object beginLevelStop(int level);
+
+    void end(Object handle);
+
+    void failed(Service service, int level, Throwable failure);
+
+    static LifecycleEvents create() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (LifecycleEvents) Class.forName("com.toao.servicecentre.FlightRecorderEvents").getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException | LinkageError e) {
+            LoggerFactory.getLogger(LifecycleEvents.class).debug("Java Flight Recorder is not available");
+            return NONE;
+        } catch (ReflectiveOperationException e) {
+            LoggerFactory.getLogger(LifecycleEvents.class).warn("Unable to create Java Flight Recorder events", e);
+            return NONE;
+        }
+    }
+}
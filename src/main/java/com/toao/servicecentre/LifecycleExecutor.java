@@ -0,0 +1,151 @@
+package com.toao.servicecentre;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A shared executor for the startUp() and shutDown() work of idle services, instead of
+ * the new thread AbstractIdleService creates for each of them.
+ *
+ * By default it uses virtual threads on runtimes that have them, and otherwise a pool of
+ * at most {@link #DEFAULT_THREADS} daemon threads that time out when idle. Bind an instance
+ * from {@link #bounded(int)} or {@link #virtual()} to choose. Services opt in by extending
+ * {@link ManagedIdleService}. The ServiceCentre itself only uses it when it has virtual
+ * threads, since it holds a thread for the whole of startup and could otherwise take the
+ * last one its services need.
+ */
+@Singleton
+public class LifecycleExecutor implements Executor {
+    private static Logger sLogger = LoggerFactory.getLogger(LifecycleExecutor.class);
+
+    public static final int DEFAULT_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private static final long KEEP_ALIVE_SECONDS = 10;
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutorFactory();
+    private static final ThreadLocal<LifecycleExecutor> CURRENT = new ThreadLocal<>();
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+
+    @Inject
+    public LifecycleExecutor() {
+        this(NEW_VIRTUAL_THREAD_EXECUTOR != null ? virtualThreadExecutor() : boundedExecutor(DEFAULT_THREADS),
+            NEW_VIRTUAL_THREAD_EXECUTOR != null);
+    }
+
+    private LifecycleExecutor(ExecutorService executor, boolean virtual) {
+        this.executor = executor;
+        this.virtual = virtual;
+
+        sLogger.debug("Lifecycle executor uses {}", virtual ? "virtual threads" : "a bounded thread pool");
+    }
+
+    /**
+     * At most the given number of platform threads, tasks beyond that are queued.
+     */
+    public static LifecycleExecutor bounded(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("A lifecycle executor needs at least one thread, not " + threads);
+        }
+        return new LifecycleExecutor(boundedExecutor(threads), false);
+    }
+
+    /**
+     * A new virtual thread for each task.
+     *
+     * @throws UnsupportedOperationException if the runtime doesn't have virtual threads
+     */
+    public static LifecycleExecutor virtual() {
+        if (NEW_VIRTUAL_THREAD_EXECUTOR == null) {
+            throw new UnsupportedOperationException("Virtual threads are not available on Java " + System.getProperty("java.version"));
+        }
+        return new LifecycleExecutor(virtualThreadExecutor(), true);
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * The number of tasks waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * The number of tasks running now.
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Whether the calling thread is running one of this executor's tasks, in which case waiting
+     * on other tasks could wait on a thread that is never freed.
+     */
+    boolean isCurrentThread() {
+        return CURRENT.get() == this;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        queued.incrementAndGet();
+
+        try {
+            executor.execute(() -> {
+                queued.decrementAndGet();
+                active.incrementAndGet();
+                CURRENT.set(this);
+                try {
+                    command.run();
+                } finally {
+                    CURRENT.remove();
+                    active.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private static ExecutorService boundedExecutor(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), runnable -> {
+                Thread thread = new Thread(runnable, "ServiceCentre lifecycle " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to create a virtual thread executor", e);
+        }
+    }
+
+    // Looked up reflectively so the library still builds and runs on Java 8
+    private static Method findVirtualThreadExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
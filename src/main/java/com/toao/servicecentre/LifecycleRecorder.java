@@ -0,0 +1,330 @@
+package com.toao.servicecentre;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.Service.State;
+import com.toao.servicecentre.LifecycleReport.LevelTiming;
+import com.toao.servicecentre.LifecycleReport.ServiceTiming;
+import com.toao.servicecentre.LifecycleReport.StallSample;
+import com.toao.servicecentre.ServiceGraph.Node;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+/**
+ * Records the lifecycle timestamps that go into a {@link LifecycleReport}.
+ *
+ * Timers are allocated when services are registered or provisioned, before they are started,
+ * so that recording a transition is a lookup and a volatile write of {@link System#nanoTime()}.
+ * Transitions are also reported as {@link LifecycleEvents}, for Java Flight Recorder.
+ */
+final class LifecycleRecorder {
+    // System.nanoTime() can be negative, so -1 can't be used to mean unset here
+    private static final long UNSET = Long.MIN_VALUE;
+    private static final LifecycleEvents EVENTS = LifecycleEvents.create();
+
+    // Written by startup as each service is provisioned while other threads record transitions
+    // and read reports, so it is concurrent, with the services compared by identity
+    private final Map<Identity, Timer> serviceTimers = new ConcurrentHashMap<>();
+    private final Map<Integer, Timer> levelTimers = new ConcurrentSkipListMap<>();
+    private final List<StallSample> stallSamples = new CopyOnWriteArrayList<>();
+    private volatile long startupBegan = UNSET;
+    private volatile long startupFinished = UNSET;
+    private volatile long ready = UNSET;
+    private volatile long shutdownBegan = UNSET;
+    private volatile long shutdownFinished = UNSET;
+
+    void startupBegan() {
+        startupBegan = System.nanoTime();
+    }
+
+    void startupFinished() {
+        startupFinished = System.nanoTime();
+    }
+
+    void ready() {
+        ready = System.nanoTime();
+    }
+
+    void shutdownBegan() {
+        shutdownBegan = System.nanoTime();
+    }
+
+    void shutdownFinished() {
+        shutdownFinished = System.nanoTime();
+    }
+
+    /**
+     * Allocates the timers for a service and listens for it reaching RUNNING and TERMINATED.
+     * Services can be registered at any point, including after startup has begun.
+     */
+    void register(int level, Service service) {
+        levelTimers.computeIfAbsent(level, Timer::new);
+        serviceTimers.put(new Identity(service), listen(level, service));
+    }
+
+    /**
+     * Allocates the timers for a service that startup has just provisioned, with when it was.
+     */
+    void provisioned(int level, Service service, long began, long finished) {
+        levelTimers.computeIfAbsent(level, Timer::new);
+
+        // Filled in before it is published, so a report never sees it half done
+        Timer timer = listen(level, service);
+        timer.provisionBegan = began;
+        timer.provisioned = finished;
+        serviceTimers.put(new Identity(service), timer);
+    }
+
+    void remove(Service service) {
+        serviceTimers.remove(new Identity(service));
+    }
+
+    /**
+     * Gives a fresh instance of a service at the node's level timers of its own, which start with
+     * no timings, in place of the old one's. The old one may already have been removed by a
+     * racing deregistration or restart, the fresh one is registered all the same.
+     */
+    void replace(int level, Service old, Service fresh) {
+        serviceTimers.remove(new Identity(old));
+        register(level, fresh);
+    }
+
+    private Timer listen(final int level, final Service service) {
+        final Timer timer = new Timer(level);
+
+        service.addListener(new Service.Listener() {
+            @Override
+            public void running() {
+                timer.runningAt(System.nanoTime());
+            }
+
+            @Override
+            public void terminated(State from) {
+                timer.terminatedAt(System.nanoTime());
+            }
+
+            @Override
+            public void failed(State from, Throwable failure) {
+                EVENTS.failed(service, level, failure);
+                // A service that fails while starting or stopping never finishes doing so
+                EVENTS.end(timer.startEvent.getAndSet(null));
+                EVENTS.end(timer.stopEvent.getAndSet(null));
+            }
+        }, directExecutor());
+
+        return timer;
+    }
+
+    void startRequested(Service service) {
+        long now = System.nanoTime();
+        Timer timer = timer(service);
+        timer.started = now;
+        timer.startEvent.set(EVENTS.beginStart(service, timer.level));
+
+        Timer levelTimer = levelTimers.get(timer.level);
+        if (levelTimer.started == UNSET) {
+            levelTimer.started = now;
+            levelTimer.startEvent.set(EVENTS.beginLevelStart(timer.level));
+        }
+    }
+
+    void stopRequested(Service service) {
+        long now = System.nanoTime();
+        Timer timer = timer(service);
+        timer.stopped = now;
+        timer.stopEvent.set(EVENTS.beginStop(service, timer.level));
+
+        Timer levelTimer = levelTimers.get(timer.level);
+        if (levelTimer.stopped == UNSET) {
+            levelTimer.stopped = now;
+            levelTimer.stopEvent.set(EVENTS.beginLevelStop(timer.level));
+        }
+    }
+
+    /**
+     * Guava runs listeners after {@link Service#awaitRunning()} has returned, so anything that
+     * awaited a service calls this to make sure the transition is recorded.
+     */
+    void running(Service service) {
+        timer(service).runningAt(System.nanoTime());
+    }
+
+    void terminated(Service service) {
+        timer(service).terminatedAt(System.nanoTime());
+    }
+
+    void warmUpStarted(Service service) {
+        timer(service).warmUpStarted = System.nanoTime();
+    }
+
+    void warmedUp(Service service) {
+        timer(service).warmedUp = System.nanoTime();
+    }
+
+    void stalled(StallSample sample) {
+        stallSamples.add(sample);
+    }
+
+    void levelRunning(int level) {
+        // A level of lazy services can be running before any of them have been provisioned
+        Timer timer = levelTimers.computeIfAbsent(level, Timer::new);
+        timer.running = System.nanoTime();
+        EVENTS.end(timer.startEvent.getAndSet(null));
+    }
+
+    void levelTerminated(int level) {
+        Timer timer = levelTimers.get(level);
+        timer.terminated = System.nanoTime();
+        EVENTS.end(timer.stopEvent.getAndSet(null));
+    }
+
+    LifecycleReport report(ServiceGraph graph) {
+        Map<Service, ServiceTiming> serviceTimings = new IdentityHashMap<>();
+        List<ServiceTiming> services = new ArrayList<>(serviceTimers.size());
+
+        for (Map.Entry<Identity, Timer> entry : serviceTimers.entrySet()) {
+            Service service = entry.getKey().service;
+            Timer timer = entry.getValue();
+            ServiceTiming timing = new ServiceTiming(service, timer.level, offset(timer.provisionBegan),
+                offset(timer.provisioned), offset(timer.started), offset(timer.running), offset(timer.warmUpStarted),
+                offset(timer.warmedUp), offset(timer.stopped), offset(timer.terminated));
+            serviceTimings.put(service, timing);
+            services.add(timing);
+        }
+
+        Collections.sort(services, (a, b) -> Integer.compare(a.getLevel(), b.getLevel()));
+
+        List<LevelTiming> levels = new ArrayList<>(levelTimers.size());
+        for (Timer timer : levelTimers.values()) {
+            levels.add(new LevelTiming(timer.level, offset(timer.started), offset(timer.running),
+                offset(timer.stopped), offset(timer.terminated)));
+        }
+
+        List<ServiceTiming> criticalPath = new ArrayList<>();
+        if (graph != null) {
+            for (Node node : criticalPath(graph)) {
+                criticalPath.add(serviceTimings.get(node.service));
+            }
+        }
+
+        return new LifecycleReport(Collections.unmodifiableList(services), Collections.unmodifiableList(levels),
+            Collections.unmodifiableList(criticalPath), Collections.unmodifiableList(new ArrayList<>(stallSamples)),
+            offset(startupFinished), offset(ready),
+            offset(shutdownBegan), offset(shutdownFinished));
+    }
+
+    /**
+     * Walks back from the last service to be running, at each step moving to whichever
+     * of its dependencies was the last to be running. Barriers stand for the last service
+     * to be running in their level or the levels below.
+     */
+    private List<Node> criticalPath(ServiceGraph graph) {
+        // Nodes are in dependency order, so every dependency is resolved before its dependents
+        Map<Node, Node> lastRunning = new IdentityHashMap<>();
+        Node last = null;
+
+        for (Node node : graph.nodes()) {
+            if (node.isBarrier()) {
+                lastRunning.put(node, latest(node.dependencies, lastRunning));
+            } else if (runningAt(node) != UNSET) {
+                lastRunning.put(node, node);
+                if (last == null || runningAt(node) > runningAt(last)) {
+                    last = node;
+                }
+            }
+        }
+
+        List<Node> path = new ArrayList<>();
+        while (last != null) {
+            path.add(last);
+            last = latest(last.dependencies, lastRunning);
+        }
+
+        return Lists.reverse(path);
+    }
+
+    private Node latest(List<Node> dependencies, Map<Node, Node> lastRunning) {
+        Node latest = null;
+        for (Node dependency : dependencies) {
+            Node candidate = lastRunning.get(dependency);
+            if (candidate != null && (latest == null || runningAt(candidate) > runningAt(latest))) {
+                latest = candidate;
+            }
+        }
+        return latest;
+    }
+
+    private long runningAt(Node node) {
+        Timer timer = node.service == null ? null : timer(node.service);
+        return timer == null ? UNSET : timer.running;
+    }
+
+    private Timer timer(Service service) {
+        return serviceTimers.get(new Identity(service));
+    }
+
+    private long offset(long nanos) {
+        return nanos == UNSET || startupBegan == UNSET ? -1 : nanos - startupBegan;
+    }
+
+    /**
+     * Compares services by identity, since a service may override equals.
+     */
+    private static final class Identity {
+        final Service service;
+
+        Identity(Service service) {
+            this.service = service;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Identity && ((Identity) o).service == service;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(service);
+        }
+    }
+
+    private static final class Timer {
+        final int level;
+        volatile long provisionBegan = UNSET;
+        volatile long provisioned = UNSET;
+        volatile long started = UNSET;
+        volatile long running = UNSET;
+        volatile long warmUpStarted = UNSET;
+        volatile long warmedUp = UNSET;
+        volatile long stopped = UNSET;
+        volatile long terminated = UNSET;
+        // Taken by whichever writer ends the event, so it is only committed once
+        final AtomicReference<Object> startEvent = new AtomicReference<>();
+        final AtomicReference<Object> stopEvent = new AtomicReference<>();
+
+        Timer(int level) {
+            this.level = level;
+        }
+
+        // Racing writers only ever differ by how quickly they saw the transition
+        void runningAt(long nanos) {
+            if (running == UNSET) {
+                running = nanos;
+            }
+            EVENTS.end(startEvent.getAndSet(null));
+        }
+
+        void terminatedAt(long nanos) {
+            if (terminated == UNSET) {
+                terminated = nanos;
+            }
+            EVENTS.end(stopEvent.getAndSet(null));
+        }
+    }
+}
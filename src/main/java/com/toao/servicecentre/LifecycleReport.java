@@ -0,0 +1,354 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings of the last startup and shutdown of a {@link ServiceCentre}.
+ *
+ * All times are nanosecond offsets from the moment the ServiceCentre began starting up,
+ * or -1 if that point in the lifecycle was never reached.
+ */
+public final class LifecycleReport {
+    private final List<ServiceTiming> services;
+    private final List<LevelTiming> levels;
+    private final List<ServiceTiming> criticalPath;
+    private final List<StallSample> stallSamples;
+    private final long startupNanos;
+    private final long readyNanos;
+    private final long shutdownStartNanos;
+    private final long shutdownEndNanos;
+
+    LifecycleReport(List<ServiceTiming> services, List<LevelTiming> levels, List<ServiceTiming> criticalPath,
+                    List<StallSample> stallSamples, long startupNanos, long readyNanos, long shutdownStartNanos,
+                    long shutdownEndNanos) {
+        this.services = services;
+        this.levels = levels;
+        this.criticalPath = criticalPath;
+        this.stallSamples = stallSamples;
+        this.startupNanos = startupNanos;
+        this.readyNanos = readyNanos;
+        this.shutdownStartNanos = shutdownStartNanos;
+        this.shutdownEndNanos = shutdownEndNanos;
+    }
+
+    /**
+     * Timings for every managed service, in level order.
+     */
+    public List<ServiceTiming> getServices() {
+        return services;
+    }
+
+    /**
+     * Timings for every level, lowest first.
+     */
+    public List<LevelTiming> getLevels() {
+        return levels;
+    }
+
+    /**
+     * The chain of services that determined how long startup took, in the order they
+     * started. Each service is the dependency, or the service at the level below, that
+     * was the last to be running before the next service in the chain could start.
+     */
+    public List<ServiceTiming> getCriticalPath() {
+        return criticalPath;
+    }
+
+    /**
+     * Stacks sampled by the watchdog from services that were starting or stopping for longer
+     * than its threshold, oldest first. Empty unless the watchdog is enabled, see
+     * {@link ServiceCentre#setWatchdogThreshold(long, TimeUnit)}.
+     */
+    public List<StallSample> getStallSamples() {
+        return stallSamples;
+    }
+
+    /**
+     * How long it took for the ServiceCentre to provision every service it provisioned itself,
+     * or -1 if it didn't provision any. Services start while others are still being provisioned,
+     * so this overlaps the startup time.
+     */
+    public long getProvisioningTime(TimeUnit unit) {
+        long latest = -1;
+        for (ServiceTiming timing : services) {
+            latest = Math.max(latest, timing.getProvisionedNanos());
+        }
+        return latest < 0 ? -1 : unit.convert(latest, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * How long it took for all services to be running, or -1 if startup didn't complete.
+     */
+    public long getStartupTime(TimeUnit unit) {
+        return startupNanos < 0 ? -1 : unit.convert(startupNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * How long it took for all services to be running and warmed up, or -1 if they weren't.
+     */
+    public long getReadyTime(TimeUnit unit) {
+        return readyNanos < 0 ? -1 : unit.convert(readyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * How long it took for all services to shut down, or -1 if shutdown didn't complete.
+     */
+    public long getShutdownTime(TimeUnit unit) {
+        return between(shutdownStartNanos, shutdownEndNanos, unit);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("startup ").append(getStartupTime(TimeUnit.MILLISECONDS))
+            .append("ms, critical path: ");
+
+        for (int i = 0; i < criticalPath.size(); i++) {
+            ServiceTiming timing = criticalPath.get(i);
+            if (i > 0) {
+                builder.append(" -> ");
+            }
+            builder.append(timing.getName()).append(" (").append(timing.getStartupTime(TimeUnit.MILLISECONDS)).append("ms)");
+        }
+
+        return builder.toString();
+    }
+
+    private static long between(long from, long to, TimeUnit unit) {
+        return from < 0 || to < 0 ? -1 : unit.convert(to - from, TimeUnit.NANOSECONDS);
+    }
+
+    public static final class ServiceTiming {
+        private final Service service;
+        private final int level;
+        private final long provisionBeganNanos;
+        private final long provisionedNanos;
+        private final long startRequestedNanos;
+        private final long runningNanos;
+        private final long warmUpStartedNanos;
+        private final long warmedUpNanos;
+        private final long stopRequestedNanos;
+        private final long terminatedNanos;
+
+        ServiceTiming(Service service, int level, long provisionBeganNanos, long provisionedNanos, long startRequestedNanos,
+                      long runningNanos, long warmUpStartedNanos, long warmedUpNanos, long stopRequestedNanos,
+                      long terminatedNanos) {
+            this.service = service;
+            this.level = level;
+            this.provisionBeganNanos = provisionBeganNanos;
+            this.provisionedNanos = provisionedNanos;
+            this.startRequestedNanos = startRequestedNanos;
+            this.runningNanos = runningNanos;
+            this.warmUpStartedNanos = warmUpStartedNanos;
+            this.warmedUpNanos = warmedUpNanos;
+            this.stopRequestedNanos = stopRequestedNanos;
+            this.terminatedNanos = terminatedNanos;
+        }
+
+        public Service getService() {
+            return service;
+        }
+
+        public String getName() {
+            return service.getClass().getSimpleName();
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * When the ServiceCentre asked Guice for the service, -1 if it was provisioned some other way.
+         */
+        public long getProvisionBeganNanos() {
+            return provisionBeganNanos;
+        }
+
+        /**
+         * When Guice returned the service, -1 if the ServiceCentre didn't provision it.
+         */
+        public long getProvisionedNanos() {
+            return provisionedNanos;
+        }
+
+        /**
+         * When {@link Service#startAsync()} was called.
+         */
+        public long getStartRequestedNanos() {
+            return startRequestedNanos;
+        }
+
+        /**
+         * When the service reached RUNNING.
+         */
+        public long getRunningNanos() {
+            return runningNanos;
+        }
+
+        /**
+         * When {@link WarmUp#warmUp()} was called, -1 if the service doesn't warm up.
+         */
+        public long getWarmUpStartedNanos() {
+            return warmUpStartedNanos;
+        }
+
+        /**
+         * When {@link WarmUp#warmUp()} returned, -1 if it didn't.
+         */
+        public long getWarmedUpNanos() {
+            return warmedUpNanos;
+        }
+
+        /**
+         * When {@link Service#stopAsync()} was called.
+         */
+        public long getStopRequestedNanos() {
+            return stopRequestedNanos;
+        }
+
+        /**
+         * When the service reached TERMINATED.
+         */
+        public long getTerminatedNanos() {
+            return terminatedNanos;
+        }
+
+        public long getProvisioningTime(TimeUnit unit) {
+            return between(provisionBeganNanos, provisionedNanos, unit);
+        }
+
+        public long getStartupTime(TimeUnit unit) {
+            return between(startRequestedNanos, runningNanos, unit);
+        }
+
+        public long getWarmUpTime(TimeUnit unit) {
+            return between(warmUpStartedNanos, warmedUpNanos, unit);
+        }
+
+        public long getShutdownTime(TimeUnit unit) {
+            return between(stopRequestedNanos, terminatedNanos, unit);
+        }
+
+        @Override
+        public String toString() {
+            return getName() + " (level " + level + ", " + getStartupTime(TimeUnit.MILLISECONDS) + "ms)";
+        }
+    }
+
+    /**
+     * What a thread working on a stuck service was doing when the watchdog sampled it.
+     */
+    public static final class StallSample {
+        private final Service service;
+        private final Service.State state;
+        private final long stalledNanos;
+        private final String threadName;
+        private final StackTraceElement[] stackTrace;
+
+        StallSample(Service service, Service.State state, long stalledNanos, String threadName, StackTraceElement[] stackTrace) {
+            this.service = service;
+            this.state = state;
+            this.stalledNanos = stalledNanos;
+            this.threadName = threadName;
+            this.stackTrace = stackTrace;
+        }
+
+        public Service getService() {
+            return service;
+        }
+
+        /**
+         * STARTING or STOPPING.
+         */
+        public Service.State getState() {
+            return state;
+        }
+
+        /**
+         * How long the service had been in its state when it was sampled.
+         */
+        public long getStalledTime(TimeUnit unit) {
+            return unit.convert(stalledNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * The name of the sampled thread, or null if no thread working on the service was found.
+         */
+        public String getThreadName() {
+            return threadName;
+        }
+
+        public StackTraceElement[] getStackTrace() {
+            return stackTrace.clone();
+        }
+
+        @Override
+        public String toString() {
+            return service.getClass().getSimpleName() + " " + state + " for " + getStalledTime(TimeUnit.MILLISECONDS) +
+                "ms" + (threadName == null ? "" : " on " + threadName);
+        }
+    }
+
+    public static final class LevelTiming {
+        private final int level;
+        private final long startNanos;
+        private final long runningNanos;
+        private final long stopNanos;
+        private final long terminatedNanos;
+
+        LevelTiming(int level, long startNanos, long runningNanos, long stopNanos, long terminatedNanos) {
+            this.level = level;
+            this.startNanos = startNanos;
+            this.runningNanos = runningNanos;
+            this.stopNanos = stopNanos;
+            this.terminatedNanos = terminatedNanos;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * When the first service in the level was started.
+         */
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        /**
+         * When every service in this level, and all of the levels below, was running.
+         */
+        public long getRunningNanos() {
+            return runningNanos;
+        }
+
+        public long getStopNanos() {
+            return stopNanos;
+        }
+
+        public long getTerminatedNanos() {
+            return terminatedNanos;
+        }
+
+        /**
+         * How long was spent waiting at the startup barrier for this level.
+         */
+        public long getStartupBarrierTime(TimeUnit unit) {
+            return between(startNanos, runningNanos, unit);
+        }
+
+        /**
+         * How long was spent waiting at the shutdown barrier for this level.
+         */
+        public long getShutdownBarrierTime(TimeUnit unit) {
+            return between(stopNanos, terminatedNanos, unit);
+        }
+
+        @Override
+        public String toString() {
+            return "level " + level + " (" + getStartupBarrierTime(TimeUnit.MILLISECONDS) + "ms)";
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Inject;
+
+import java.util.concurrent.Executor;
+
+/**
+ * An AbstractIdleService that runs startUp() and shutDown() on the shared {@link LifecycleExecutor}
+ * rather than on a new thread each time. Created outside of Guice it behaves like a plain
+ * AbstractIdleService.
+ */
+public abstract class ManagedIdleService extends AbstractIdleService {
+    private volatile LifecycleExecutor lifecycleExecutor;
+
+    @Inject
+    void setLifecycleExecutor(LifecycleExecutor lifecycleExecutor) {
+        this.lifecycleExecutor = lifecycleExecutor;
+    }
+
+    @Override
+    protected Executor executor() {
+        LifecycleExecutor executor = lifecycleExecutor;
+        return executor != null ? executor : super.executor();
+    }
+}
@@ -0,0 +1,81 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adds every managed service in the classpath index to the activeServices multibinding, so
+ * they don't have to be bound one by one. The index is written by the servicecentre-processor
+ * annotation processor for each module it is run on, see {@link ServiceIndex}.
+ *
+ * Services can still be bound by hand as well, a service in both places is only added once if
+ * it is a singleton.
+ */
+public class ManagedServiceModule extends AbstractModule {
+    private static Logger sLogger = LoggerFactory.getLogger(ManagedServiceModule.class);
+
+    private final ClassLoader classLoader;
+    private PackageFilter filter = PackageFilter.ALL;
+
+    public ManagedServiceModule() {
+        this(Thread.currentThread().getContextClassLoader() != null ?
+            Thread.currentThread().getContextClassLoader() : ManagedServiceModule.class.getClassLoader());
+    }
+
+    public ManagedServiceModule(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * Only binds services in these packages or their subpackages.
+     */
+    public ManagedServiceModule onlyIncludePackages(String... packages) {
+        filter = filter.include(packages);
+        return this;
+    }
+
+    /**
+     * Doesn't bind services in these packages or their subpackages, even if they are included.
+     */
+    public ManagedServiceModule excludePackages(String... packages) {
+        filter = filter.exclude(packages);
+        return this;
+    }
+
+    @Override
+    protected void configure() {
+        Multibinder<Service> activeServices = Multibinder
+            .newSetBinder(binder(), Service.class, Names.named("activeServices"))
+            .permitDuplicates();
+
+        int bound = 0;
+
+        for (String name : ServiceIndex.load(classLoader)) {
+            if (!filter.matches(name)) {
+                continue;
+            }
+
+            Class<?> type;
+            try {
+                type = Class.forName(name, false, classLoader);
+            } catch (ClassNotFoundException e) {
+                sLogger.warn("Ignoring {} from an out of date managed service index", name);
+                continue;
+            }
+
+            if (!Service.class.isAssignableFrom(type)) {
+                addError("%s is in the managed service index but does not implement the Guava Service interface", type);
+                continue;
+            }
+
+            activeServices.addBinding().to(type.asSubclass(Service.class));
+            bound++;
+        }
+
+        sLogger.debug("Bound {} indexed managed services ({})", bound, filter);
+    }
+}
@@ -0,0 +1,215 @@
+package com.toao.servicecentre;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.Service;
+import com.google.inject.*;
+import com.google.inject.multibindings.MapBinderBinding;
+import com.google.inject.multibindings.MultibinderBinding;
+import com.google.inject.multibindings.MultibindingsTargetVisitor;
+import com.google.inject.name.Names;
+import com.google.inject.spi.ConstructorBinding;
+import com.google.inject.spi.DefaultBindingTargetVisitor;
+import com.google.inject.spi.LinkedKeyBinding;
+import com.google.inject.util.Providers;
+import com.toao.servicecentre.ServiceCentre.ServiceCentreInitialisationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The services in the activeServices multibinding, checked and sorted into their levels.
+ * Services whose classes don't match the package filter are left out.
+ *
+ * The elements can also be found without provisioning them, through the multibinding's SPI,
+ * so that the ServiceCentre can provision them itself.
+ */
+final class ManagedServices {
+    private static Logger sLogger = LoggerFactory.getLogger(ManagedServices.class);
+
+    static final Key<Set<Service>> ACTIVE_SERVICES_KEY = Key.get(new TypeLiteral<Set<Service>>() {
+    }, Names.named("activeServices"));
+
+    private final Multimap<Integer, Service> byLevel;
+
+    private ManagedServices(Multimap<Integer, Service> byLevel) {
+        this.byLevel = byLevel;
+    }
+
+    Multimap<Integer, Service> byLevel() {
+        return byLevel;
+    }
+
+    static ManagedServices load(Injector injector) {
+        return load(injector, PackageFilter.ALL);
+    }
+
+    static ManagedServices load(Injector injector, PackageFilter filter) {
+        Multimap<Integer, Service> byLevel = ArrayListMultimap.create();
+
+        Set<Service> activeServices;
+
+        try {
+            activeServices = injector.getInstance(ACTIVE_SERVICES_KEY);
+        } catch (ConfigurationException e) {
+            String msg = "Unable to find binding for active services in Guice: " + e.getMessage();
+            sLogger.error(msg, e);
+            throw new ServiceCentreInitialisationException(msg, e);
+        } catch (ProvisionException e) {
+            final String msg = "Guice unable to provide instances of active services. " + e.getMessage();
+            sLogger.error(msg, e);
+            throw new ServiceCentreInitialisationException(msg, e);
+        }
+
+        sLogger.debug("Found {} services in active services set", activeServices.size());
+
+        // Check that each managed service implements Service and add it to its level
+        for (Service activeService : activeServices) {
+            ServiceMetadata metadata = check(activeService.getClass(), filter);
+
+            if (metadata != null) {
+                byLevel.put(metadata.level(), activeService);
+            }
+        }
+
+        return new ManagedServices(byLevel);
+    }
+
+    /**
+     * The elements of the activeServices multibinding, in binding order, with as few of them
+     * provisioned as possible. Elements linked to a class can be checked and placed in the graph
+     * from the class alone. Elements bound to a provider have to be provisioned to find out what
+     * they are, and if activeServices isn't a multibinding the whole set has to be.
+     */
+    static List<Element> elements(Injector injector, PackageFilter filter) {
+        Binding<Set<Service>> setBinding;
+
+        try {
+            setBinding = injector.getBinding(ACTIVE_SERVICES_KEY);
+        } catch (ConfigurationException e) {
+            String msg = "Unable to find binding for active services in Guice: " + e.getMessage();
+            sLogger.error(msg, e);
+            throw new ServiceCentreInitialisationException(msg, e);
+        }
+
+        MultibinderBinding<?> multibinding = setBinding.acceptTargetVisitor(new MultibinderVisitor());
+        List<Element> elements = new ArrayList<>();
+
+        if (multibinding == null) {
+            for (Service service : load(injector, filter).byLevel().values()) {
+                elements.add(new Element(service.getClass().asSubclass(Service.class), Providers.of(service)));
+            }
+            return elements;
+        }
+
+        // Keys of shared instances, and instances that are already provisioned
+        Set<Object> seen = new HashSet<>();
+
+        for (Binding<?> element : multibinding.getElements()) {
+            Binding<?> target = element;
+
+            while (target instanceof LinkedKeyBinding) {
+                target = injector.getBinding(((LinkedKeyBinding<?>) target).getLinkedKey());
+            }
+
+            @SuppressWarnings("unchecked")
+            Provider<? extends Service> provider = (Provider<? extends Service>) element.getProvider();
+            Object identity = null;
+            Class<?> type;
+
+            if (target instanceof ConstructorBinding) {
+                type = target.getKey().getTypeLiteral().getRawType();
+                if (Scopes.isSingleton(target)) {
+                    identity = target.getKey();
+                }
+            } else {
+                Service service = provision(provider);
+                type = service.getClass();
+                provider = Providers.of(service);
+                identity = service;
+            }
+
+            // The set would only hold a shared instance once
+            if (identity != null && !seen.add(identity)) {
+                if (!multibinding.permitsDuplicates()) {
+                    throw new ServiceCentreInitialisationException("Service " + type + " is bound more than once in" +
+                        " active services, which doesn't permit duplicates", null);
+                }
+                continue;
+            }
+
+            if (check(type, filter) != null) {
+                elements.add(new Element(type.asSubclass(Service.class), provider));
+            }
+        }
+
+        sLogger.debug("Found {} services in the active services multibinding", elements.size());
+
+        return elements;
+    }
+
+    static Service provision(Provider<? extends Service> provider) {
+        try {
+            return provider.get();
+        } catch (ProvisionException e) {
+            final String msg = "Guice unable to provide instances of active services. " + e.getMessage();
+            sLogger.error(msg, e);
+            throw new ServiceCentreInitialisationException(msg, e);
+        }
+    }
+
+    /**
+     * Checks that a managed service implements Service and is annotated, returning its metadata,
+     * or null if it is filtered out.
+     */
+    private static ServiceMetadata check(Class<?> type, PackageFilter filter) {
+        if (!filter.matches(type.getName())) {
+            sLogger.debug("Leaving out {}, filtered by {}", type, filter);
+            return null;
+        }
+
+        ServiceMetadata metadata = ServiceMetadata.of(type);
+
+        if (!metadata.isService()) {
+            throw new ServiceCentreInitialisationException("Service " + metadata.type() + " does not implement the Guava Service interface", null);
+        } else if (!metadata.isManaged()) {
+            throw new ServiceCentreInitialisationException("Service " + metadata.type() + " does not contain a ManagedService annotation", null);
+        }
+
+        if (!metadata.isSingleton()) {
+            sLogger.debug("ManagedService {} is not a Singleton.", metadata.type());
+        }
+
+        return metadata;
+    }
+
+    /**
+     * An element of the activeServices multibinding and the class of the service it provides.
+     */
+    static final class Element {
+        final Class<? extends Service> type;
+        final Provider<? extends Service> provider;
+
+        Element(Class<? extends Service> type, Provider<? extends Service> provider) {
+            this.type = type;
+            this.provider = provider;
+        }
+    }
+
+    private static final class MultibinderVisitor extends DefaultBindingTargetVisitor<Set<Service>, MultibinderBinding<?>>
+        implements MultibindingsTargetVisitor<Set<Service>, MultibinderBinding<?>> {
+        @Override
+        public MultibinderBinding<?> visit(MultibinderBinding<? extends Set<Service>> multibinding) {
+            return multibinding;
+        }
+
+        @Override
+        public MultibinderBinding<?> visit(MapBinderBinding<? extends Set<Service>> mapbinding) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.Service.State;
+import com.toao.servicecentre.ServiceCentre.ServicesFailedException;
+import com.toao.servicecentre.ServiceGraph.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Starts a deferred lazy service, along with any lazy services it depends on that are still NEW.
+ *
+ * The other services it depends on, directly or through the levels below it, are waited
+ * for rather than started. Lazy services are started one at a time in dependency order.
+ * If one fails the rest are left NEW, so a later call can try again with whatever
+ * doesn't depend on the failed service.
+ */
+final class OnDemandStarter {
+    private static Logger sLogger = LoggerFactory.getLogger(OnDemandStarter.class);
+
+    private final LifecycleRecorder recorder;
+    private final Map<Node, Integer> order = new IdentityHashMap<>();
+
+    OnDemandStarter(ServiceGraph graph, LifecycleRecorder recorder) {
+        this.recorder = recorder;
+
+        for (Node node : graph.nodes()) {
+            order.put(node, order.size());
+        }
+    }
+
+    /**
+     * Blocks until the node's current service is running.
+     *
+     * @throws ServicesFailedException if it or one of its lazy dependencies fails to start
+     * @throws IllegalStateException   if it or one of its dependencies has already failed or stopped
+     */
+    void start(Node target) {
+        if (target.service.state() == State.RUNNING) {
+            return;
+        }
+
+        if (!target.lazy) {
+            target.service.awaitRunning();
+            return;
+        }
+
+        // Only one subgraph at a time, so each lazy service is only ever started once
+        synchronized (this) {
+            if (target.service.state() == State.RUNNING) {
+                return;
+            }
+
+            List<Node> toStart = new ArrayList<>();
+            List<Node> toAwait = new ArrayList<>();
+            collect(target, toStart, toAwait, Collections.newSetFromMap(new IdentityHashMap<>()));
+
+            toStart.sort(Comparator.comparing(order::get));
+
+            sLogger.info("Starting lazy service {} with {}", target, toStart);
+
+            for (Node node : toAwait) {
+                node.service.awaitRunning();
+            }
+
+            for (Node node : toStart) {
+                startAndAwait(node);
+            }
+        }
+    }
+
+    private void collect(Node node, List<Node> toStart, List<Node> toAwait, Set<Node> visited) {
+        if (!visited.add(node)) {
+            return;
+        }
+
+        if (!node.isBarrier()) {
+            if (!node.lazy || node.service.state() != State.NEW) {
+                toAwait.add(node);
+                // Anything it depends on is already running, or it's about to fail anyway
+                return;
+            }
+            toStart.add(node);
+        }
+
+        for (Node dependency : node.dependencies) {
+            collect(dependency, toStart, toAwait, visited);
+        }
+    }
+
+    private void startAndAwait(Node node) {
+        Deadline deadline = Deadline.after(ServiceMetadata.of(node.service).startupTimeoutMillis(), TimeUnit.MILLISECONDS);
+
+        try {
+            recorder.startRequested(node.service);
+            node.service.startAsync();
+
+            if (deadline.isBounded()) {
+                try {
+                    node.service.awaitRunning(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    node.service.stopAsync();
+                    throw new TimeoutException("Service " + node + " did not start in time");
+                }
+            } else {
+                node.service.awaitRunning();
+            }
+
+            recorder.running(node.service);
+        } catch (Exception e) {
+            Throwable failure = node.service.state() == State.FAILED ? node.service.failureCause() : e;
+            sLogger.error("Lazy service " + node + " failed to start", failure);
+            throw new ServicesFailedException(Collections.singletonMap(node.service, failure));
+        }
+    }
+}
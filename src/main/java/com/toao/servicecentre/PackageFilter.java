@@ -0,0 +1,66 @@
+package com.toao.servicecentre;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Matches class names against packages to include and exclude. A package matches its
+ * subpackages too. With no includes everything not excluded matches, and excludes win.
+ */
+final class PackageFilter {
+    static final PackageFilter ALL = new PackageFilter(Collections.<String>emptyList(), Collections.<String>emptyList());
+
+    private final List<String> includes;
+    private final List<String> excludes;
+
+    private PackageFilter(List<String> includes, List<String> excludes) {
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
+    PackageFilter include(String... packages) {
+        return new PackageFilter(concat(includes, packages), excludes);
+    }
+
+    PackageFilter exclude(String... packages) {
+        return new PackageFilter(includes, concat(excludes, packages));
+    }
+
+    boolean matches(String className) {
+        for (String excluded : excludes) {
+            if (inPackage(className, excluded)) {
+                return false;
+            }
+        }
+
+        if (includes.isEmpty()) {
+            return true;
+        }
+
+        for (String included : includes) {
+            if (inPackage(className, included)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean inPackage(String className, String packageName) {
+        return className.startsWith(packageName) && className.length() > packageName.length() &&
+            className.charAt(packageName.length()) == '.';
+    }
+
+    private static List<String> concat(List<String> existing, String... packages) {
+        List<String> combined = new ArrayList<>(existing);
+        combined.addAll(Arrays.asList(packages));
+        return Collections.unmodifiableList(combined);
+    }
+
+    @Override
+    public String toString() {
+        return "include " + includes + ", exclude " + excludes;
+    }
+}
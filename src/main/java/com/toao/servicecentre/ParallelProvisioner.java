@@ -0,0 +1,178 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Service;
+import com.google.inject.Provider;
+import com.toao.servicecentre.ServiceGraph.Node;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provisions the managed services from their Guice providers on a bounded pool of threads,
+ * so services with expensive constructors are built in parallel instead of one after another.
+ *
+ * Each service is provisioned once everything it depends on in the {@link ServiceGraph} has
+ * been, which is level order or dependency order depending on how the graph was built. The
+ * services it injects are then already built when Guice provisions it, and the lowest levels,
+ * which start first, are provisioned first.
+ *
+ * The node's service is set before its future completes. After a failure, or once it is closed,
+ * nothing else is provisioned and the futures of the services that weren't are cancelled, so
+ * nothing waiting on them is left waiting forever.
+ */
+final class ParallelProvisioner {
+    private final Map<Node, Provider<? extends Service>> providers;
+    private final Map<Node, SettableFuture<Provisioned>> futures = new IdentityHashMap<>();
+    private final Map<Node, Integer> remaining = new IdentityHashMap<>();
+    private final ServiceGraph graph;
+    private final ExecutorService executor;
+    private volatile boolean failed;
+
+    /**
+     * @param providers providers for the nodes that don't have their services yet
+     */
+    ParallelProvisioner(ServiceGraph graph, Map<Node, Provider<? extends Service>> providers, int threads) {
+        this.graph = graph;
+        this.providers = providers;
+
+        for (Node node : providers.keySet()) {
+            futures.put(node, SettableFuture.<Provisioned>create());
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), runnable -> {
+                Thread thread = new Thread(runnable, "ServiceCentre provisioning " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.executor = executor;
+    }
+
+    /**
+     * The future of each node being provisioned, which completes on a provisioning thread.
+     */
+    Map<Node, ListenableFuture<Provisioned>> futures() {
+        return Collections.<Node, ListenableFuture<Provisioned>>unmodifiableMap(futures);
+    }
+
+    void start() {
+        List<Node> ready = new ArrayList<>();
+
+        synchronized (this) {
+            for (Node node : graph.nodes()) {
+                remaining.put(node, node.dependencies.size());
+                if (node.dependencies.isEmpty()) {
+                    ready.add(node);
+                }
+            }
+        }
+
+        for (Node node : ready) {
+            provisionOrSkip(node);
+        }
+    }
+
+    /**
+     * Stops the provisioning threads once they have finished what they are doing, and cancels
+     * the services that haven't been provisioned yet.
+     */
+    void close() {
+        executor.shutdown();
+        cancelUnprovisioned();
+    }
+
+    private void cancelUnprovisioned() {
+        for (SettableFuture<Provisioned> future : futures.values()) {
+            future.cancel(false);
+        }
+    }
+
+    private void provisionOrSkip(Node node) {
+        if (providers.containsKey(node)) {
+            if (executor.isShutdown()) {
+                futures.get(node).cancel(false);
+                return;
+            }
+
+            try {
+                executor.execute(() -> provision(node));
+            } catch (RejectedExecutionException e) {
+                // Closed since
+                futures.get(node).cancel(false);
+            }
+        } else {
+            // Barriers and services that were already provisioned
+            provisioned(node);
+        }
+    }
+
+    private void provision(Node node) {
+        SettableFuture<Provisioned> future = futures.get(node);
+
+        // Cancelled if it was closed while this was queued
+        if (failed || future.isCancelled()) {
+            future.cancel(false);
+            return;
+        }
+
+        long began = System.nanoTime();
+
+        try {
+            Service service = ManagedServices.provision(providers.get(node));
+
+            if (!node.type.isInstance(service)) {
+                throw new IllegalStateException("Guice provided " + service.getClass() + " for " + node.type);
+            }
+
+            node.service = service;
+            future.set(new Provisioned(service, began, System.nanoTime()));
+        } catch (RuntimeException | Error e) {
+            failed = true;
+            future.setException(e);
+            cancelUnprovisioned();
+            return;
+        }
+
+        provisioned(node);
+    }
+
+    private void provisioned(Node node) {
+        List<Node> ready = new ArrayList<>();
+
+        synchronized (this) {
+            for (Node dependent : node.dependents) {
+                if (remaining.merge(dependent, -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+
+        for (Node dependent : ready) {
+            provisionOrSkip(dependent);
+        }
+    }
+
+    /**
+     * A provisioned service and when it was provisioned, from {@link System#nanoTime()}.
+     */
+    static final class Provisioned {
+        final Service service;
+        final long began;
+        final long finished;
+
+        Provisioned(Service service, long began, long finished) {
+            this.service = service;
+            this.began = began;
+            this.finished = finished;
+        }
+    }
+}
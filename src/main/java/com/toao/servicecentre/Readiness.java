@@ -0,0 +1,37 @@
+package com.toao.servicecentre;
+
+/**
+ * Whether a {@link ServiceCentre} should be given traffic. Running only means every service has
+ * started; ready also means every {@link WarmUp} has finished.
+ */
+public enum Readiness {
+    /**
+     * Services are still starting.
+     */
+    STARTING,
+
+    /**
+     * Every service is running and the warm-ups are in progress.
+     */
+    WARMING_UP,
+
+    /**
+     * Every service is running and warmed up.
+     */
+    READY,
+
+    /**
+     * A service failed to start or to warm up.
+     */
+    FAILED,
+
+    /**
+     * The {@link Suspendable} services have been suspended.
+     */
+    SUSPENDED,
+
+    /**
+     * The ServiceCentre is shutting down.
+     */
+    STOPPING
+}
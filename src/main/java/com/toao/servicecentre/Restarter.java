@@ -0,0 +1,160 @@
+package com.toao.servicecentre;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.Service.State;
+import com.toao.servicecentre.ServiceCentre.ServicesFailedException;
+import com.toao.servicecentre.ServiceGraph.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Replaces running services with fresh instances for {@link ServiceCentre#restart(Class)},
+ * along with every service that injects them, while the rest of the ServiceCentre keeps running.
+ *
+ * The services are stopped with the ones that inject them first, then fresh instances are
+ * created by the {@link ServiceProvisioner}, injected with each other's fresh instances, swapped
+ * in by the ServiceCentre and started with the ones they inject first. Each one is taken from
+ * its {@link Supervisor} before it is stopped and handed back once it is running again.
+ */
+final class Restarter {
+    private static Logger sLogger = LoggerFactory.getLogger(Restarter.class);
+
+    private final ServiceCentre serviceCentre;
+    private final ServiceGraph graph;
+    private final ServiceProvisioner provisioner;
+    private final Supervisor supervisor;
+    private final LifecycleRecorder recorder;
+
+    Restarter(ServiceCentre serviceCentre, ServiceGraph graph, ServiceProvisioner provisioner, Supervisor supervisor,
+              LifecycleRecorder recorder) {
+        this.serviceCentre = serviceCentre;
+        this.graph = graph;
+        this.provisioner = provisioner;
+        this.supervisor = supervisor;
+        this.recorder = recorder;
+    }
+
+    /**
+     * @param targets         the nodes of the instances of the service class
+     * @param nodesByOriginal every managed service's node, keyed by the instance the Injector has
+     * @throws IllegalArgumentException if any service that would be restarted can't be created
+     *                                  by the Injector, in which case nothing is stopped
+     * @throws ServicesFailedException  if any of the services can't be created or started again
+     */
+    void restart(Class<? extends Service> serviceClass, List<Node> targets, Map<Service, Node> nodesByOriginal) {
+        List<Node> subtree = graph.injectionSubtree(targets);
+
+        // Checked up front, as there'd be no instance to put back once the service is stopped
+        for (Node node : subtree) {
+            String refusal = provisioner.refusal(node.service.getClass());
+            if (refusal != null) {
+                throw new IllegalArgumentException("Can't restart " + serviceClass.getSimpleName() + ": " + refusal);
+            }
+        }
+
+        sLogger.info("Restarting {} for {}", subtree, serviceClass.getSimpleName());
+
+        Map<Service, Throwable> failedServices = new LinkedHashMap<>();
+        List<Node> toStart = new ArrayList<>();
+        Map<Node, Service> stopped = new IdentityHashMap<>();
+
+        for (Node node : Lists.reverse(subtree)) {
+            // Once released the supervisor can't swap in an instance of its own
+            Service service = supervisor.release(node);
+            stopped.put(node, service);
+
+            if (service.state() == State.NEW) {
+                continue;
+            }
+
+            toStart.add(0, node);
+            recorder.stopRequested(service);
+            service.stopAsync();
+
+            try {
+                ServiceCentre.awaitTerminated(service, Deadline.after(ServiceMetadata.of(service).shutdownTimeoutMillis(), TimeUnit.MILLISECONDS));
+                recorder.terminated(service);
+            } catch (TimeoutException | IllegalStateException e) {
+                // Carry on, the fresh instance doesn't depend on the old one stopping cleanly
+                sLogger.warn("Service {} did not shut down cleanly for the restart", node, e);
+            }
+        }
+
+        // The Injector only knows the original instances, so map them onto the current ones
+        Map<Service, Service> replacements = new IdentityHashMap<>();
+        Map<Node, Service> originals = new IdentityHashMap<>();
+        for (Map.Entry<Service, Node> entry : nodesByOriginal.entrySet()) {
+            replacements.put(entry.getKey(), entry.getValue().service);
+            originals.put(entry.getValue(), entry.getKey());
+        }
+
+        // Services that aren't coming back, which rules out everything that injects them
+        Set<Node> unavailable = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (Node node : subtree) {
+            if (skipIfInjectsUnavailable(node, unavailable, failedServices)) {
+                continue;
+            }
+
+            Service fresh;
+            try {
+                fresh = provisioner.fresh(node.service.getClass(), replacements);
+            } catch (RuntimeException e) {
+                unavailable.add(node);
+                failedServices.put(node.service, e);
+                continue;
+            }
+
+            if (!serviceCentre.replace(node, stopped.get(node), fresh)) {
+                unavailable.add(node);
+                failedServices.put(node.service, new IllegalStateException("The ServiceCentre was stopped during the restart"));
+                continue;
+            }
+
+            replacements.put(originals.get(node), fresh);
+
+            if (!toStart.contains(node)) {
+                supervisor.supervise(node);
+            }
+        }
+
+        for (Node node : toStart) {
+            if (unavailable.contains(node) || skipIfInjectsUnavailable(node, unavailable, failedServices)) {
+                continue;
+            }
+
+            try {
+                recorder.startRequested(node.service);
+                node.service.startAsync();
+                ServiceCentre.awaitRunning(node.service, Deadline.after(ServiceMetadata.of(node.service).startupTimeoutMillis(), TimeUnit.MILLISECONDS));
+                recorder.running(node.service);
+                supervisor.supervise(node);
+            } catch (TimeoutException | IllegalStateException e) {
+                unavailable.add(node);
+                failedServices.put(node.service, node.service.state() == State.FAILED ? node.service.failureCause() : e);
+            }
+        }
+
+        if (!failedServices.isEmpty()) {
+            sLogger.error("Services {} failed to restart", ServiceCentre.getNiceNames(failedServices.keySet()));
+            throw new ServicesFailedException(failedServices);
+        }
+    }
+
+    private boolean skipIfInjectsUnavailable(Node node, Set<Node> unavailable, Map<Service, Throwable> failedServices) {
+        for (Node dependency : graph.injected(node)) {
+            if (unavailable.contains(dependency)) {
+                unavailable.add(node);
+                failedServices.put(node.service, new IllegalStateException("Not restarted as it injects " + dependency + ", which failed to restart"));
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
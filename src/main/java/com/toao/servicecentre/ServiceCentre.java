@@ -3,246 +3,1065 @@ package com.toao.servicecentre;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Service;
-import com.google.inject.*;
-import com.google.inject.name.Names;
-import com.toao.servicecentre.annotations.ManagedService;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.ServiceGraph.Node;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.annotation.Annotation;
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.Map.Entry;
-import java.util.function.Predicate;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.google.common.collect.Iterables.transform;
-import static java.util.stream.Collectors.toSet;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 
 @Singleton
 public class ServiceCentre extends AbstractIdleService {
     private static Logger sLogger = LoggerFactory.getLogger(ServiceCentre.class);
     private final Injector injector;
-    private final Multimap<Integer, Service> services = ArrayListMultimap.create();
+    private final ListMultimap<Integer, Service> services = ArrayListMultimap.create();
+    private final LifecycleRecorder recorder = new LifecycleRecorder();
+    private final ServiceStates serviceStates = new ServiceStates();
+    private final SettableFuture<Void> ready = SettableFuture.create();
+    private volatile StartupOrder startupOrder = StartupOrder.LEVELS;
+    private volatile ServiceGraph graph;
+    private volatile OnDemandStarter onDemandStarter;
+    private volatile LifecycleExecutor lifecycleExecutor;
+    private volatile ObjectName mBeanName;
+    private volatile Supervisor supervisor;
+    private volatile Map<Service, Node> nodesByOriginal = Collections.emptyMap();
+    private final Map<Service, Throwable> escalations = new ConcurrentHashMap<>();
+    // Restarts, registrations and deregistrations happen one at a time
+    private final Object changeLock = new Object();
+    private final List<Service> registeredBeforeStart = new ArrayList<>();
+    private volatile long shutdownTimeoutNanos;
+    private volatile boolean failFast;
+    private volatile int maxConcurrentStarts;
+    private final Map<String, Integer> resourceCapacities = new ConcurrentHashMap<>();
+    private volatile Map<String, Long> expectedStartupMillis = Collections.emptyMap();
+    private volatile Path traceFile;
+    private volatile long watchdogThresholdNanos;
+    private volatile int provisioningThreads = Runtime.getRuntime().availableProcessors();
+    private volatile ListenableFuture<?> provisioning = Futures.immediateFuture(null);
+    private volatile RuntimeException startupFailure;
+    private volatile PackageFilter packageFilter = PackageFilter.ALL;
+    private volatile Path startupHistoryFile;
+    private volatile Map<String, Long> startupHistory = Collections.emptyMap();
+    private volatile long predictedStartupMillis = -1;
+    volatile Thread shutdownHook;
+    private volatile double suspendOnHeapUsage;
+    volatile HeapPressureMonitor heapPressureMonitor;
+    private volatile Suspender suspender;
+    private volatile boolean isSuspended;
+    // Guarded by ready
+    private Readiness readinessBeforeSuspend;
 
     @Inject
     public ServiceCentre(Injector injector) {
         this.injector = injector;
     }
 
+    @Inject
+    void setLifecycleExecutor(LifecycleExecutor lifecycleExecutor) {
+        this.lifecycleExecutor = lifecycleExecutor;
+    }
+
+    /**
+     * The executor shared by the services that extend {@link ManagedIdleService}.
+     */
+    public LifecycleExecutor getLifecycleExecutor() {
+        return lifecycleExecutor;
+    }
+
+    /**
+     * Only manages the active services in these packages or their subpackages. Must be called
+     * before the ServiceCentre is started. To keep services out of the Injector altogether,
+     * filter the {@link ManagedServiceModule} instead.
+     */
+    public void onlyIncludePackages(String... packages) {
+        packageFilter = packageFilter.include(packages);
+    }
+
+    /**
+     * Doesn't manage the active services in these packages or their subpackages, even if they
+     * are included. Must be called before the ServiceCentre is started.
+     */
+    public void excludePackages(String... packages) {
+        packageFilter = packageFilter.exclude(packages);
+    }
+
+    /**
+     * Sets how services are ordered on startup, must be called before the ServiceCentre is started.
+     */
+    public void setStartupOrder(StartupOrder startupOrder) {
+        this.startupOrder = startupOrder;
+    }
+
+    /**
+     * In fail-fast mode startup fails as soon as the first service fails, rather than waiting for
+     * the other services that are starting. The services that were already started are then
+     * stopped in the background, in reverse order. Must be called before the ServiceCentre is started.
+     */
+    public void setFailFast(boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    /**
+     * Limits how long shutdown may take in total. Each level's share is fixed when its first
+     * service begins stopping: the time left, divided equally between it and the levels that
+     * haven't begun yet. Time a level doesn't use goes to the levels that begin after it. When
+     * starting in dependency order the levels overlap, and a level can begin stopping, and have
+     * its share fixed, while the levels above it are still using theirs. Services that don't
+     * terminate in time are reported as failed with a {@link TimeoutException}.
+     */
+    public void setShutdownTimeout(long timeout, TimeUnit unit) {
+        this.shutdownTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * How many threads to provision the managed services on, by default one per processor. Each
+     * service is provisioned once the services before it in the startup order have been, and is
+     * started as soon as it has been. Must be called before the ServiceCentre is started.
+     */
+    public void setProvisioningThreads(int provisioningThreads) {
+        if (provisioningThreads < 1) {
+            throw new IllegalArgumentException("At least 1 provisioning thread is needed, not " + provisioningThreads);
+        }
+        this.provisioningThreads = provisioningThreads;
+    }
+
+    /**
+     * Samples the stacks of services that are STARTING or STOPPING for longer than the threshold
+     * during startup and shutdown, logging them and adding them to the {@link LifecycleReport}.
+     * 0, the default, turns the watchdog off. Must be called before the ServiceCentre is started.
+     */
+    public void setWatchdogThreshold(long threshold, TimeUnit unit) {
+        this.watchdogThresholdNanos = unit.toNanos(threshold);
+    }
+
+    /**
+     * Suspends the {@link Suspendable} services, see {@link #suspend()}, once a garbage collection
+     * leaves a heap memory pool more than this fraction full. Resuming them is left to
+     * {@link #resume()}. 0, the default, turns this off. Must be called before the ServiceCentre
+     * is started.
+     *
+     * The collection usage thresholds belong to the JVM, so ServiceCentres in the same JVM share
+     * them, each still suspending at its own fraction, and whatever thresholds were set before are
+     * put back once the last of them stops.
+     */
+    public void setSuspendOnHeapUsage(double fraction) {
+        if (fraction < 0 || fraction >= 1) {
+            throw new IllegalArgumentException("The heap usage fraction must be at least 0 and less than 1, not " + fraction);
+        }
+        this.suspendOnHeapUsage = fraction;
+    }
+
+    /**
+     * Limits how many services may be starting at once, 0 for no limit. Must be called before the
+     * ServiceCentre is started.
+     */
+    public void setMaxConcurrentStarts(int maxConcurrentStarts) {
+        if (maxConcurrentStarts < 0) {
+            throw new IllegalArgumentException("The concurrent start limit can't be negative, not " + maxConcurrentStarts);
+        }
+        this.maxConcurrentStarts = maxConcurrentStarts;
+    }
+
+    /**
+     * Limits the total weight of the services starting at once that declare the named resource in
+     * {@link com.toao.servicecentre.annotations.ManagedService#resources()}. Resources without a capacity are unlimited. Must be
+     * called before the ServiceCentre is started.
+     */
+    public void setResourceCapacity(String resource, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Resource " + resource + " needs a capacity of at least 1, not " + capacity);
+        }
+        resourceCapacities.put(resource, capacity);
+    }
+
+    /**
+     * How long each service class, by name, is expected to take to start. Services that are ready
+     * at the same time are started longest first. Must be called before the ServiceCentre is started.
+     */
+    public void setExpectedStartupMillis(Map<String, Long> expectedStartupMillis) {
+        this.expectedStartupMillis = new HashMap<>(expectedStartupMillis);
+    }
+
+    /**
+     * Registers the {@link ServiceStates} with the platform MBean server under the given name
+     * while the ServiceCentre is running. Must be called before the ServiceCentre is started.
+     */
+    public void setMBeanName(String name) {
+        try {
+            this.mBeanName = new ObjectName(name);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException("Invalid MBean name " + name, e);
+        }
+    }
+
+    /**
+     * Saves how long each service took to start to the file after each successful startup, and
+     * uses the durations saved by the last run as the expected startup times, see
+     * {@link #setExpectedStartupMillis(Map)}. Durations set explicitly take precedence. Must be
+     * called before the ServiceCentre is started.
+     */
+    public void setStartupHistoryFile(Path startupHistoryFile) {
+        this.startupHistoryFile = startupHistoryFile;
+    }
+
+    /**
+     * How long startup is expected to take from the expected startup times of the services,
+     * or -1 if none are known.
+     */
+    public long getPredictedStartupTime(TimeUnit unit) {
+        long millis = predictedStartupMillis;
+        return millis < 0 ? -1 : unit.convert(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the {@link LifecycleReport} to the file as a Chrome trace, see {@link TraceEventExporter},
+     * once startup has finished and again once shutdown has. Must be called before the ServiceCentre is started.
+     */
+    public void setTraceFile(Path traceFile) {
+        this.traceFile = traceFile;
+    }
+
+    /**
+     * Stops the ServiceCentre when the JVM is asked to exit, for example by a SIGTERM from an
+     * orchestrator, and waits for it to terminate so the services get to drain and stop before
+     * the JVM goes. Set a shutdown timeout within the orchestrator's grace period so the hook
+     * finishes before the process is killed. The hook is removed once the ServiceCentre stops,
+     * or fails, so a ServiceCentre whose startup failed isn't kept around until the JVM exits.
+     */
+    public synchronized void addShutdownHook() {
+        if (shutdownHook != null) {
+            return;
+        }
+
+        addListener(new Listener() {
+            @Override
+            public void failed(State from, Throwable failure) {
+                removeShutdownHook();
+            }
+        }, directExecutor());
+
+        Thread hook = new Thread(() -> {
+            sLogger.info("JVM shutting down, stopping the ServiceCentre");
+            try {
+                stopAsync().awaitTerminated();
+            } catch (IllegalStateException e) {
+                sLogger.error("ServiceCentre failed to shut down cleanly", e);
+            }
+        }, "ServiceCentre shutdown hook");
+
+        Runtime.getRuntime().addShutdownHook(hook);
+        shutdownHook = hook;
+    }
+
+    /**
+     * Returns live counts of the managed services in each state. Empty until the ServiceCentre is started.
+     */
+    public ServiceStates getServiceStates() {
+        return serviceStates;
+    }
+
+    /**
+     * Completes once every service is running and every {@link WarmUp} has finished. Fails with
+     * a {@link ServicesFailedException} if a service fails to start or to warm up. The current
+     * {@link Readiness} is available from {@link ServiceStates#getReadiness()}.
+     */
+    public ListenableFuture<Void> getReadyFuture() {
+        return ready;
+    }
+
+    /**
+     * Returns the timings of each service and level so far. Can be called at any point,
+     * anything that hasn't happened yet is reported as -1.
+     */
+    public LifecycleReport getLifecycleReport() {
+        return recorder.report(graph);
+    }
+
+    /**
+     * Starts a lazy service and the lazy services it depends on, blocking until it is running.
+     * Used by {@link LazyServiceProvider} the first time a lazy service is called.
+     *
+     * @throws IllegalStateException if the ServiceCentre hasn't been started or failed to start
+     */
+    void startOnDemand(Service original) {
+        OnDemandStarter starter = onDemandStarter;
+
+        if (starter == null) {
+            throw new IllegalStateException("Lazy service " + original.getClass().getSimpleName() +
+                " was called before the ServiceCentre was started");
+        }
+
+        Node node = nodesByOriginal.get(original);
+
+        if (node == null && state() == State.STARTING) {
+            node = provisionedNode(original);
+        }
+
+        RuntimeException failure = startupFailure;
+
+        if (failure != null) {
+            // The services it depends on may never be started, so don't wait for them
+            throw new IllegalStateException("Lazy service " + original.getClass().getSimpleName() +
+                " can't be started, the ServiceCentre failed to start", failure);
+        }
+
+        if (node == null) {
+            original.awaitRunning();
+        } else {
+            starter.start(node);
+        }
+    }
+
+    /**
+     * Finds a service's node while startup is still provisioning, once every service has been.
+     */
+    private Node provisionedNode(Service service) {
+        try {
+            Uninterruptibles.getUninterruptibly(provisioning);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Service " + service.getClass().getSimpleName() +
+                " can't be started, the managed services couldn't all be provisioned", e.getCause());
+        } catch (CancellationException e) {
+            throw new IllegalStateException("Service " + service.getClass().getSimpleName() +
+                " can't be started, startup finished before it was provisioned", startupFailure);
+        }
+
+        for (Node node : graph.nodes()) {
+            if (node.service == service) {
+                return node;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    protected Executor executor() {
+        // Startup holds its thread until every service is running, so only borrow one if it's free
+        LifecycleExecutor executor = lifecycleExecutor;
+        return executor != null && executor.isVirtual() ? executor : super.executor();
+    }
+
     protected void startUp() {
         long start = System.currentTimeMillis();
+        recorder.startupBegan();
 
-        TypeLiteral<Set<Service>> serviceTypeLiteral = new TypeLiteral<Set<Service>>() {
-        };
-        Key<Set<Service>> activeServicesKey = Key.get(serviceTypeLiteral, Names.named("activeServices"));
+        // Only the classes are needed for the graph, the services are provisioned while it starts them
+        List<Node> serviceNodes = new ArrayList<>();
+        Map<Node, Provider<? extends Service>> providers = new IdentityHashMap<>();
 
-        Set<Service> activeServices = injector.getInstance(activeServicesKey);
+        for (ManagedServices.Element element : ManagedServices.elements(injector, packageFilter)) {
+            ServiceMetadata metadata = ServiceMetadata.of(element.type);
+            Node node = new Node(element.type, null, metadata.level(), metadata.isLazy());
 
-        Set<Class<?>> boundClasses = activeServices.stream().map(Object::getClass).collect(toSet());
+            serviceNodes.add(node);
+            providers.put(node, element.provider);
+        }
 
-        sLogger.debug("Found {} services in active services set", activeServices.size());
+        synchronized (changeLock) {
+            for (Service service : registeredBeforeStart) {
+                ServiceMetadata metadata = ServiceMetadata.of(service);
+                Node node = new Node(service.getClass(), service, metadata.level(), metadata.isLazy());
 
-        // Check that each managed service implements Service
-        for (Class<?> boundService : boundClasses) {
-            boolean hasService = checkHierarchy(boundService, klass -> Service.class.isAssignableFrom(klass));
-            boolean hasManagedService = checkHierarchy(boundService, klass -> klass.isAnnotationPresent(ManagedService.class));
+                serviceNodes.add(node);
+                recorder.register(node.level, service);
+                track(node);
+            }
+        }
+
+        registerMBean();
+
+        // Build the graph to start them from, which only has the barriers
+        // between levels unless we're starting in dependency order.
+        graph = ServiceGraph.build(injector, serviceNodes, startupOrder == StartupOrder.DEPENDENCIES);
+        onDemandStarter = new OnDemandStarter(graph, recorder);
+        suspender = new Suspender(graph, lifecycleExecutor);
 
-            sLogger.debug("ManageService annotated type {} implements Service interface = {}", boundService.getSimpleName(), hasService);
+        if (startupOrder == StartupOrder.DEPENDENCIES) {
+            sLogger.info("Starting {} services in dependency order", serviceNodes.size());
+        } else {
+            ListMultimap<Integer, Node> byLevel = ArrayListMultimap.create();
+            for (Node node : serviceNodes) {
+                byLevel.put(node.level, node);
+            }
+
+            List<Integer> levels = Lists.newArrayList(byLevel.keySet());
 
-            if (!hasService) {
-                throw new ServiceCentreInitialisationException("Service " + boundService + " does not implement the Guava Service interface", null);
-            } else if (!hasManagedService) {
-                throw new ServiceCentreInitialisationException("Service " + boundService + " does not contain a ManagedService annotation", null);
+            Collections.sort(levels);
+
+            for (int level : levels) {
+                sLogger.info("Level {} has services: {}", level, Joiner.on(",").join(byLevel.get(level)));
             }
         }
 
-        // Add all the classes to their appropriate level
-        for (Service activeService : activeServices) {
-            // Figure out which level, from the annotation
-            Optional<ManagedService> managedServiceAnnotationOptional = getAnnotationFromHierarchy(activeService.getClass(), ManagedService.class);
+        Map<String, Long> expected = expectedStartupMillis;
+        Path historyFile = startupHistoryFile;
 
-            if (managedServiceAnnotationOptional.isPresent()) {
-                int level = managedServiceAnnotationOptional.get().level();
-                // We have the level, now we need to get an instance of the class that actually
-                // is bound to this interface in Guice.
-                try {
-                    if (sLogger.isDebugEnabled()) {
-                        Class<? extends Service> serviceKlass = activeService.getClass();
+        if (historyFile != null) {
+            startupHistory = StartupHistory.load(historyFile);
+            expected = new HashMap<>(startupHistory);
+            expected.putAll(expectedStartupMillis);
+        }
 
-                        boolean hasSingletonAnnotation = checkHierarchy(serviceKlass, klass -> klass.getAnnotation(javax.inject.Singleton.class) != null || klass.getAnnotation(com.google.inject.Singleton.class) != null);
+        StartupBudget budget = new StartupBudget(maxConcurrentStarts, new HashMap<>(resourceCapacities), expected);
 
-                        if (!(hasSingletonAnnotation)) {
-                            sLogger.debug("Instance of ManagedService " + activeService + " (" + serviceKlass + ") is not a Singleton.");
-                        }
-                    }
+        if (!expected.isEmpty()) {
+            predictedStartupMillis = StartupHistory.predictMillis(graph, budget);
+            sLogger.info("Expecting startup to take about {}ms", predictedStartupMillis);
+        }
 
-                    services.put(level, activeService);
-                } catch (ConfigurationException e) {
-                    String msg = "Unable to find binding for service " + activeService + " in Guice: " + e.getMessage();
-                    sLogger.error(msg, e);
-                    throw new ServiceCentreInitialisationException(msg, e);
-                } catch (ProvisionException e) {
-                    final String msg = "Guice unable to provide instance of service: " + activeService + ". " + e.getMessage();
-                    sLogger.error(msg, e);
-                    throw new ServiceCentreInitialisationException(msg, e);
-                }
-            } else {
-                throw new ServiceCentreInitialisationException("Could not find managed service annotation on class " + activeService.getClass() + " or its parents", null);
+        ParallelProvisioner provisioner = new ParallelProvisioner(graph, providers, provisioningThreads);
+        provisioning = Futures.allAsList(provisioner.futures().values());
+        Watchdog watchdog = startWatchdog();
+
+        try {
+            provisioner.start();
+            new StartupScheduler(graph, recorder, failFast, budget, provisioner.futures(), this::track).run();
+        } catch (RuntimeException e) {
+            // Before the provisioner is closed, so lazy starts woken by that see the failure
+            startupFailure = e;
+            becomeReady(Readiness.FAILED, e);
+            throw e;
+        } finally {
+            provisioner.close();
+
+            if (watchdog != null) {
+                watchdog.close();
             }
         }
 
-        // Now we should have all of the classes implementing the service interfaces
-        // in our multimap. Now we need to get a sorted list of all the levels and
-        // then start each level.
-
-        List<Integer> levels = Lists.newArrayList(services.keySet());
+        Map<Service, Node> nodes = new IdentityHashMap<>();
+        for (Node node : graph.nodes()) {
+            if (!node.isBarrier()) {
+                nodes.put(node.service, node);
+            }
+        }
+        nodesByOriginal = nodes;
 
-        Collections.sort(levels);
+        startupFinished(start);
+        warmUp();
+    }
 
-        for (int level : levels) {
-            Collection<Service> levelServices = services.get(level);
+    private void warmUp() {
+        serviceStates.setReadiness(Readiness.WARMING_UP);
+        final long start = System.currentTimeMillis();
 
-            String names = getNiceNames(levelServices);
+        Futures.addCallback(new WarmUpRunner(graph, recorder, lifecycleExecutor).run(), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                recorder.ready();
+                sLogger.info("All services warmed up in {}ms", (System.currentTimeMillis() - start));
 
-            sLogger.info("Starting level {} with services: {}", level, names);
+                becomeReady(Readiness.READY, null);
+            }
 
-            Map<Service, Throwable> failedServices = Collections.synchronizedMap(new HashMap<Service, Throwable>());
+            @Override
+            public void onFailure(Throwable t) {
+                becomeReady(Readiness.FAILED, t);
+            }
+        }, directExecutor());
+    }
 
-            Set<Service> services = Sets.newHashSet();
+    /**
+     * Sets the readiness before completing the future, so anything waiting on it sees the new state.
+     * Only the first outcome counts, so a warm-up finishing during shutdown doesn't report ready.
+     */
+    private void becomeReady(Readiness readiness, Throwable failure) {
+        synchronized (ready) {
+            if (ready.isDone()) {
+                return;
+            }
 
-            // Start each service and add the ListenableFuture to the set of
-            // futures to wait for
-            for (final Service levelService : levelServices) {
-                sLogger.debug("Starting service {} at level {}", levelService.getClass().getSimpleName(), level);
-                try {
-                    levelService.startAsync();
-                } catch (Exception e) {
-                    // We may get an error as soon as we call start(), need to deal with it
-                    failedServices.put(levelService, e);
-                }
+            if (isSuspended && readiness != Readiness.STOPPING) {
+                // Reported once the services are resumed
+                readinessBeforeSuspend = readiness;
+            } else {
+                serviceStates.setReadiness(readiness);
             }
 
-            // Now wait for all my lovelies to complete
-            for (Service service : levelServices) {
-                try {
-                    sLogger.debug("startUp - awaiting startup of Service: {}", service.getClass().getSimpleName());
-                    service.awaitRunning();
-                } catch (Exception e) {
-                    failedServices.put(service, e);
-                }
+            if (failure == null) {
+                ready.set(null);
+            } else {
+                ready.setException(failure);
             }
+        }
+    }
 
-            // Check to see if there were any failed services
-            if (failedServices.size() > 0) {
-                sLogger.error("Services {} failed startup at level {}", getNiceNames(failedServices.keySet()), level);
-                for (Entry<Service, Throwable> entry : failedServices.entrySet()) {
-                    sLogger.error("Service " + entry.getKey() + " failed with exception: " + entry.getValue(), entry.getValue());
-                }
-                throw new ServicesFailedException(failedServices);
+    /**
+     * Starts counting a service that startup has provisioned, or that was registered before it.
+     */
+    private void track(Node node) {
+        synchronized (services) {
+            services.put(node.level, node.service);
+        }
+
+        serviceStates.add(node.level, node.service);
+    }
+
+    /**
+     * Starts watching the services for startup or shutdown getting stuck, or returns null if
+     * the watchdog is turned off.
+     */
+    private Watchdog startWatchdog() {
+        long threshold = watchdogThresholdNanos;
+
+        if (threshold <= 0) {
+            return null;
+        }
+
+        return new Watchdog(() -> {
+            synchronized (services) {
+                return new ArrayList<>(services.values());
             }
+        }, recorder, threshold);
+    }
+
+    private void startupFinished(long start) {
+        recorder.startupFinished();
 
+        supervisor = new Supervisor(this, new ServiceProvisioner(injector), recorder);
+        for (Node node : nodesByOriginal.values()) {
+            supervisor.supervise(node);
         }
 
         sLogger.info("All services started successfully in {}ms", (System.currentTimeMillis() - start));
+
+        if (sLogger.isInfoEnabled()) {
+            sLogger.info("Lifecycle report: {}", getLifecycleReport());
+        }
+
+        Path historyFile = startupHistoryFile;
+        if (historyFile != null) {
+            StartupHistory.save(historyFile, getLifecycleReport(), startupHistory);
+        }
+
+        if (suspendOnHeapUsage > 0) {
+            heapPressureMonitor = new HeapPressureMonitor(suspendOnHeapUsage, this::suspendOnHeapPressure);
+        }
+
+        writeTrace();
+    }
+
+    private void suspendOnHeapPressure() {
+        if (state() != State.RUNNING || isSuspended) {
+            return;
+        }
+
+        try {
+            suspend();
+        } catch (RuntimeException e) {
+            sLogger.error("Unable to suspend services on heap usage", e);
+        }
+    }
+
+    private void writeTrace() {
+        Path file = traceFile;
+
+        if (file != null) {
+            try {
+                TraceEventExporter.write(getLifecycleReport(), file);
+            } catch (IOException e) {
+                sLogger.warn("Unable to write the lifecycle trace to {}", file, e);
+            }
+        }
     }
 
 
     protected void shutDown() {
         long start = System.currentTimeMillis();
-        // Need to go through all our levels backwards
-        List<Integer> levels = Lists.newArrayList(services.keySet());
+        recorder.shutdownBegan();
+        becomeReady(Readiness.STOPPING, new IllegalStateException("The ServiceCentre was stopped before it was ready"));
+        serviceStates.setReadiness(Readiness.STOPPING);
 
-        Collections.sort(levels);
+        if (supervisor != null) {
+            supervisor.close();
+        }
 
-        levels = Lists.reverse(levels);
+        if (heapPressureMonitor != null) {
+            heapPressureMonitor.close();
+        }
 
         // Here the failed services is only thrown at the end, since we still want
         // to shutdown all of our services, even if some other ones throw an exception
         // earlier.
-        Map<Service, Throwable> failedServices = Collections.synchronizedMap(new HashMap<Service, Throwable>());
+        Map<Service, Throwable> failedServices = new LinkedHashMap<>();
 
-        int previousLevelFailures = 0;
+        // Services the supervisor gave up on fail the shutdown, even if they stopped cleanly
+        failedServices.putAll(escalations);
 
-        for (int level : levels) {
-            Collection<Service> levelServices = services.get(level);
+        Deadline shutdownDeadline = Deadline.after(shutdownTimeoutNanos, TimeUnit.NANOSECONDS);
 
-            String names = getNiceNames(levelServices);
+        Watchdog watchdog = startWatchdog();
 
-            sLogger.info("Shutting down level {} with services: {}", level, names);
+        // Once the supervisor is closed nothing else will be replaced, registered or deregistered
+        Map<Service, Throwable> stopFailures = new ShutdownScheduler(graph, recorder, lifecycleExecutor, shutdownDeadline).run();
 
-            // Start each service and add the ListenableFuture to the set of
-            // futures to wait for
-            for (final Service levelService : levelServices) {
-                levelService.stopAsync();
-            }
+        if (!stopFailures.isEmpty()) {
+            sLogger.error("Services {} failed shutdown", getNiceNames(stopFailures.keySet()));
+            failedServices.putAll(stopFailures);
+        }
+
+        if (watchdog != null) {
+            watchdog.close();
+        }
 
-            // Now wait for all my lovelies to stop
-            for (Service service : levelServices) {
-                try {
-                    sLogger.debug("Checking service {} has shut down..", service.getClass().getSimpleName());
-                    service.awaitTerminated();
-                } catch (Exception e) {
-                    sLogger.info("Got exception: {} trying to shut down service {}", e.getCause(), service.getClass().getSimpleName());
-                    failedServices.put(service, e);
+        recorder.shutdownFinished();
+        unregisterMBean();
+        removeShutdownHook();
+        writeTrace();
+
+        if (failedServices.size() > 0) {
+            throw new ServicesFailedException(failedServices);
+        }
+
+        sLogger.info("All services shut down successfully in {}ms", (System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Replaces the running instances of a managed service class with fresh ones from the Injector,
+     * along with every service that injects them, without stopping anything else.
+     *
+     * The services are stopped with the ones that inject them first, then fresh instances are
+     * created, injected with each other's fresh instances, and started with the ones they
+     * inject first. Lazy services that haven't been started are replaced but left NEW.
+     *
+     * A service that can't be created or started again doesn't stop the rest of the restart:
+     * the others are still started, except for those that inject it, which are left stopped and
+     * reported as failed along with it. Only the services that are running again, and lazy ones
+     * left NEW, go back under supervision.
+     *
+     * @throws IllegalArgumentException if no managed service is an instance of the class, or if
+     *                                  any service that would be restarted can't be created by
+     *                                  the Injector, in which case nothing is stopped
+     * @throws ServicesFailedException  if any of the services can't be created or started again
+     */
+    public void restart(Class<? extends Service> serviceClass) {
+        if (state() != State.RUNNING) {
+            throw new IllegalStateException("Services can only be restarted while the ServiceCentre is running, it is " + state());
+        }
+
+        synchronized (changeLock) {
+            List<Node> targets = new ArrayList<>();
+            for (Node node : nodesByOriginal.values()) {
+                if (serviceClass.isInstance(node.service)) {
+                    targets.add(node);
                 }
             }
 
-            // Check to see if there were any failed services
-            if (failedServices.size() > previousLevelFailures) {
-                sLogger.error("Services {} failed shutdown at level {}", getNiceNames(failedServices.keySet()), level);
-                previousLevelFailures = failedServices.size();
+            if (targets.isEmpty()) {
+                throw new IllegalArgumentException("No managed service is an instance of " + serviceClass);
             }
+
+            new Restarter(this, graph, new ServiceProvisioner(injector), supervisor, recorder)
+                .restart(serviceClass, targets, nodesByOriginal);
         }
+    }
 
-        if (failedServices.size() > 0) {
-            throw new ServicesFailedException(failedServices);
+    /**
+     * Suspends the running {@link Suspendable} services so they release their resources while
+     * idle, without stopping them or losing their instances. The levels are suspended from the
+     * highest down, with the services in each level in parallel. The readiness is
+     * {@link Readiness#SUSPENDED} until {@link #resume()} is called. Does nothing if the services
+     * are already suspended.
+     *
+     * Services registered while suspended aren't suspended, and restarted services come back
+     * unsuspended.
+     *
+     * @throws ServicesFailedException if any of the services fail to suspend, in which case the
+     *                                 rest are still suspended and can be resumed as usual
+     */
+    public void suspend() {
+        if (state() != State.RUNNING) {
+            throw new IllegalStateException("Services can only be suspended while the ServiceCentre is running, it is " + state());
         }
 
-        sLogger.info("All services shut down successfully in {}ms", (System.currentTimeMillis() - start));
+        synchronized (changeLock) {
+            if (isSuspended) {
+                return;
+            }
+
+            synchronized (ready) {
+                isSuspended = true;
+                readinessBeforeSuspend = serviceStates.getReadiness();
+                serviceStates.setReadiness(Readiness.SUSPENDED);
+            }
+
+            suspender.suspend();
+        }
     }
 
-    private static String getNiceNames(Collection<Service> levelServices) {
-        return Joiner.on(",").join(transform(levelServices, new Function<Service, String>() {
-            public String apply(Service service) {
-                return service.getClass().getSimpleName();
+    /**
+     * Resumes the services suspended by {@link #suspend()}, from the lowest level up with the
+     * services in each level in parallel, and restores the readiness. Does nothing if the
+     * services aren't suspended.
+     *
+     * @throws ServicesFailedException if any of the services fail to resume, in which case the
+     *                                 rest are still resumed
+     */
+    public void resume() {
+        if (state() != State.RUNNING) {
+            throw new IllegalStateException("Services can only be resumed while the ServiceCentre is running, it is " + state());
+        }
+
+        synchronized (changeLock) {
+            if (!isSuspended) {
+                return;
             }
-        }));
+
+            try {
+                suspender.resume();
+            } finally {
+                synchronized (ready) {
+                    isSuspended = false;
+                    if (serviceStates.getReadiness() == Readiness.SUSPENDED) {
+                        serviceStates.setReadiness(readinessBeforeSuspend);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the services have been suspended by {@link #suspend()} and not yet resumed.
+     */
+    public boolean isSuspended() {
+        return isSuspended;
+    }
+
+    /**
+     * Adds a service to the ones the ServiceCentre manages. Before the ServiceCentre is started
+     * the service is simply started and stopped with the rest. While it is running the service
+     * is started straight away, after any lazy services it injects, and blocks until it is
+     * running. Either way it is stopped with its level on shutdown.
+     *
+     * A service registered while running depends on the managed services it injects but nothing
+     * depends on it, and it is started even if it is lazy.
+     *
+     * @throws IllegalArgumentException if the service has no {@link com.toao.servicecentre.annotations.ManagedService}
+     *                                  annotation or is already managed
+     * @throws IllegalStateException    if the ServiceCentre is starting or stopping
+     * @throws ServicesFailedException  if the service fails to start, in which case it isn't registered
+     */
+    public void register(Service service) {
+        ServiceMetadata metadata = ServiceMetadata.of(service);
+
+        if (!metadata.isManaged()) {
+            throw new IllegalArgumentException("Service " + metadata.type() + " does not contain a ManagedService annotation");
+        }
+
+        synchronized (changeLock) {
+            State state = state();
+
+            if (state == State.NEW) {
+                if (registeredBeforeStart.contains(service)) {
+                    throw new IllegalArgumentException("Service " + service + " is already registered");
+                }
+                registeredBeforeStart.add(service);
+                return;
+            } else if (state != State.RUNNING) {
+                throw new IllegalStateException("Services can only be registered while the ServiceCentre is running, it is " + state);
+            } else if (nodeFor(service) != null) {
+                throw new IllegalArgumentException("Service " + service + " is already managed");
+            }
+
+            int level = metadata.level();
+            Node node;
+
+            synchronized (services) {
+                if (supervisor.isClosed()) {
+                    throw new IllegalStateException("The ServiceCentre is stopping");
+                }
+
+                node = graph.add(service, level);
+                services.put(level, service);
+                recorder.register(level, service);
+                serviceStates.add(level, service);
+
+                Map<Service, Node> nodes = new IdentityHashMap<>(nodesByOriginal);
+                nodes.put(service, node);
+                nodesByOriginal = nodes;
+            }
+
+            sLogger.info("Registering service {} at level {} after {}", node, level, node.dependencies);
+
+            try {
+                // Everything else it injects is already running
+                for (Node dependency : node.dependencies) {
+                    if (dependency.lazy) {
+                        onDemandStarter.start(dependency);
+                    }
+                }
+
+                recorder.startRequested(service);
+                service.startAsync();
+                awaitRunning(service, Deadline.after(metadata.startupTimeoutMillis(), TimeUnit.MILLISECONDS));
+                recorder.running(service);
+            } catch (TimeoutException | RuntimeException e) {
+                Throwable failure = service.state() == State.FAILED ? service.failureCause() : e;
+                sLogger.error("Registered service {} failed to start", node, failure);
+
+                service.stopAsync();
+                forget(node);
+                throw new ServicesFailedException(Collections.singletonMap(service, failure));
+            }
+
+            supervisor.supervise(node);
+        }
+    }
+
+    /**
+     * Stops a service and stops managing it. Either the registered instance or the current
+     * instance, if its supervisor has replaced it, can be given.
+     *
+     * @throws IllegalArgumentException if the service isn't managed
+     * @throws IllegalStateException    if other managed services inject it, or the ServiceCentre is starting
+     * @throws ServicesFailedException  if the service fails to stop in time, it is no longer managed either way
+     */
+    public void deregister(Service service) {
+        synchronized (changeLock) {
+            State state = state();
+
+            if (state == State.NEW) {
+                if (!registeredBeforeStart.remove(service)) {
+                    throw new IllegalArgumentException("Service " + service + " is not registered");
+                }
+                return;
+            } else if (state == State.STARTING) {
+                throw new IllegalStateException("Services can't be deregistered while the ServiceCentre is starting");
+            }
+
+            Node node = nodeFor(service);
+
+            if (node == null) {
+                throw new IllegalArgumentException("Service " + service + " is not managed");
+            }
+
+            List<Node> dependents = new ArrayList<>(graph.injectionSubtree(Collections.singleton(node)));
+            dependents.remove(node);
+
+            if (!dependents.isEmpty()) {
+                throw new IllegalStateException("Service " + node + " can't be deregistered, it is injected by " + dependents);
+            }
+
+            // Released first, so a pending supervisor restart can't swap in an instance that is never stopped
+            Service current = supervisor != null ? supervisor.release(node) : node.service;
+            Throwable failure = null;
+
+            sLogger.info("Deregistering service {}", node);
+
+            if (current.state() != State.NEW) {
+                recorder.stopRequested(current);
+            }
+            current.stopAsync();
+
+            try {
+                awaitTerminated(current, Deadline.after(ServiceMetadata.of(current).shutdownTimeoutMillis(), TimeUnit.MILLISECONDS));
+                recorder.terminated(current);
+            } catch (TimeoutException | IllegalStateException e) {
+                failure = e;
+            }
+
+            forget(node);
+
+            if (failure != null) {
+                throw new ServicesFailedException(Collections.singletonMap(current, failure));
+            }
+        }
     }
 
-    private <T extends Annotation> Optional<T> getAnnotationFromHierarchy(Class klass, Class<T> annotation) {
-        do {
-            sLogger.debug("getAnnotationFromHierachy - looking for annotation {} in {}", annotation, klass);
+    private Node nodeFor(Service service) {
+        Node node = nodesByOriginal.get(service);
 
-            if (klass.isAnnotationPresent(annotation)) {
-                return Optional.of(annotation.cast(klass.getAnnotation(annotation)));
+        if (node == null) {
+            for (Node candidate : nodesByOriginal.values()) {
+                if (candidate.service == service) {
+                    return candidate;
+                }
             }
+        }
+
+        return node;
+    }
+
+    private void forget(Node node) {
+        synchronized (services) {
+            Service service = node.service;
 
-            klass = klass.getSuperclass();
+            services.remove(node.level, service);
+            graph.remove(node);
+            recorder.remove(service);
+            serviceStates.remove(service);
+
+            Map<Service, Node> nodes = new IdentityHashMap<>(nodesByOriginal);
+            nodes.values().remove(node);
+            nodesByOriginal = nodes;
         }
-        while (klass != null);
+    }
 
-        return Optional.empty();
+    /**
+     * The current instance of a managed service, which is a fresh one if the original has been
+     * replaced by its supervisor.
+     */
+    Service currentInstance(Service original) {
+        Node node = nodesByOriginal.get(original);
+        return node != null ? node.service : original;
     }
 
-    private boolean checkHierarchy(Class klass, Predicate<Class> check) {
-        do {
-            sLogger.debug("checkHierarchy - testing class {}", klass);
-            boolean result = check.test(klass);
-            sLogger.debug("checkHierarchy - result: {}", result);
+    /**
+     * Swaps a fresh instance in for the expected one at the node. Refused if the ServiceCentre is
+     * shutting down, or the node no longer has the expected instance or has been deregistered.
+     */
+    boolean replace(Node node, Service expected, Service fresh) {
+        synchronized (services) {
+            if (supervisor == null || supervisor.isClosed() || node.service != expected) {
+                return false;
+            }
+
+            Service old = node.service;
+            List<Service> levelServices = services.get(node.level);
 
-            if (result) {
-                return true;
+            int index = -1;
+            for (int i = 0; i < levelServices.size() && index < 0; i++) {
+                if (levelServices.get(i) == old) {
+                    index = i;
+                }
+            }
+
+            if (index < 0) {
+                return false;
             }
 
-            klass = klass.getSuperclass();
+            levelServices.set(index, fresh);
+
+            node.service = fresh;
+            recorder.replace(node.level, old, fresh);
+            serviceStates.replace(node.level, old, fresh);
+        }
+
+        return true;
+    }
+
+    /**
+     * Shuts the ServiceCentre down because a supervised service couldn't be kept running.
+     */
+    void escalate(Service service, Throwable cause) {
+        sLogger.error("Stopping the ServiceCentre, supervised service {} could not be kept running",
+            service.getClass().getSimpleName());
+
+        escalations.put(service, cause);
+        stopAsync();
+    }
+
+    private void registerMBean() {
+        if (mBeanName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(serviceStates, mBeanName);
+        } catch (JMException e) {
+            // Not worth failing startup over
+            sLogger.warn("Unable to register MBean " + mBeanName, e);
         }
-        while (klass != null);
+    }
+
+    private void removeShutdownHook() {
+        Thread hook = shutdownHook;
+        if (hook == null) {
+            return;
+        }
+
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException e) {
+            // The JVM is already shutting down, so the hook is running or about to
+        }
+    }
+
+    private void unregisterMBean() {
+        if (mBeanName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mBeanName);
+        } catch (JMException e) {
+            sLogger.warn("Unable to unregister MBean " + mBeanName, e);
+        }
+    }
+
+    static void awaitRunning(Service service, Deadline deadline) throws TimeoutException {
+        if (!deadline.isBounded()) {
+            service.awaitRunning();
+            return;
+        }
+
+        try {
+            service.awaitRunning(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            service.stopAsync();
+            throw new TimeoutException("Service " + service.getClass().getSimpleName() + " did not start in time");
+        }
+    }
+
+    static void awaitTerminated(Service service, Deadline deadline) throws TimeoutException {
+        if (!deadline.isBounded()) {
+            service.awaitTerminated();
+            return;
+        }
+
+        try {
+            service.awaitTerminated(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new TimeoutException("Service " + service.getClass().getSimpleName() + " did not shut down in time");
+        }
+    }
+
+    static String getNiceNames(Collection<Service> levelServices) {
+        return Joiner.on(",").join(transform(levelServices, new Function<Service, String>() {
+            public String apply(Service service) {
+                return service.getClass().getSimpleName();
+            }
+        }));
+    }
 
-        return false;
+    public enum StartupOrder {
+        /**
+         * Start one level at a time, waiting for every service in a level before starting the next.
+         */
+        LEVELS,
+        /**
+         * Start each service as soon as the managed services it injects are running. Services that
+         * don't inject any managed services wait for all of the lower levels, as with {@link #LEVELS}.
+         */
+        DEPENDENCIES
     }
 
     @SuppressWarnings("serial")
@@ -0,0 +1,522 @@
+package com.toao.servicecentre;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.Service;
+import com.google.inject.Binding;
+import com.google.inject.ConfigurationException;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.spi.Dependency;
+import com.google.inject.spi.InjectionPoint;
+import com.google.inject.spi.LinkedKeyBinding;
+import com.toao.servicecentre.ServiceCentre.ServiceCentreInitialisationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Dependency graph of the managed services.
+ *
+ * A service depends on every other managed service it has a Guice injection point for,
+ * as long as that service is not at a higher level. A dependency on a higher level
+ * service is a back-reference: the levels say it starts later, so the edge is dropped.
+ * Services without any such dependencies fall back to their level and wait for every
+ * service at the lower levels, exactly as they would when starting level by level.
+ *
+ * The level fallback goes through one barrier node per level, which keeps the number
+ * of edges linear in the number of services.
+ *
+ * When lazy services are deferred they always get their injection point dependencies, so
+ * they can be started along with them on demand, but nothing else waits for them to start.
+ * The services that inject them and the barrier at the end of their level get lazy edges to
+ * them instead, which only order the shutdown, so they are stopped after their callers and
+ * with the rest of their level.
+ *
+ * Only the classes of the services are needed to build the graph, so it can be built before
+ * they are provisioned.
+ */
+final class ServiceGraph {
+    private static Logger sLogger = LoggerFactory.getLogger(ServiceGraph.class);
+
+    private final Injector injector;
+    private final List<Node> nodes;
+    // What each service injects, worked out the first time a subtree is asked for
+    private Map<Node, Set<Node>> injected;
+
+    private ServiceGraph(Injector injector, List<Node> nodes) {
+        this.injector = injector;
+        // Services can be added and removed while others read the graph
+        this.nodes = new CopyOnWriteArrayList<>(nodes);
+    }
+
+    /**
+     * All the nodes, services and level barriers, in a dependency respecting order.
+     */
+    List<Node> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Builds the graph for the given services, keyed by level. None of them are deferred, lazy
+     * services are started along with the rest.
+     *
+     * @param useInjectionPoints if false only the levels are used, which gives the same
+     *                           ordering as starting level by level
+     */
+    static ServiceGraph build(Injector injector, Multimap<Integer, Service> services, boolean useInjectionPoints) {
+        List<Node> serviceNodes = new ArrayList<>();
+
+        for (Map.Entry<Integer, Service> entry : services.entries()) {
+            serviceNodes.add(new Node(entry.getValue().getClass(), entry.getValue(), entry.getKey(), false));
+        }
+
+        return build(injector, serviceNodes, useInjectionPoints);
+    }
+
+    /**
+     * Builds the graph for nodes that may not have their services yet.
+     */
+    static ServiceGraph build(Injector injector, List<Node> serviceNodes, boolean useInjectionPoints) {
+        ListMultimap<Integer, Node> byLevel = ArrayListMultimap.create();
+        for (Node node : serviceNodes) {
+            byLevel.put(node.level, node);
+        }
+
+        List<Integer> levels = Lists.newArrayList(byLevel.keySet());
+        Collections.sort(levels);
+
+        List<Node> nodes = new ArrayList<>();
+        for (int level : levels) {
+            nodes.addAll(byLevel.get(level));
+        }
+
+        DependencyResolver resolver = new DependencyResolver(injector, serviceNodes);
+
+        Node previousBarrier = null;
+
+        for (int level : levels) {
+            Node barrier = new Node(null, null, level, false);
+            // Lazy services injected at the same level, which may inject their callers in turn
+            Map<Node, Set<Node>> lazyAtLevel = new IdentityHashMap<>();
+
+            for (Node node : byLevel.get(level)) {
+
+                if (useInjectionPoints || node.lazy) {
+                    for (Node dependency : resolver.dependenciesOf(node)) {
+                        if (dependency.level > level) {
+                            sLogger.debug("Ignoring dependency of {} on higher level service {}", node, dependency);
+                        } else if (dependency.lazy && !node.lazy) {
+                            if (dependency.level < level) {
+                                node.dependsOnLazily(dependency);
+                            } else {
+                                lazyAtLevel.computeIfAbsent(node, key -> new HashSet<>()).add(dependency);
+                            }
+                        } else {
+                            node.dependsOn(dependency);
+                        }
+                    }
+                }
+
+                if (node.dependencies.isEmpty() && previousBarrier != null) {
+                    node.dependsOn(previousBarrier);
+                }
+
+                if (!node.lazy) {
+                    barrier.dependsOn(node);
+                } else {
+                    barrier.dependsOnLazily(node);
+                }
+            }
+
+            for (Map.Entry<Node, Set<Node>> entry : lazyAtLevel.entrySet()) {
+                for (Node dependency : entry.getValue()) {
+                    if (reaches(dependency, entry.getKey())) {
+                        sLogger.debug("Not stopping {} before lazy service {}, which depends on it", entry.getKey(), dependency);
+                    } else {
+                        entry.getKey().dependsOnLazily(dependency);
+                    }
+                }
+            }
+
+            if (previousBarrier != null) {
+                barrier.dependsOn(previousBarrier);
+            }
+
+            nodes.add(barrier);
+            previousBarrier = barrier;
+        }
+
+        return new ServiceGraph(injector, sort(nodes));
+    }
+
+    /**
+     * Whether the target can be reached from the node through the edges within its level.
+     */
+    private static boolean reaches(Node node, Node target) {
+        Set<Node> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.add(node);
+
+        while (!pending.isEmpty()) {
+            Node next = pending.poll();
+            if (next == target) {
+                return true;
+            }
+            if (next.level == node.level && !next.isBarrier() && visited.add(next)) {
+                pending.addAll(next.dependencies);
+                pending.addAll(next.lazyDependencies);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds a service registered while the others are running. It depends on the managed services
+     * it injects, whatever their levels, and nothing depends on it, so it goes at the end.
+     */
+    synchronized Node add(Service service, int level) {
+        Node node = new Node(service.getClass(), service, level, false);
+
+        for (Node dependency : new DependencyResolver(injector, serviceNodes()).dependenciesOf(node)) {
+            node.dependsOn(dependency);
+        }
+
+        nodes.add(node);
+        injected = null;
+
+        return node;
+    }
+
+    /**
+     * Removes a service that has been deregistered. Edges from other nodes are left, only the
+     * startup order, which has already run, follows them to it.
+     */
+    synchronized void remove(Node node) {
+        nodes.remove(node);
+        injected = null;
+    }
+
+    private List<Node> serviceNodes() {
+        List<Node> serviceNodes = new ArrayList<>();
+        for (Node node : nodes) {
+            if (!node.isBarrier()) {
+                serviceNodes.add(node);
+            }
+        }
+        return serviceNodes;
+    }
+
+    /**
+     * The given services and every service that injects any of them, directly or indirectly,
+     * whatever their levels. Each service comes after the ones it injects, apart from within
+     * injection cycles, which have no such order.
+     */
+    synchronized List<Node> injectionSubtree(Collection<Node> roots) {
+        Map<Node, List<Node>> injectedBy = new IdentityHashMap<>();
+        for (Map.Entry<Node, Set<Node>> entry : injected().entrySet()) {
+            for (Node dependency : entry.getValue()) {
+                injectedBy.computeIfAbsent(dependency, key -> new ArrayList<>()).add(entry.getKey());
+            }
+        }
+
+        Set<Node> subtree = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Node> pending = new ArrayDeque<>(roots);
+        while (!pending.isEmpty()) {
+            Node node = pending.poll();
+            if (subtree.add(node)) {
+                pending.addAll(injectedBy.getOrDefault(node, Collections.<Node>emptyList()));
+            }
+        }
+
+        // Post-order over what each one injects, so dependencies come first
+        List<Node> ordered = new ArrayList<>(subtree.size());
+        Set<Node> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Node node : nodes) {
+            if (subtree.contains(node)) {
+                visit(node, subtree, visited, ordered);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * The managed services the node injects, whatever their levels.
+     */
+    synchronized Set<Node> injected(Node node) {
+        return injected().getOrDefault(node, Collections.<Node>emptySet());
+    }
+
+    // Called holding the graph's lock
+    private Map<Node, Set<Node>> injected() {
+        if (injected == null) {
+            injected = new IdentityHashMap<>();
+
+            List<Node> serviceNodes = serviceNodes();
+            DependencyResolver resolver = new DependencyResolver(injector, serviceNodes);
+            for (Node node : serviceNodes) {
+                injected.put(node, resolver.dependenciesOf(node));
+            }
+        }
+
+        return injected;
+    }
+
+    private void visit(Node node, Set<Node> subtree, Set<Node> visited, List<Node> ordered) {
+        if (!visited.add(node)) {
+            return;
+        }
+
+        for (Node dependency : injected.get(node)) {
+            if (subtree.contains(dependency)) {
+                visit(dependency, subtree, visited, ordered);
+            }
+        }
+
+        ordered.add(node);
+    }
+
+    /**
+     * Kahn's algorithm, anything left over is part of or behind a cycle.
+     */
+    private static List<Node> sort(List<Node> nodes) {
+        Map<Node, Integer> remaining = new IdentityHashMap<>();
+        Deque<Node> ready = new ArrayDeque<>();
+
+        for (Node node : nodes) {
+            remaining.put(node, node.dependencies.size());
+            if (node.dependencies.isEmpty()) {
+                ready.add(node);
+            }
+        }
+
+        List<Node> sorted = new ArrayList<>(nodes.size());
+
+        while (!ready.isEmpty()) {
+            Node node = ready.poll();
+            sorted.add(node);
+
+            for (Node dependent : node.dependents) {
+                if (remaining.merge(dependent, -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+
+        if (sorted.size() != nodes.size()) {
+            Set<Node> unsorted = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Node node : nodes) {
+                if (remaining.get(node) > 0) {
+                    unsorted.add(node);
+                }
+            }
+            throw new ServiceCentreInitialisationException("Dependency cycle between managed services: " + findCycle(unsorted), null);
+        }
+
+        return sorted;
+    }
+
+    private static String findCycle(Set<Node> unsorted) {
+        // Every unsorted node has an unsorted dependency, so walking them must revisit a node
+        List<Node> path = new ArrayList<>();
+        Map<Node, Integer> seen = new IdentityHashMap<>();
+        Node node = unsorted.iterator().next();
+
+        while (!seen.containsKey(node)) {
+            seen.put(node, path.size());
+            path.add(node);
+
+            for (Node dependency : node.dependencies) {
+                if (unsorted.contains(dependency)) {
+                    node = dependency;
+                    break;
+                }
+            }
+        }
+
+        List<Node> cycle = Lists.newArrayList(path.subList(seen.get(node), path.size()));
+        cycle.add(node);
+
+        StringBuilder builder = new StringBuilder();
+        for (Node member : cycle) {
+            if (builder.length() > 0) {
+                builder.append(" -> ");
+            }
+            builder.append(member);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A managed service, or the barrier at the end of a level if it has no type. The service is
+     * null until it has been provisioned, and changes when a supervisor replaces it with a fresh
+     * instance.
+     */
+    static final class Node {
+        final Class<? extends Service> type;
+        volatile Service service;
+        final int level;
+        final boolean lazy;
+        final List<Node> dependencies = new ArrayList<>();
+        final List<Node> dependents = new ArrayList<>();
+        // Lazy services that aren't waited for at startup, but are only stopped after this
+        final List<Node> lazyDependencies = new ArrayList<>();
+        final List<Node> lazyDependents = new ArrayList<>();
+
+        Node(Class<? extends Service> type, Service service, int level, boolean lazy) {
+            this.type = type;
+            this.service = service;
+            this.level = level;
+            this.lazy = lazy;
+        }
+
+        boolean isBarrier() {
+            return type == null;
+        }
+
+        private void dependsOn(Node dependency) {
+            dependencies.add(dependency);
+            dependency.dependents.add(this);
+        }
+
+        private void dependsOnLazily(Node dependency) {
+            lazyDependencies.add(dependency);
+            dependency.lazyDependents.add(this);
+        }
+
+        @Override
+        public String toString() {
+            return isBarrier() ? "level " + level : type.getSimpleName();
+        }
+    }
+
+    /**
+     * Maps the Guice injection points of a service onto the managed services that satisfy them.
+     */
+    private static final class DependencyResolver {
+        private final Injector injector;
+        private final Collection<Node> serviceNodes;
+        private final Map<Class<?>, List<Node>> nodesByTarget = new HashMap<>();
+        private final Map<Class<?>, Set<Class<?>>> supertypesByType = new HashMap<>();
+
+        DependencyResolver(Injector injector, Collection<Node> serviceNodes) {
+            this.injector = injector;
+            this.serviceNodes = serviceNodes;
+        }
+
+        Set<Node> dependenciesOf(Node node) {
+            Set<Node> dependencies = Collections.newSetFromMap(new IdentityHashMap<>());
+
+            for (Key<?> key : injectedDependencies(node.type)) {
+                Class<?> target = resolveTarget(key);
+
+                if (target != null) {
+                    for (Node candidate : nodesFor(target)) {
+                        if (candidate != node) {
+                            dependencies.add(candidate);
+                        }
+                    }
+                }
+            }
+
+            return dependencies;
+        }
+
+        private List<Key<?>> injectedDependencies(Class<?> klass) {
+            List<Key<?>> planned = ServiceMetadata.of(klass).plannedDependencies();
+
+            if (planned != null) {
+                return planned;
+            }
+
+            List<InjectionPoint> injectionPoints = new ArrayList<>();
+
+            try {
+                injectionPoints.add(InjectionPoint.forConstructorOf(klass));
+            } catch (ConfigurationException e) {
+                // Bound by instance or provider, so there's no constructor to look at
+                sLogger.debug("No injectable constructor on {}", klass);
+            }
+
+            try {
+                injectionPoints.addAll(InjectionPoint.forInstanceMethodsAndFields(klass));
+            } catch (ConfigurationException e) {
+                sLogger.debug("Unable to read injectable members of {}", klass);
+            }
+
+            List<Key<?>> keys = new ArrayList<>();
+            for (InjectionPoint injectionPoint : injectionPoints) {
+                for (Dependency<?> dependency : injectionPoint.getDependencies()) {
+                    keys.add(dependency.getKey());
+                }
+            }
+            return keys;
+        }
+
+        /**
+         * Follows linked bindings to the class that Guice will actually provide. Providers are
+         * left alone, they are the usual way to break a cycle and don't need the service running.
+         */
+        private Class<?> resolveTarget(Key<?> key) {
+            Class<?> rawType = key.getTypeLiteral().getRawType();
+
+            if (Provider.class.isAssignableFrom(rawType) || javax.inject.Provider.class.isAssignableFrom(rawType)) {
+                return null;
+            }
+
+            Binding<?> binding = injector.getExistingBinding(key);
+
+            while (binding instanceof LinkedKeyBinding) {
+                key = ((LinkedKeyBinding<?>) binding).getLinkedKey();
+                binding = injector.getExistingBinding(key);
+            }
+
+            Class<?> target = key.getTypeLiteral().getRawType();
+
+            return target == Service.class || target == Object.class ? null : target;
+        }
+
+        /**
+         * The nodes whose type can be assigned to the target. Every node is indexed under its
+         * supertypes the first time, rather than checking each node for each target, which would
+         * be quadratic when most services are injected by their own class.
+         */
+        private List<Node> nodesFor(Class<?> target) {
+            if (nodesByTarget.isEmpty()) {
+                for (Node candidate : serviceNodes) {
+                    for (Class<?> supertype : supertypes(candidate.type)) {
+                        nodesByTarget.computeIfAbsent(supertype, klass -> new ArrayList<>()).add(candidate);
+                    }
+                }
+            }
+
+            return nodesByTarget.getOrDefault(target, Collections.<Node>emptyList());
+        }
+
+        private Set<Class<?>> supertypes(Class<?> type) {
+            Set<Class<?>> supertypes = supertypesByType.get(type);
+
+            if (supertypes == null) {
+                supertypes = new HashSet<>();
+                supertypes.add(type);
+
+                if (type.getSuperclass() != null) {
+                    supertypes.addAll(supertypes(type.getSuperclass()));
+                }
+                for (Class<?> implemented : type.getInterfaces()) {
+                    supertypes.addAll(supertypes(implemented));
+                }
+
+                supertypesByType.put(type, supertypes);
+            }
+
+            return supertypes;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.toao.servicecentre;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The managed service classes listed in the META-INF/servicecentre/managed-services index files
+ * that the annotation processor writes, one binary class name per line.
+ *
+ * Reading the index is a handful of resource lookups rather than a scan of the classpath, so it
+ * doesn't slow down startup. Each class loader's index is only read once.
+ */
+final class ServiceIndex {
+    static final String LOCATION = "META-INF/servicecentre/managed-services";
+
+    private static Logger sLogger = LoggerFactory.getLogger(ServiceIndex.class);
+
+    private static final Map<ClassLoader, List<String>> CACHE = Collections.synchronizedMap(new WeakHashMap<ClassLoader, List<String>>());
+
+    private ServiceIndex() {
+    }
+
+    static List<String> load(ClassLoader loader) {
+        List<String> names = CACHE.get(loader);
+
+        if (names == null) {
+            names = read(loader);
+            CACHE.put(loader, names);
+        }
+
+        return names;
+    }
+
+    private static List<String> read(ClassLoader loader) {
+        Set<String> names = new LinkedHashSet<>();
+
+        try {
+            Enumeration<URL> indexes = loader.getResources(LOCATION);
+
+            while (indexes.hasMoreElements()) {
+                URL index = indexes.nextElement();
+                sLogger.debug("Reading managed service index {}", index);
+
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(index.openStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        line = line.trim();
+                        if (!line.isEmpty() && !line.startsWith("#")) {
+                            names.add(line);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new ServiceCentre.ServiceCentreInitialisationException("Unable to read the managed service index", e);
+        }
+
+        return Collections.unmodifiableList(new ArrayList<>(names));
+    }
+}
@@ -0,0 +1,353 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+import com.google.inject.util.Types;
+import com.toao.servicecentre.StartupPlan.PlannedService;
+import com.toao.servicecentre.annotations.ManagedService;
+import com.toao.servicecentre.annotations.Supervision;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.*;
+
+/**
+ * What ServiceCentre needs to know about a service class, worked out once per class.
+ *
+ * Classes in a generated {@link StartupPlan} are taken from the plan, along with the values of
+ * their {@link ManagedService} annotation. Only the supervision is read from the annotation, the
+ * first time it is asked for, which is after startup. For any other class the annotation is
+ * looked for on the class and its superclasses first, nearest first, and then on the interfaces
+ * they implement.
+ */
+final class ServiceMetadata {
+    private static Logger sLogger = LoggerFactory.getLogger(ServiceMetadata.class);
+
+    private static final ClassValue<ServiceMetadata> METADATA = new ClassValue<ServiceMetadata>() {
+        @Override
+        protected ServiceMetadata computeValue(Class<?> type) {
+            return resolve(type);
+        }
+    };
+
+    private static final Map<String, PlannedService> PLANNED = loadPlans();
+
+    private final Class<?> type;
+    private final boolean service;
+    private final boolean singleton;
+    private final boolean managed;
+    private final int level;
+    private final boolean lazy;
+    private final long startupTimeoutMillis;
+    private final long shutdownTimeoutMillis;
+    private final Map<String, Integer> resources;
+    private final List<Key<?>> plannedDependencies;
+    // The type carrying the annotation, for the supervision of planned services
+    private final String annotatedType;
+    private volatile Supervision supervision;
+
+    private ServiceMetadata(Class<?> type, boolean service, boolean singleton, ManagedService annotation) {
+        this.type = type;
+        this.service = service;
+        this.singleton = singleton;
+        this.managed = annotation != null;
+        this.level = managed ? annotation.level() : 0;
+        this.lazy = managed && annotation.lazy();
+        this.startupTimeoutMillis = managed ? annotation.startupTimeoutMillis() : 0;
+        this.shutdownTimeoutMillis = managed ? annotation.shutdownTimeoutMillis() : 0;
+        this.resources = managed ? parseResources(type, annotation.resources()) : Collections.<String, Integer>emptyMap();
+        this.plannedDependencies = null;
+        this.annotatedType = null;
+        this.supervision = managed ? annotation.supervision() : null;
+    }
+
+    private ServiceMetadata(Class<?> type, PlannedService planned, List<Key<?>> plannedDependencies) {
+        this.type = type;
+        this.service = Service.class.isAssignableFrom(type);
+        this.singleton = planned.isSingleton();
+        this.managed = true;
+        this.level = planned.getLevel();
+        this.lazy = planned.isLazy();
+        this.startupTimeoutMillis = planned.getStartupTimeoutMillis();
+        this.shutdownTimeoutMillis = planned.getShutdownTimeoutMillis();
+        this.resources = parseResources(type, planned.getResources().toArray(new String[0]));
+        this.plannedDependencies = plannedDependencies;
+        this.annotatedType = planned.getAnnotatedType();
+    }
+
+    static ServiceMetadata of(Class<?> type) {
+        return METADATA.get(type);
+    }
+
+    static ServiceMetadata of(Service service) {
+        return METADATA.get(service.getClass());
+    }
+
+    Class<?> type() {
+        return type;
+    }
+
+    boolean isService() {
+        return service;
+    }
+
+    boolean isManaged() {
+        return managed;
+    }
+
+    boolean isSingleton() {
+        return singleton;
+    }
+
+    /**
+     * The keys injected into the service according to its startup plan, or null if it isn't
+     * in a plan and its injection points have to be inspected.
+     */
+    List<Key<?>> plannedDependencies() {
+        return plannedDependencies;
+    }
+
+    int level() {
+        return level;
+    }
+
+    long startupTimeoutMillis() {
+        return startupTimeoutMillis;
+    }
+
+    long shutdownTimeoutMillis() {
+        return shutdownTimeoutMillis;
+    }
+
+    boolean isLazy() {
+        return lazy;
+    }
+
+    Supervision supervision() {
+        Supervision current = supervision;
+
+        if (current == null) {
+            // The annotated type is the service class or one of its supertypes, so it's already loaded
+            try {
+                current = Class.forName(annotatedType, false, type.getClassLoader()).getAnnotation(ManagedService.class).supervision();
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Unable to read the supervision of " + type + " from " + annotatedType, e);
+            }
+            supervision = current;
+        }
+
+        return current;
+    }
+
+    /**
+     * The weight of each resource the service uses while starting.
+     */
+    Map<String, Integer> resources() {
+        return resources;
+    }
+
+    private static Map<String, Integer> parseResources(Class<?> type, String[] declared) {
+        if (declared.length == 0) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Integer> resources = new LinkedHashMap<>();
+
+        for (String resource : declared) {
+            int separator = resource.lastIndexOf(':');
+            String name = separator < 0 ? resource : resource.substring(0, separator);
+            int weight;
+
+            try {
+                weight = separator < 0 ? 1 : Integer.parseInt(resource.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                weight = -1;
+            }
+
+            if (name.isEmpty() || weight < 1) {
+                throw new ServiceCentre.ServiceCentreInitialisationException("Invalid resource \"" + resource +
+                    "\" on " + type + ", expected a name optionally followed by a positive weight", null);
+            }
+
+            resources.merge(name, weight, Integer::sum);
+        }
+
+        return Collections.unmodifiableMap(resources);
+    }
+
+    private static ServiceMetadata resolve(Class<?> type) {
+        PlannedService planned = PLANNED.get(type.getName());
+
+        if (planned != null) {
+            try {
+                return fromPlan(type, planned);
+            } catch (ClassNotFoundException e) {
+                sLogger.warn("Ignoring out of date startup plan for {}: {}", type, e.getMessage());
+            }
+        }
+
+        ManagedService annotation = null;
+        boolean singleton = false;
+        Deque<Class<?>> interfaces = new ArrayDeque<>();
+
+        for (Class<?> klass = type; klass != null; klass = klass.getSuperclass()) {
+            if (annotation == null) {
+                annotation = klass.getAnnotation(ManagedService.class);
+            }
+
+            singleton |= klass.isAnnotationPresent(javax.inject.Singleton.class) ||
+                klass.isAnnotationPresent(com.google.inject.Singleton.class);
+
+            for (Class<?> implemented : klass.getInterfaces()) {
+                interfaces.add(implemented);
+            }
+        }
+
+        // Breadth first, so the most directly implemented interfaces win
+        Set<Class<?>> seen = new HashSet<>();
+        while (annotation == null && !interfaces.isEmpty()) {
+            Class<?> implemented = interfaces.poll();
+
+            if (seen.add(implemented)) {
+                annotation = implemented.getAnnotation(ManagedService.class);
+
+                for (Class<?> extended : implemented.getInterfaces()) {
+                    interfaces.add(extended);
+                }
+            }
+        }
+
+        ServiceMetadata metadata = new ServiceMetadata(type, Service.class.isAssignableFrom(type), singleton, annotation);
+
+        sLogger.debug("Resolved {}: service = {}, managed = {}, singleton = {}", type, metadata.service,
+            metadata.isManaged(), singleton);
+
+        return metadata;
+    }
+
+    private static ServiceMetadata fromPlan(Class<?> type, PlannedService planned) throws ClassNotFoundException {
+        ClassLoader loader = type.getClassLoader();
+        List<Key<?>> dependencies = null;
+
+        if (planned.getDependencies() != null) {
+            dependencies = new ArrayList<>(planned.getDependencies().size());
+
+            for (int i = 0; i < planned.getDependencies().size(); i++) {
+                dependencies.add(plannedKey(planned.getDependencies().get(i), planned.getQualifiers().get(i), loader));
+            }
+        }
+
+        sLogger.debug("Resolved {} from its startup plan", type);
+
+        return new ServiceMetadata(type, planned, dependencies);
+    }
+
+    /**
+     * The Guice key for a planned dependency, with its type arguments, and its qualifier if it has one.
+     */
+    static Key<?> plannedKey(String dependency, String qualifier, ClassLoader loader) throws ClassNotFoundException {
+        Type type = new PlannedTypeParser(dependency, loader).parse();
+
+        if (qualifier == null) {
+            return Key.get(type);
+        }
+
+        int bracket = qualifier.indexOf('(');
+
+        if (bracket >= 0) {
+            // Guice treats both Named annotations as its own
+            return Key.get(type, Names.named(qualifier.substring(bracket + 1, qualifier.lastIndexOf(')'))));
+        }
+
+        return Key.get(type, Class.forName(qualifier, false, loader).asSubclass(Annotation.class));
+    }
+
+    /**
+     * Reads a planned type, a binary class name followed by its type arguments in angle brackets,
+     * where each is a planned type, a wildcard with an optional bound, or an array of either.
+     */
+    private static final class PlannedTypeParser {
+        private final String text;
+        private final ClassLoader loader;
+        private int position;
+
+        PlannedTypeParser(String text, ClassLoader loader) {
+            this.text = text;
+            this.loader = loader;
+        }
+
+        Type parse() throws ClassNotFoundException {
+            Type type = type();
+
+            if (position != text.length()) {
+                throw new IllegalArgumentException("Unexpected \"" + text.substring(position) + "\" in planned type " + text);
+            }
+
+            return type;
+        }
+
+        private Type type() throws ClassNotFoundException {
+            if (consume("?")) {
+                if (consume(" extends ")) {
+                    return Types.subtypeOf(type());
+                }
+                if (consume(" super ")) {
+                    return Types.supertypeOf(type());
+                }
+                return Types.subtypeOf(Object.class);
+            }
+
+            int start = position;
+            while (position < text.length() && "<>,[ ".indexOf(text.charAt(position)) < 0) {
+                position++;
+            }
+
+            Class<?> raw = Class.forName(text.substring(start, position), false, loader);
+            Type type = raw;
+
+            if (consume("<")) {
+                List<Type> arguments = new ArrayList<>();
+                do {
+                    arguments.add(type());
+                } while (consume(", "));
+
+                if (!consume(">")) {
+                    throw new IllegalArgumentException("Unterminated type arguments in planned type " + text);
+                }
+
+                Type[] argumentArray = arguments.toArray(new Type[arguments.size()]);
+                // Guice wants the owner of a nested class, as reflection gives it
+                type = raw.getEnclosingClass() == null ? Types.newParameterizedType(raw, argumentArray) :
+                    Types.newParameterizedTypeWithOwner(raw.getEnclosingClass(), raw, argumentArray);
+            }
+
+            while (consume("[]")) {
+                type = Types.arrayOf(type);
+            }
+
+            return type;
+        }
+
+        private boolean consume(String expected) {
+            if (text.startsWith(expected, position)) {
+                position += expected.length();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static Map<String, PlannedService> loadPlans() {
+        Map<String, PlannedService> planned = new HashMap<>();
+
+        for (StartupPlan plan : ServiceLoader.load(StartupPlan.class)) {
+            sLogger.debug("Using startup plan {}", plan.getClass().getName());
+            planned.putAll(plan.services());
+        }
+
+        return planned;
+    }
+}
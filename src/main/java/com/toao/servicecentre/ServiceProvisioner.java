@@ -0,0 +1,168 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.Binding;
+import com.google.inject.ConfigurationException;
+import com.google.inject.Injector;
+import com.google.inject.Scope;
+import com.google.inject.Scopes;
+import com.google.inject.Singleton;
+import com.google.inject.spi.BindingScopingVisitor;
+import com.google.inject.spi.ConstructorBinding;
+import com.google.inject.spi.DefaultBindingScopingVisitor;
+import com.google.inject.spi.Dependency;
+import com.google.inject.spi.InjectionPoint;
+import com.google.inject.spi.InstanceBinding;
+import com.google.inject.spi.ProviderInstanceBinding;
+import com.google.inject.spi.ProviderKeyBinding;
+import com.toao.servicecentre.ServiceCentre.ServiceCentreInitialisationException;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates fresh instances of managed services to replace ones that have stopped.
+ *
+ * Unscoped services just come from the Injector. A singleton would come back as the same
+ * stopped instance, so it is constructed directly instead, with its constructor arguments
+ * and members injected from the Injector the same way Guice would. Services that are being
+ * replaced at the same time are swapped for their fresh instances when they are injected.
+ *
+ * Constructing it directly skips anything else Guice would have done, so services bound to an
+ * instance, a provider or a {@code @Provides} method, with method interceptors, or in a scope
+ * other than singleton, are refused rather than coming back without them.
+ */
+final class ServiceProvisioner {
+    private static final String ENHANCED = "$$EnhancerByGuice$$";
+
+    // Whether a binding has a scope other than singleton, which a fresh instance would bypass
+    private static final BindingScopingVisitor<Boolean> CUSTOM_SCOPE = new DefaultBindingScopingVisitor<Boolean>() {
+        @Override
+        public Boolean visitEagerSingleton() {
+            return false;
+        }
+
+        @Override
+        public Boolean visitScope(Scope scope) {
+            return scope != Scopes.SINGLETON && scope != Scopes.NO_SCOPE;
+        }
+
+        @Override
+        public Boolean visitScopeAnnotation(Class<? extends Annotation> scopeAnnotation) {
+            return scopeAnnotation != Singleton.class && scopeAnnotation != javax.inject.Singleton.class;
+        }
+
+        @Override
+        public Boolean visitNoScoping() {
+            return false;
+        }
+    };
+
+    private final Injector injector;
+
+    ServiceProvisioner(Injector injector) {
+        this.injector = injector;
+    }
+
+    Service fresh(Class<? extends Service> type) {
+        return fresh(type, Collections.<Service, Service>emptyMap());
+    }
+
+    /**
+     * @param replacements fresh instances keyed by the instances they replace
+     */
+    Service fresh(Class<? extends Service> type, Map<Service, Service> replacements) {
+        String refusal = refusal(type);
+
+        if (refusal != null) {
+            throw new ServiceCentreInitialisationException(refusal, null);
+        }
+
+        Binding<? extends Service> binding = injector.getBinding(type);
+
+        if (!Scopes.isSingleton(binding) && replacements.isEmpty()) {
+            return injector.getInstance(type);
+        }
+
+        try {
+            InjectionPoint constructorPoint = InjectionPoint.forConstructorOf(type);
+            Constructor<?> constructor = (Constructor<?>) constructorPoint.getMember();
+            constructor.setAccessible(true);
+
+            Service service = (Service) constructor.newInstance(resolve(constructorPoint, replacements));
+
+            for (InjectionPoint memberPoint : InjectionPoint.forInstanceMethodsAndFields(type)) {
+                Member member = memberPoint.getMember();
+                Object[] arguments = resolve(memberPoint, replacements);
+
+                if (member instanceof Field) {
+                    ((Field) member).setAccessible(true);
+                    ((Field) member).set(service, arguments[0]);
+                } else {
+                    ((Method) member).setAccessible(true);
+                    ((Method) member).invoke(service, arguments);
+                }
+            }
+
+            return service;
+        } catch (InvocationTargetException e) {
+            throw new ServiceCentreInitialisationException("Unable to construct a fresh " + type.getSimpleName(), e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new ServiceCentreInitialisationException("Unable to construct a fresh " + type.getSimpleName(), e);
+        }
+    }
+
+    /**
+     * @return why a fresh instance of the type can't be created, or null if it can be tried
+     */
+    String refusal(Class<? extends Service> type) {
+        // Guice's subclass for method interceptors, which constructing it directly would leave out
+        if (type.getName().contains(ENHANCED)) {
+            return "Service " + type.getSuperclass() + " has method interceptors, so a fresh instance can't be created";
+        }
+
+        Binding<? extends Service> binding;
+        try {
+            binding = injector.getBinding(type);
+        } catch (ConfigurationException e) {
+            return null;
+        }
+
+        if (binding instanceof InstanceBinding || binding instanceof ProviderInstanceBinding
+            || binding instanceof ProviderKeyBinding) {
+            return "Service " + type + " is bound to an instance, a provider or a @Provides method," +
+                " so a fresh instance can't be created";
+        }
+
+        if (binding instanceof ConstructorBinding && !((ConstructorBinding<?>) binding).getMethodInterceptors().isEmpty()) {
+            return "Service " + type + " has method interceptors, so a fresh instance can't be created";
+        }
+
+        if (binding.acceptScopingVisitor(CUSTOM_SCOPE)) {
+            return "Service " + type + " is in a custom scope, so a fresh instance can't be created";
+        }
+
+        return null;
+    }
+
+    private Object[] resolve(InjectionPoint injectionPoint, Map<Service, Service> replacements) {
+        List<Dependency<?>> dependencies = injectionPoint.getDependencies();
+        Object[] arguments = new Object[dependencies.size()];
+
+        for (int i = 0; i < arguments.length; i++) {
+            Object instance = injector.getInstance(dependencies.get(i).getKey());
+            Service replacement = instance instanceof Service ? replacements.get(instance) : null;
+
+            arguments[i] = replacement != null ? replacement : instance;
+        }
+
+        return arguments;
+    }
+}
@@ -0,0 +1,271 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.Service.State;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+/**
+ * How many of the managed services are in each state, overall and per level.
+ *
+ * The counts are kept up to date by service listeners, so reading them takes no locks and
+ * allocates nothing. Each count is exact on its own, but a transition moves a service
+ * from one count to another in two steps, so two counts read together can be off by one.
+ */
+public final class ServiceStates implements ServiceStatesMXBean {
+    private static final State[] STATES = State.values();
+    private static final long NEVER = -1;
+
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(STATES.length);
+    private final AtomicLongArray lastEntered = new AtomicLongArray(STATES.length);
+    private volatile long lastTransition = NEVER;
+    private volatile Readiness readiness = Readiness.STARTING;
+    private volatile Levels levels = new Levels(new int[0], new AtomicIntegerArray[0]);
+    private final Map<Service, Counter> counters = new IdentityHashMap<>();
+
+    ServiceStates() {
+        for (int i = 0; i < STATES.length; i++) {
+            lastEntered.set(i, NEVER);
+        }
+    }
+
+    /**
+     * Starts counting a service, adding its level if it is the first at that level.
+     */
+    synchronized void add(int level, Service service) {
+        Levels levels = this.levels;
+        int index = Arrays.binarySearch(levels.levels, level);
+
+        if (index < 0) {
+            // A new level gets its own counts, so the listeners of the other levels are unaffected
+            index = -index - 1;
+
+            int[] newLevels = new int[levels.levels.length + 1];
+            AtomicIntegerArray[] newCounts = new AtomicIntegerArray[newLevels.length];
+
+            System.arraycopy(levels.levels, 0, newLevels, 0, index);
+            System.arraycopy(levels.levels, index, newLevels, index + 1, levels.levels.length - index);
+            System.arraycopy(levels.counts, 0, newCounts, 0, index);
+            System.arraycopy(levels.counts, index, newCounts, index + 1, levels.counts.length - index);
+
+            newLevels[index] = level;
+            newCounts[index] = new AtomicIntegerArray(STATES.length);
+
+            this.levels = levels = new Levels(newLevels, newCounts);
+        }
+
+        Counter counter = new Counter(levels.counts[index], service.state());
+        counters.put(service, counter);
+        service.addListener(counter, directExecutor());
+    }
+
+    void setReadiness(Readiness readiness) {
+        this.readiness = readiness;
+    }
+
+    /**
+     * Whether the ServiceCentre should be given traffic.
+     */
+    @Override
+    public Readiness getReadiness() {
+        return readiness;
+    }
+
+    @Override
+    public boolean isReady() {
+        return readiness == Readiness.READY;
+    }
+
+    /**
+     * Stops counting a service. Its level stays, with counts of 0 if it was the last.
+     */
+    void remove(Service service) {
+        Counter counter;
+        synchronized (this) {
+            counter = counters.remove(service);
+        }
+
+        if (counter != null) {
+            counter.remove();
+        }
+    }
+
+    /**
+     * Stops counting a service that has stopped and counts a fresh instance of it in its place.
+     */
+    void replace(int level, Service old, Service fresh) {
+        remove(old);
+        add(level, fresh);
+    }
+
+    public int getCount(State state) {
+        return counts.get(state.ordinal());
+    }
+
+    /**
+     * The number of services at the level in the given state, 0 for a level without services.
+     */
+    public int getCount(int level, State state) {
+        AtomicIntegerArray levelCounts = levels.countsFor(level);
+        return levelCounts == null ? 0 : levelCounts.get(state.ordinal());
+    }
+
+    /**
+     * The time in milliseconds since the epoch that a service last entered the state, or -1
+     * if none has yet.
+     */
+    public long getLastTransitionMillis(State state) {
+        return lastEntered.get(state.ordinal());
+    }
+
+    @Override
+    public long getLastTransitionMillis() {
+        return lastTransition;
+    }
+
+    @Override
+    public int[] getLevels() {
+        return levels.levels.clone();
+    }
+
+    @Override
+    public int getNewCount() {
+        return getCount(State.NEW);
+    }
+
+    @Override
+    public int getStartingCount() {
+        return getCount(State.STARTING);
+    }
+
+    @Override
+    public int getRunningCount() {
+        return getCount(State.RUNNING);
+    }
+
+    @Override
+    public int getStoppingCount() {
+        return getCount(State.STOPPING);
+    }
+
+    @Override
+    public int getTerminatedCount() {
+        return getCount(State.TERMINATED);
+    }
+
+    @Override
+    public int getFailedCount() {
+        return getCount(State.FAILED);
+    }
+
+    @Override
+    public int getLevelCount(int level, String state) {
+        return getCount(level, State.valueOf(state));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("ServiceStates{");
+        for (State state : STATES) {
+            if (state != STATES[0]) {
+                builder.append(", ");
+            }
+            builder.append(state).append('=').append(getCount(state));
+        }
+        return builder.append('}').toString();
+    }
+
+    /**
+     * The sorted levels and the counts of each, published together.
+     */
+    private static final class Levels {
+        final int[] levels;
+        final AtomicIntegerArray[] counts;
+
+        Levels(int[] levels, AtomicIntegerArray[] counts) {
+            this.levels = levels;
+            this.counts = counts;
+        }
+
+        AtomicIntegerArray countsFor(int level) {
+            int index = Arrays.binarySearch(levels, level);
+            return index < 0 ? null : counts[index];
+        }
+    }
+
+    /**
+     * Counts one service, in the state it was last seen in. Guava can call a listener after
+     * the service's state has been read elsewhere, so transitions move the service out of the
+     * state it was counted in rather than the one Guava reports it leaving.
+     */
+    private final class Counter extends Service.Listener {
+        private final AtomicIntegerArray levelCounts;
+        private State counted;
+        private boolean removed;
+
+        Counter(AtomicIntegerArray levelCounts, State state) {
+            this.levelCounts = levelCounts;
+            this.counted = state;
+
+            counts.incrementAndGet(state.ordinal());
+            levelCounts.incrementAndGet(state.ordinal());
+        }
+
+        synchronized void remove() {
+            if (!removed) {
+                removed = true;
+                counts.decrementAndGet(counted.ordinal());
+                levelCounts.decrementAndGet(counted.ordinal());
+            }
+        }
+
+        @Override
+        public void starting() {
+            transition(State.NEW, State.STARTING);
+        }
+
+        @Override
+        public void running() {
+            transition(State.STARTING, State.RUNNING);
+        }
+
+        @Override
+        public void stopping(State from) {
+            transition(from, State.STOPPING);
+        }
+
+        @Override
+        public void terminated(State from) {
+            transition(from, State.TERMINATED);
+        }
+
+        @Override
+        public void failed(State from, Throwable failure) {
+            transition(from, State.FAILED);
+        }
+
+        private synchronized void transition(State from, State to) {
+            // Counted after the transition had already happened
+            if (removed || counted == to) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+
+            counts.decrementAndGet(counted.ordinal());
+            counts.incrementAndGet(to.ordinal());
+            levelCounts.decrementAndGet(counted.ordinal());
+            levelCounts.incrementAndGet(to.ordinal());
+            counted = to;
+
+            lastEntered.set(to.ordinal(), now);
+            lastTransition = now;
+        }
+    }
+}
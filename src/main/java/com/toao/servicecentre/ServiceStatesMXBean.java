@@ -0,0 +1,37 @@
+package com.toao.servicecentre;
+
+/**
+ * JMX view of {@link ServiceStates}.
+ */
+public interface ServiceStatesMXBean {
+    int getNewCount();
+
+    int getStartingCount();
+
+    int getRunningCount();
+
+    int getStoppingCount();
+
+    int getTerminatedCount();
+
+    int getFailedCount();
+
+    int[] getLevels();
+
+    /**
+     * Whether every service is running and has warmed up, so the ServiceCentre can take traffic.
+     */
+    boolean isReady();
+
+    Readiness getReadiness();
+
+    /**
+     * The time in milliseconds since the epoch that any service last changed state, or -1.
+     */
+    long getLastTransitionMillis();
+
+    /**
+     * The number of services at the level in the named {@link com.google.common.util.concurrent.Service.State}.
+     */
+    int getLevelCount(int level, String state);
+}
@@ -0,0 +1,292 @@
+package com.toao.servicecentre;
+
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.Service.State;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.toao.servicecentre.ServiceGraph.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+/**
+ * Stops the services in a {@link ServiceGraph} in reverse, each one as soon as everything that
+ * depends on it has terminated, failed or run out of time. A barrier is passed once everything
+ * after it has, so when starting level by level this stops one level at a time, and when
+ * starting in dependency order a slow service only holds up the services it depends on.
+ * Lazy services are stopped after the services that inject them and the rest of their level,
+ * through the graph's lazy edges, even though nothing waited for them to start.
+ *
+ * {@link Drainable} services are drained on the {@link LifecycleExecutor} before they are
+ * stopped. The drain counts towards the service's shutdown time.
+ *
+ * All of the bookkeeping happens on the thread calling {@link #run()}, as with {@link StartupScheduler}.
+ * The shutdown budget is shared out between the levels as each one begins stopping, equally
+ * between it and the levels that haven't begun.
+ */
+final class ShutdownScheduler {
+    private static Logger sLogger = LoggerFactory.getLogger(ShutdownScheduler.class);
+
+    private final Set<Node> nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final LifecycleRecorder recorder;
+    private final Executor drainExecutor;
+    private final Deadline shutdownDeadline;
+    private final BlockingQueue<Node> transitions = new LinkedBlockingQueue<>();
+    private final Map<Node, Integer> remaining = new IdentityHashMap<>();
+    private final Map<Node, Deadline> draining = new IdentityHashMap<>();
+    private final Map<Node, Deadline> stopping = new IdentityHashMap<>();
+    // Added to by the drain threads
+    private final Set<Node> drained = Collections.newSetFromMap(new ConcurrentHashMap<Node, Boolean>());
+    private final Set<Node> done = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<Integer, Deadline> levelDeadlines = new HashMap<>();
+    private final Map<Integer, Integer> levelsRemaining = new TreeMap<>();
+    private final Map<Service, Throwable> failedServices = new LinkedHashMap<>();
+
+    ShutdownScheduler(ServiceGraph graph, LifecycleRecorder recorder, Executor drainExecutor, Deadline shutdownDeadline) {
+        this.recorder = recorder;
+        this.drainExecutor = drainExecutor;
+        this.shutdownDeadline = shutdownDeadline;
+        this.nodes.addAll(graph.nodes());
+    }
+
+    /**
+     * Blocks until every service has terminated, failed or run out of time.
+     *
+     * @return the services that failed to stop in time, or failed while stopping
+     */
+    Map<Service, Throwable> run() {
+        Deque<Node> ready = new ArrayDeque<>();
+
+        for (Node node : nodes) {
+            int dependents = 0;
+            for (Node dependent : Iterables.concat(node.dependents, node.lazyDependents)) {
+                // Deregistered services leave their edges behind
+                if (nodes.contains(dependent)) {
+                    dependents++;
+                }
+            }
+
+            remaining.put(node, dependents);
+            if (dependents == 0) {
+                ready.add(node);
+            }
+
+            if (!node.isBarrier()) {
+                levelsRemaining.merge(node.level, 1, Integer::sum);
+            }
+        }
+
+        while (done.size() < nodes.size()) {
+            while (!ready.isEmpty()) {
+                stop(ready.poll(), ready);
+            }
+
+            if (done.size() == nodes.size()) {
+                break;
+            }
+
+            Node node = nextTransition();
+
+            if (node == null) {
+                timeOutOverdueServices(ready);
+            } else if (draining.containsKey(node) && drained.contains(node)) {
+                Deadline deadline = draining.remove(node);
+                stopAsync(node, deadline);
+            } else if (stopping.containsKey(node) && node.service.state().compareTo(State.TERMINATED) >= 0) {
+                stopping.remove(node);
+                terminated(node, ready);
+            }
+        }
+
+        return failedServices;
+    }
+
+    private void stop(Node node, Deque<Node> ready) {
+        if (node.isBarrier()) {
+            finished(node, ready);
+            return;
+        }
+
+        Deadline deadline = levelDeadline(node.level).earliest(
+            Deadline.after(ServiceMetadata.of(node.service).shutdownTimeoutMillis(), TimeUnit.MILLISECONDS));
+
+        final Service service = node.service;
+
+        service.addListener(new Service.Listener() {
+            @Override
+            public void terminated(State from) {
+                transitions.add(node);
+            }
+
+            @Override
+            public void failed(State from, Throwable failure) {
+                transitions.add(node);
+            }
+        }, directExecutor());
+
+        recorder.stopRequested(service);
+
+        if (service instanceof Drainable && service.state() == State.RUNNING) {
+            draining.put(node, deadline);
+            sLogger.debug("Draining service {}", node);
+
+            try {
+                drainExecutor.execute(() -> drain(node, (Drainable) service));
+            } catch (RejectedExecutionException e) {
+                sLogger.warn("Unable to drain service {}, stopping it straight away", node, e);
+                draining.remove(node);
+                stopAsync(node, deadline);
+            }
+        } else {
+            stopAsync(node, deadline);
+        }
+    }
+
+    private void drain(Node node, Drainable service) {
+        try {
+            service.drain();
+        } catch (Exception e) {
+            sLogger.warn("Service {} failed to drain, stopping it anyway", node, e);
+        } finally {
+            drained.add(node);
+            transitions.add(node);
+        }
+    }
+
+    private void stopAsync(Node node, Deadline deadline) {
+        sLogger.debug("Stopping service {}", node);
+        stopping.put(node, deadline);
+        node.service.stopAsync();
+        // It may have already stopped, in which case there's no transition to come
+        transitions.add(node);
+    }
+
+    private void terminated(Node node, Deque<Node> ready) {
+        Service service = node.service;
+
+        if (service.state() == State.FAILED) {
+            sLogger.info("Got exception: {} trying to shut down service {}", service.failureCause(), node);
+            failedServices.put(service, new IllegalStateException("Service " + node + " failed while stopping",
+                service.failureCause()));
+        } else {
+            recorder.terminated(service);
+        }
+
+        finished(node, ready);
+    }
+
+    private void timeOutOverdueServices(Deque<Node> ready) {
+        for (Iterator<Map.Entry<Node, Deadline>> iterator = draining.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<Node, Deadline> entry = iterator.next();
+            if (entry.getValue().hasPassed()) {
+                // IdentityHashMap entries can't be read once removed
+                Node node = entry.getKey();
+                iterator.remove();
+
+                sLogger.warn("Timed out waiting for service {} to drain", node);
+                node.service.stopAsync();
+                failedServices.put(node.service, new TimeoutException("Service " + node + " did not drain in time"));
+                finished(node, ready);
+            }
+        }
+
+        for (Iterator<Map.Entry<Node, Deadline>> iterator = stopping.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<Node, Deadline> entry = iterator.next();
+            if (entry.getValue().hasPassed()) {
+                Node node = entry.getKey();
+                iterator.remove();
+
+                sLogger.warn("Timed out waiting for service {} to shut down", node);
+                failedServices.put(node.service, new TimeoutException("Service " + node + " did not shut down in time"));
+                finished(node, ready);
+            }
+        }
+    }
+
+    /**
+     * The service is done with, so anything it depends on may stop once everything else
+     * depending on that has.
+     */
+    private void finished(Node node, Deque<Node> ready) {
+        if (!done.add(node)) {
+            return;
+        }
+
+        for (Node dependency : Iterables.concat(node.dependencies, node.lazyDependencies)) {
+            if (nodes.contains(dependency) && remaining.merge(dependency, -1, Integer::sum) == 0) {
+                ready.add(dependency);
+            }
+        }
+
+        if (!node.isBarrier() && levelsRemaining.merge(node.level, -1, Integer::sum) == 0) {
+            recorder.levelTerminated(node.level);
+        }
+    }
+
+    /**
+     * The first time a level is stopped it gets an equal share of what is left of the shutdown
+     * budget, with the levels that haven't begun stopping yet.
+     */
+    private Deadline levelDeadline(int level) {
+        Deadline deadline = levelDeadlines.get(level);
+
+        if (deadline == null) {
+            if (shutdownDeadline.isBounded()) {
+                int levelsLeft = 1;
+                for (int other : levelsRemaining.keySet()) {
+                    if (!levelDeadlines.containsKey(other) && other != level && levelsRemaining.get(other) > 0) {
+                        levelsLeft++;
+                    }
+                }
+                deadline = Deadline.after(Math.max(1, shutdownDeadline.remainingNanos() / levelsLeft), TimeUnit.NANOSECONDS);
+            } else {
+                deadline = Deadline.NONE;
+            }
+
+            sLogger.info("Shutting down level {}", level);
+
+            levelDeadlines.put(level, deadline);
+        }
+
+        return deadline;
+    }
+
+    private Node nextTransition() {
+        Deadline earliest = Deadline.NONE;
+        for (Deadline deadline : draining.values()) {
+            earliest = earliest.earliest(deadline);
+        }
+        for (Deadline deadline : stopping.values()) {
+            earliest = earliest.earliest(deadline);
+        }
+
+        if (!earliest.isBounded()) {
+            return Uninterruptibles.takeUninterruptibly(transitions);
+        }
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return transitions.poll(earliest.remainingNanos(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.toao.servicecentre;
+
+import com.toao.servicecentre.ServiceGraph.Node;
+
+import java.util.*;
+
+/**
+ * Decides which of the services that are ready to start may start now, and in what order.
+ *
+ * A service is admitted while fewer than the maximum number of services are starting and
+ * each of its resources has room for its weight. Resources without a capacity are unlimited.
+ * When nothing else is using a resource a service is always admitted, even if its weight is
+ * more than the capacity, so a single heavy service can't hold up startup forever.
+ *
+ * Ready services are tried longest expected startup first, so the slow ones aren't left
+ * until the end of a level. Services with no known duration keep their graph order after
+ * the ones with a known duration.
+ */
+final class StartupBudget {
+    private final int maxConcurrentStarts;
+    private final Map<String, Integer> capacities;
+    private final Map<String, Long> expectedMillis;
+    private final Map<String, Integer> inUse = new HashMap<>();
+    private int starting;
+
+    /**
+     * @param maxConcurrentStarts 0 for no limit
+     * @param capacities          the capacity of each named resource
+     * @param expectedMillis      how long each service class, by name, is expected to take to start
+     */
+    StartupBudget(int maxConcurrentStarts, Map<String, Integer> capacities, Map<String, Long> expectedMillis) {
+        this.maxConcurrentStarts = maxConcurrentStarts;
+        this.capacities = capacities;
+        this.expectedMillis = expectedMillis;
+    }
+
+    /**
+     * Whether some services could be kept waiting, rather than every one being admitted straight away.
+     */
+    boolean isLimited() {
+        return maxConcurrentStarts > 0 || !capacities.isEmpty();
+    }
+
+    /**
+     * Whether no more services can be admitted until one of them settles.
+     */
+    boolean isFull() {
+        return maxConcurrentStarts > 0 && starting >= maxConcurrentStarts;
+    }
+
+    long expectedMillis(Node node) {
+        if (node.isBarrier()) {
+            return 0;
+        }
+
+        Long expected = expectedMillis.get(node.type.getName());
+        return expected == null ? 0 : expected;
+    }
+
+    boolean admits(Node node) {
+        if (node.isBarrier()) {
+            return true;
+        }
+
+        if (isFull()) {
+            return false;
+        }
+
+        for (Map.Entry<String, Integer> resource : ServiceMetadata.of(node.type).resources().entrySet()) {
+            Integer capacity = capacities.get(resource.getKey());
+            int used = inUse.getOrDefault(resource.getKey(), 0);
+
+            if (capacity != null && used > 0 && used + resource.getValue() > capacity) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Whether the node is admitted and still leaves room for the reserved service to start
+     * alongside it: a free start, and its weight of each resource the two of them share.
+     */
+    boolean admits(Node node, Node reserved) {
+        if (node.isBarrier()) {
+            return true;
+        }
+
+        if (!admits(node) || (maxConcurrentStarts > 0 && starting + 2 > maxConcurrentStarts)) {
+            return false;
+        }
+
+        Map<String, Integer> reservedResources = ServiceMetadata.of(reserved.type).resources();
+
+        for (Map.Entry<String, Integer> resource : ServiceMetadata.of(node.type).resources().entrySet()) {
+            Integer capacity = capacities.get(resource.getKey());
+            Integer share = reservedResources.get(resource.getKey());
+            int used = inUse.getOrDefault(resource.getKey(), 0);
+
+            if (capacity != null && share != null && used + resource.getValue() + share > capacity) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    void acquire(Node node) {
+        starting++;
+
+        for (Map.Entry<String, Integer> resource : ServiceMetadata.of(node.type).resources().entrySet()) {
+            inUse.merge(resource.getKey(), resource.getValue(), Integer::sum);
+        }
+    }
+
+    void release(Node node) {
+        starting--;
+
+        for (Map.Entry<String, Integer> resource : ServiceMetadata.of(node.type).resources().entrySet()) {
+            inUse.merge(resource.getKey(), -resource.getValue(), Integer::sum);
+        }
+    }
+}
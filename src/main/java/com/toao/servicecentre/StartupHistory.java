@@ -0,0 +1,123 @@
+package com.toao.servicecentre;
+
+import com.toao.servicecentre.LifecycleReport.ServiceTiming;
+import com.toao.servicecentre.ServiceGraph.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The startup duration of each service class from the last run, kept in a properties file of
+ * class names to milliseconds.
+ *
+ * The file is only an optimisation, so a missing or unreadable file is treated as empty and a
+ * failure to save it is only logged. It is written to a temporary file and moved into place,
+ * so a crash part way through never leaves it half written.
+ */
+final class StartupHistory {
+    private static Logger sLogger = LoggerFactory.getLogger(StartupHistory.class);
+
+    private StartupHistory() {
+    }
+
+    static Map<String, Long> load(Path file) {
+        if (!Files.exists(file)) {
+            return Collections.emptyMap();
+        }
+
+        Properties properties = new Properties();
+
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException | IllegalArgumentException e) {
+            sLogger.warn("Ignoring unreadable startup history {}", file, e);
+            return Collections.emptyMap();
+        }
+
+        Map<String, Long> durations = new HashMap<>();
+
+        for (String name : properties.stringPropertyNames()) {
+            try {
+                durations.put(name, Long.parseLong(properties.getProperty(name).trim()));
+            } catch (NumberFormatException e) {
+                sLogger.debug("Ignoring startup history for {}: {}", name, properties.getProperty(name));
+            }
+        }
+
+        return durations;
+    }
+
+    /**
+     * Saves the startup duration of every service that started, keeping the previous duration
+     * of any that didn't.
+     */
+    static void save(Path file, LifecycleReport report, Map<String, Long> previous) {
+        Map<String, Long> durations = new TreeMap<>(previous);
+
+        for (ServiceTiming timing : report.getServices()) {
+            long millis = timing.getStartupTime(TimeUnit.MILLISECONDS);
+            if (millis >= 0) {
+                durations.put(timing.getService().getClass().getName(), millis);
+            }
+        }
+
+        try {
+            Path directory = file.toAbsolutePath().getParent();
+            if (directory != null) {
+                Files.createDirectories(directory);
+            }
+
+            Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+
+            try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                writer.write("# Startup durations in milliseconds, written by ServiceCentre\n");
+                for (Map.Entry<String, Long> entry : durations.entrySet()) {
+                    writer.write(entry.getKey() + "=" + entry.getValue() + "\n");
+                }
+            }
+
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            sLogger.warn("Unable to save startup history to {}", file, e);
+        }
+    }
+
+    /**
+     * The longest chain of expected startup durations through the graph, which is how long
+     * startup should take if nothing holds a service back once its dependencies are running.
+     */
+    static long predictMillis(ServiceGraph graph, StartupBudget budget) {
+        Map<Node, Long> finishes = new IdentityHashMap<>();
+        long longest = 0;
+
+        // Nodes are in dependency order, so every dependency's finish is already known
+        for (Node node : graph.nodes()) {
+            if (node.lazy) {
+                continue;
+            }
+
+            long start = 0;
+            for (Node dependency : node.dependencies) {
+                Long finish = finishes.get(dependency);
+                if (finish != null) {
+                    start = Math.max(start, finish);
+                }
+            }
+
+            long finish = start + budget.expectedMillis(node);
+            finishes.put(node, finish);
+            longest = Math.max(longest, finish);
+        }
+
+        return longest;
+    }
+}
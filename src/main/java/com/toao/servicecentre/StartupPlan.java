@@ -0,0 +1,103 @@
+package com.toao.servicecentre;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Managed service metadata worked out at compile time.
+ *
+ * Implementations are generated by the annotation processor in the servicecentre-processor
+ * module and registered in META-INF/services, where ServiceCentre finds them with a
+ * {@link java.util.ServiceLoader}. Services in a plan don't need their class hierarchy,
+ * annotation or injection points inspected when the ServiceCentre starts.
+ */
+public interface StartupPlan {
+    /**
+     * The planned services, keyed by the binary name of the concrete service class.
+     */
+    Map<String, PlannedService> services();
+
+    final class PlannedService {
+        private final String annotatedType;
+        private final boolean singleton;
+        private final int level;
+        private final boolean lazy;
+        private final long startupTimeoutMillis;
+        private final long shutdownTimeoutMillis;
+        private final List<String> resources;
+        private final List<String> dependencies;
+        private final List<String> qualifiers;
+
+        public PlannedService(String annotatedType, boolean singleton, int level, boolean lazy, long startupTimeoutMillis,
+                              long shutdownTimeoutMillis, List<String> resources, List<String> dependencies,
+                              List<String> qualifiers) {
+            if ((dependencies == null) != (qualifiers == null) || (dependencies != null && dependencies.size() != qualifiers.size())) {
+                throw new IllegalArgumentException("Planned service " + annotatedType + " needs one qualifier for each of its dependencies");
+            }
+
+            this.annotatedType = annotatedType;
+            this.singleton = singleton;
+            this.level = level;
+            this.lazy = lazy;
+            this.startupTimeoutMillis = startupTimeoutMillis;
+            this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+            this.resources = resources;
+            this.dependencies = dependencies;
+            this.qualifiers = qualifiers;
+        }
+
+        /**
+         * The binary name of the class or interface carrying the ManagedService annotation. Its
+         * supervision is read from there when the service is first supervised, after startup.
+         */
+        public String getAnnotatedType() {
+            return annotatedType;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public boolean isLazy() {
+            return lazy;
+        }
+
+        public long getStartupTimeoutMillis() {
+            return startupTimeoutMillis;
+        }
+
+        public long getShutdownTimeoutMillis() {
+            return shutdownTimeoutMillis;
+        }
+
+        /**
+         * The resources as they are written on the annotation, each optionally followed by a weight.
+         */
+        public List<String> getResources() {
+            return resources;
+        }
+
+        public boolean isSingleton() {
+            return singleton;
+        }
+
+        /**
+         * The types the service has injected, or null if they couldn't be planned and its injection
+         * points have to be inspected at runtime. Each is the binary name of the class, followed by
+         * its type arguments in angle brackets if it has any, for example
+         * {@code example.Store<example.User>} or {@code java.util.List<? extends example.Api>}.
+         */
+        public List<String> getDependencies() {
+            return dependencies;
+        }
+
+        /**
+         * The binding annotation on each of the dependencies, null where there isn't one. Each is
+         * the binary name of the annotation, followed by its value in brackets for {@code @Named}.
+         * Null when the dependencies are.
+         */
+        public List<String> getQualifiers() {
+            return qualifiers;
+        }
+    }
+}
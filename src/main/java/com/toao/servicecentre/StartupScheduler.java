@@ -0,0 +1,457 @@
+package com.toao.servicecentre;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.Service.State;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.toao.servicecentre.ParallelProvisioner.Provisioned;
+import com.toao.servicecentre.ServiceCentre.ServiceCentreInitialisationException;
+import com.toao.servicecentre.ServiceCentre.ServicesFailedException;
+import com.toao.servicecentre.ServiceGraph.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+/**
+ * Starts the services in a {@link ServiceGraph}, each one as soon as all of its own
+ * dependencies are running.
+ *
+ * All of the bookkeeping happens on the thread calling {@link #run()}. Service listeners
+ * only hand the node that changed state over to that thread.
+ *
+ * In fail-fast mode the first failure is thrown straight away, without waiting for the
+ * services that are still starting. Those services and the ones already running are then
+ * stopped in reverse dependency order on a separate thread.
+ *
+ * Deferred lazy services are skipped, they are started by {@link OnDemandStarter}.
+ *
+ * Services that are ready wait for the {@link StartupBudget} to admit them, longest expected
+ * startup first. Each one gives its share of the budget back once it has settled.
+ *
+ * Services that are still being provisioned are ready once they have been as well, so each
+ * one starts as soon as it can rather than after every service has been provisioned. Startup
+ * isn't finished until every service, lazy ones included, has been provisioned. When the budget
+ * is limited, the longest of the services only waiting to be provisioned keeps its share of it,
+ * and ready services with shorter expected startups are only admitted around that share.
+ */
+final class StartupScheduler {
+    private static Logger sLogger = LoggerFactory.getLogger(StartupScheduler.class);
+
+    private final ServiceGraph graph;
+    private final LifecycleRecorder recorder;
+    private final boolean failFast;
+    private final StartupBudget budget;
+    private final BlockingQueue<Node> transitions = new LinkedBlockingQueue<>();
+    private final Map<Node, Integer> remaining = new IdentityHashMap<>();
+    private final Set<Node> settled = Collections.newSetFromMap(new IdentityHashMap<>());
+    // Longest expected startup first, then in the order they became ready
+    private final NavigableSet<Ready> ready = new TreeSet<>();
+    // Barriers don't take any of the budget, so they are let through ahead of the services
+    private final Deque<Node> readyBarriers = new ArrayDeque<>();
+    private long readySequence;
+    // Services whose dependencies are all running but that haven't been provisioned yet
+    private final Map<Node, Ready> awaitingProvisioning = new IdentityHashMap<>();
+    // The same services, longest expected startup first, as the budget is held for the first of them
+    private final NavigableSet<Ready> awaitingByExpected = new TreeSet<>();
+    private final Map<Service, Throwable> failedServices = new LinkedHashMap<>();
+    private final Map<Node, Deadline> inFlight = new IdentityHashMap<>();
+    // Most services have no startup timeout, and then there's no need to look through inFlight
+    private int boundedInFlight;
+    private final Set<Node> started = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<Node, ListenableFuture<Provisioned>> provisioning;
+    private final Consumer<Node> onProvisioned;
+    private RuntimeException provisioningFailure;
+
+    /**
+     * @param provisioning  the nodes whose services are still being provisioned
+     * @param onProvisioned called on this scheduler's thread with each of them once it has been,
+     *                      before it is started
+     */
+    StartupScheduler(ServiceGraph graph, LifecycleRecorder recorder, boolean failFast, StartupBudget budget,
+                     Map<Node, ListenableFuture<Provisioned>> provisioning, Consumer<Node> onProvisioned) {
+        this.graph = graph;
+        this.recorder = recorder;
+        this.failFast = failFast;
+        this.budget = budget;
+        this.provisioning = new IdentityHashMap<>(provisioning);
+        this.onProvisioned = onProvisioned;
+    }
+
+    /**
+     * Blocks until every service is running, or until every service that was started
+     * has settled after a failure.
+     *
+     * @throws ServicesFailedException             if any service failed to start
+     * @throws ServiceCentreInitialisationException if a service couldn't be provisioned
+     */
+    void run() {
+        for (Node node : graph.nodes()) {
+            if (node.lazy) {
+                continue;
+            }
+
+            int waitingFor = node.dependencies.size() + (provisioning.containsKey(node) ? 1 : 0);
+            remaining.put(node, waitingFor);
+            if (waitingFor == 0) {
+                markReady(node);
+            } else if (waitingFor == 1 && node.dependencies.isEmpty()) {
+                awaitProvisioning(node);
+            }
+        }
+
+        for (Map.Entry<Node, ListenableFuture<Provisioned>> entry : provisioning.entrySet()) {
+            final Node node = entry.getKey();
+            entry.getValue().addListener(() -> transitions.add(node), directExecutor());
+        }
+
+        while (true) {
+            boolean failed = !failedServices.isEmpty() || provisioningFailure != null;
+
+            Node next;
+            while (!failed && (next = nextAdmitted()) != null) {
+                start(next);
+            }
+
+            // The services that weren't provisioned after a failure never will be
+            if ((inFlight.isEmpty() && (failed || provisioning.isEmpty())) || (failFast && failed)) {
+                break;
+            }
+
+            Node node = nextTransition();
+
+            if (node == null) {
+                timeOutOverdueServices();
+                continue;
+            }
+
+            ListenableFuture<Provisioned> provisioned = provisioning.remove(node);
+            if (provisioned != null) {
+                provisioned(node, provisioned);
+                continue;
+            }
+
+            if (settled.contains(node)) {
+                continue;
+            }
+
+            State state = node.service.state();
+
+            if (state == State.RUNNING) {
+                settle(node);
+                complete(node);
+            } else if (state == State.FAILED || state == State.TERMINATED) {
+                settle(node);
+                settled.add(node);
+                failedServices.put(node.service, state == State.FAILED ? node.service.failureCause() :
+                    new IllegalStateException("Service " + node + " terminated while starting"));
+            }
+        }
+
+        if (!failedServices.isEmpty()) {
+            sLogger.error("Services {} failed startup", failedServices.keySet());
+            for (Map.Entry<Service, Throwable> entry : failedServices.entrySet()) {
+                sLogger.error("Service " + entry.getKey() + " failed with exception: " + entry.getValue(), entry.getValue());
+            }
+
+            if (failFast) {
+                rollback();
+            }
+
+            throw new ServicesFailedException(failedServices);
+        }
+
+        if (provisioningFailure != null) {
+            if (failFast) {
+                rollback();
+            }
+
+            throw provisioningFailure;
+        }
+    }
+
+    private void provisioned(Node node, ListenableFuture<Provisioned> future) {
+        Provisioned provisioned;
+
+        try {
+            provisioned = Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            if (provisioningFailure == null) {
+                Throwable cause = e.getCause();
+                sLogger.error("Unable to provision service {}", node, cause);
+                provisioningFailure = cause instanceof ServiceCentreInitialisationException ?
+                    (ServiceCentreInitialisationException) cause :
+                    new ServiceCentreInitialisationException("Unable to provision service " + node, cause);
+            }
+            return;
+        } catch (CancellationException e) {
+            // Left unprovisioned after another service failed to be, which is the failure reported
+            return;
+        }
+
+        recorder.provisioned(node.level, provisioned.service, provisioned.began, provisioned.finished);
+        onProvisioned.accept(node);
+        Ready awaiting = awaitingProvisioning.remove(node);
+        if (awaiting != null) {
+            awaitingByExpected.remove(awaiting);
+        }
+
+        if (!node.lazy && remaining.merge(node, -1, Integer::sum) == 0) {
+            markReady(node);
+        }
+    }
+
+    private void rollback() {
+        final List<Node> toStop = new ArrayList<>();
+        for (Node node : graph.nodes()) {
+            if (started.contains(node)) {
+                toStop.add(node);
+            }
+        }
+
+        sLogger.info("Stopping {} services that were started before the failure", toStop.size());
+
+        // Nothing that depends on a service that's still starting can have been started,
+        // so those can be told to stop straight away
+        for (Node node : inFlight.keySet()) {
+            recorder.stopRequested(node.service);
+            node.service.stopAsync();
+        }
+
+        Thread thread = new Thread(() -> stopInReverseOrder(Lists.reverse(toStop)), "ServiceCentre rollback");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops each service once all of its started dependents have terminated.
+     */
+    private void stopInReverseOrder(List<Node> toStop) {
+        Set<Node> stopping = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Node> passedBarriers = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (Node node : toStop) {
+            awaitDependents(node, stopping, passedBarriers);
+            stopping.add(node);
+
+            if (!inFlight.containsKey(node)) {
+                recorder.stopRequested(node.service);
+                node.service.stopAsync();
+            }
+        }
+
+        for (Node node : toStop) {
+            awaitTerminatedQuietly(node);
+        }
+    }
+
+    private void awaitDependents(Node node, Set<Node> stopping, Set<Node> passedBarriers) {
+        for (Node dependent : node.dependents) {
+            if (dependent.isBarrier()) {
+                // Barriers are shared by a whole level, only wait on them once
+                if (passedBarriers.add(dependent)) {
+                    awaitDependents(dependent, stopping, passedBarriers);
+                }
+            } else if (stopping.contains(dependent)) {
+                awaitTerminatedQuietly(dependent);
+            }
+        }
+    }
+
+    private void awaitTerminatedQuietly(Node node) {
+        try {
+            node.service.awaitTerminated();
+            recorder.terminated(node.service);
+        } catch (IllegalStateException e) {
+            sLogger.debug("Service {} failed while being stopped", node, e);
+        }
+    }
+
+    private void start(Node node) {
+        if (node.isBarrier()) {
+            sLogger.info("All services up to and including level {} are running", node.level);
+            recorder.levelRunning(node.level);
+            complete(node);
+            return;
+        }
+
+        sLogger.debug("Starting service {} at level {} after {}", node, node.level, node.dependencies);
+
+        node.service.addListener(new Service.Listener() {
+            @Override
+            public void running() {
+                transitions.add(node);
+            }
+
+            @Override
+            public void terminated(State from) {
+                transitions.add(node);
+            }
+
+            @Override
+            public void failed(State from, Throwable failure) {
+                transitions.add(node);
+            }
+        }, directExecutor());
+
+        try {
+            recorder.startRequested(node.service);
+            node.service.startAsync();
+            started.add(node);
+            budget.acquire(node);
+            Deadline deadline = Deadline.after(ServiceMetadata.of(node.service).startupTimeoutMillis(), TimeUnit.MILLISECONDS);
+            inFlight.put(node, deadline);
+            if (deadline.isBounded()) {
+                boundedInFlight++;
+            }
+        } catch (Exception e) {
+            // We may get an error as soon as we call start(), need to deal with it
+            settled.add(node);
+            failedServices.put(node.service, e);
+        }
+    }
+
+    /**
+     * Waits for the next service to change state, or returns null if a service's startup
+     * deadline passes first.
+     */
+    private Node nextTransition() {
+        Deadline earliest = Deadline.NONE;
+        if (boundedInFlight > 0) {
+            for (Deadline deadline : inFlight.values()) {
+                earliest = earliest.earliest(deadline);
+            }
+        }
+
+        if (!earliest.isBounded()) {
+            return Uninterruptibles.takeUninterruptibly(transitions);
+        }
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return transitions.poll(earliest.remainingNanos(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void timeOutOverdueServices() {
+        Iterator<Map.Entry<Node, Deadline>> iterator = inFlight.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<Node, Deadline> entry = iterator.next();
+            Node node = entry.getKey();
+
+            if (entry.getValue().hasPassed()) {
+                iterator.remove();
+                boundedInFlight--;
+                budget.release(node);
+                settled.add(node);
+                failedServices.put(node.service, new TimeoutException("Service " + node + " did not start in time"));
+                // Don't leave it running once it does finish starting
+                node.service.stopAsync();
+            }
+        }
+    }
+
+    private void settle(Node node) {
+        Deadline deadline = inFlight.remove(node);
+        if (deadline != null && deadline.isBounded()) {
+            boundedInFlight--;
+        }
+        budget.release(node);
+    }
+
+    private void complete(Node node) {
+        settled.add(node);
+
+        for (Node dependent : node.dependents) {
+            if (dependent.lazy) {
+                continue;
+            }
+
+            int waitingFor = remaining.merge(dependent, -1, Integer::sum);
+            if (waitingFor == 0) {
+                markReady(dependent);
+            } else if (waitingFor == 1 && provisioning.containsKey(dependent)) {
+                awaitProvisioning(dependent);
+            }
+        }
+    }
+
+    private void awaitProvisioning(Node node) {
+        if (!awaitingProvisioning.containsKey(node)) {
+            Ready awaiting = new Ready(node, budget.expectedMillis(node), readySequence++);
+            awaitingProvisioning.put(node, awaiting);
+            awaitingByExpected.add(awaiting);
+        }
+    }
+
+    private void markReady(Node node) {
+        if (node.isBarrier()) {
+            readyBarriers.add(node);
+        } else {
+            ready.add(new Ready(node, budget.expectedMillis(node), readySequence++));
+        }
+    }
+
+    private Node nextAdmitted() {
+        if (!readyBarriers.isEmpty()) {
+            return readyBarriers.poll();
+        }
+
+        if (ready.isEmpty() || budget.isFull()) {
+            return null;
+        }
+
+        Ready held = budget.isLimited() && !awaitingByExpected.isEmpty() ? awaitingByExpected.first() : null;
+
+        // Only services held back by their resources, or by the share kept for the held service, are passed over
+        for (Iterator<Ready> iterator = ready.iterator(); iterator.hasNext(); ) {
+            Ready next = iterator.next();
+            boolean shorter = held != null && next.expectedMillis < held.expectedMillis;
+
+            if (shorter ? budget.admits(next.node, held.node) : budget.admits(next.node)) {
+                iterator.remove();
+                return next.node;
+            }
+        }
+        return null;
+    }
+
+    private static final class Ready implements Comparable<Ready> {
+        final Node node;
+        final long expectedMillis;
+        final long sequence;
+
+        Ready(Node node, long expectedMillis, long sequence) {
+            this.node = node;
+            this.expectedMillis = expectedMillis;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Ready other) {
+            int byExpected = Long.compare(other.expectedMillis, expectedMillis);
+            return byExpected != 0 ? byExpected : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.Service.State;
+import com.toao.servicecentre.ServiceGraph.Node;
+import com.toao.servicecentre.annotations.Supervision;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+/**
+ * Restarts supervised services that stop once they are running, following their {@link Supervision}.
+ *
+ * Listeners only hand stopped services over to a single supervisor thread, which keeps the
+ * restart history, waits out the backoff and swaps a fresh instance into the ServiceCentre.
+ * A restart that fails to start counts as another restart.
+ */
+final class Supervisor {
+    private static Logger sLogger = LoggerFactory.getLogger(Supervisor.class);
+
+    private final ServiceCentre serviceCentre;
+    private final ServiceProvisioner provisioner;
+    private final LifecycleRecorder recorder;
+    private final ScheduledThreadPoolExecutor executor;
+    // Only touched on the supervisor thread
+    private final Map<Node, Deque<Long>> restartTimes = new IdentityHashMap<>();
+    private final Set<Service> released = Collections.newSetFromMap(new ConcurrentHashMap<Service, Boolean>());
+    private volatile boolean closed;
+
+    Supervisor(ServiceCentre serviceCentre, ServiceProvisioner provisioner, LifecycleRecorder recorder) {
+        this.serviceCentre = serviceCentre;
+        this.provisioner = provisioner;
+        this.recorder = recorder;
+
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "ServiceCentre supervisor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setKeepAliveTime(1, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts watching the service at the node, if it is supervised and can be restarted.
+     */
+    void supervise(Node node) {
+        Supervision supervision = ServiceMetadata.of(node.service).supervision();
+
+        if (supervision.restart() == Supervision.Restart.NEVER) {
+            return;
+        }
+
+        String refusal = provisioner.refusal(node.service.getClass());
+
+        if (refusal != null) {
+            sLogger.warn("Service {} won't be supervised. {}", node, refusal);
+            return;
+        }
+
+        watch(node, node.service, supervision, false);
+    }
+
+    /**
+     * Stops supervising the node's current instance, which is about to be stopped on purpose,
+     * and returns it. Once this has returned a pending restart can't swap another one in.
+     */
+    synchronized Service release(Node node) {
+        Service service = node.service;
+        released.add(service);
+        return service;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops any further restarts. A restart that has already provisioned its fresh instance
+     * may still swap it in, the ServiceCentre checks {@link #isClosed()} while it holds its lock.
+     */
+    void close() {
+        closed = true;
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the flag that makes sure each instance is only handled once
+     */
+    private AtomicBoolean watch(final Node node, final Service service, final Supervision supervision, final boolean restarted) {
+        final AtomicBoolean handled = new AtomicBoolean();
+
+        service.addListener(new Service.Listener() {
+            @Override
+            public void failed(State from, Throwable failure) {
+                // The first instance is only supervised once it has been running, failing to start is a startup failure
+                if (restarted || from != State.STARTING) {
+                    stopped(node, service, supervision, handled, failure);
+                }
+            }
+
+            @Override
+            public void terminated(State from) {
+                if (supervision.restart() == Supervision.Restart.ALWAYS && (restarted || from != State.STARTING)) {
+                    stopped(node, service, supervision, handled,
+                        new IllegalStateException("Service " + node + " terminated unexpectedly"));
+                }
+            }
+        }, directExecutor());
+
+        // Listeners aren't called for services that had already failed
+        if (service.state() == State.FAILED && service.failureCause() != null) {
+            stopped(node, service, supervision, handled, service.failureCause());
+        }
+
+        return handled;
+    }
+
+    private void stopped(Node node, Service service, Supervision supervision, AtomicBoolean handled, Throwable cause) {
+        if (closed || released.contains(service) || !handled.compareAndSet(false, true)) {
+            return;
+        }
+
+        sLogger.warn("Supervised service " + node + " stopped", cause);
+
+        submit(() -> scheduleRestart(node, service, supervision, cause), 0);
+    }
+
+    private void scheduleRestart(Node node, Service service, Supervision supervision, Throwable cause) {
+        if (released.contains(service)) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        Deque<Long> times = restartTimes.computeIfAbsent(node, key -> new ArrayDeque<>());
+
+        while (!times.isEmpty() && now - times.peekFirst() > TimeUnit.MILLISECONDS.toNanos(supervision.windowMillis())) {
+            times.pollFirst();
+        }
+
+        if (times.size() >= supervision.maxRestarts()) {
+            sLogger.error("Giving up on service {} after {} restarts in {}ms", node, times.size(), supervision.windowMillis());
+
+            if (supervision.escalate()) {
+                serviceCentre.escalate(service, cause);
+            }
+            return;
+        }
+
+        long backoff = supervision.initialBackoffMillis() << Math.min(times.size(), 30);
+        backoff = Math.max(0, Math.min(backoff, supervision.maxBackoffMillis()));
+
+        times.addLast(now);
+
+        sLogger.info("Restarting service {} in {}ms, restart {} of {} in the window", node, backoff, times.size(),
+            supervision.maxRestarts());
+
+        submit(() -> restart(node, service, supervision), backoff);
+    }
+
+    private void restart(Node node, Service service, Supervision supervision) {
+        if (released.contains(service)) {
+            return;
+        }
+
+        Service fresh;
+
+        try {
+            fresh = provisioner.fresh(service.getClass());
+        } catch (RuntimeException e) {
+            sLogger.error("Unable to provision a fresh instance of " + node, e);
+            scheduleRestart(node, service, supervision, e);
+            return;
+        }
+
+        synchronized (this) {
+            // Restarted or deregistered during the backoff or while the fresh instance was provisioned
+            if (released.contains(service) || !serviceCentre.replace(node, service, fresh)) {
+                return;
+            }
+        }
+
+        final AtomicBoolean handled = watch(node, fresh, supervision, true);
+
+        recorder.startRequested(fresh);
+        fresh.startAsync();
+
+        long timeout = ServiceMetadata.of(fresh).startupTimeoutMillis();
+        if (timeout > 0) {
+            submit(() -> {
+                if (fresh.state() == State.STARTING) {
+                    stopped(node, fresh, supervision, handled,
+                        new TimeoutException("Service " + node + " did not restart in time"));
+                    fresh.stopAsync();
+                }
+            }, timeout);
+        }
+    }
+
+    private void submit(Runnable task, long delayMillis) {
+        try {
+            executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed in the meantime
+            sLogger.debug("Supervisor is closed, not running {}", task);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.toao.servicecentre;
+
+/**
+ * Implemented by managed services that can give up their resources while idle without being
+ * stopped, such as connection pools, caches and worker threads, and take them back later.
+ *
+ * {@link ServiceCentre#suspend()} calls {@link #suspend()} on the {@link LifecycleExecutor},
+ * from the highest level down, and {@link ServiceCentre#resume()} calls {@link #resume()} from
+ * the lowest level up, with the services in each level in parallel. Called from one of the
+ * LifecycleExecutor's own threads they are called one after another on that thread instead.
+ * The services stay RUNNING throughout, and a suspended service may be stopped without being
+ * resumed.
+ */
+public interface Suspendable {
+    void suspend() throws Exception;
+
+    void resume() throws Exception;
+}
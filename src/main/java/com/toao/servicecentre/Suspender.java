@@ -0,0 +1,146 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.Service.State;
+import com.toao.servicecentre.ServiceCentre.ServicesFailedException;
+import com.toao.servicecentre.ServiceGraph.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Suspends the running {@link Suspendable} services in a {@link ServiceGraph}, the levels from
+ * the highest down, and resumes them from the lowest up, with the services in each level in
+ * parallel on the {@link LifecycleExecutor}.
+ *
+ * Calls are made one at a time by the ServiceCentre, which keeps track of the readiness.
+ */
+final class Suspender {
+    private static Logger sLogger = LoggerFactory.getLogger(Suspender.class);
+
+    private final ServiceGraph graph;
+    private final LifecycleExecutor executor;
+    private final Set<Service> suspended = Collections.newSetFromMap(new IdentityHashMap<Service, Boolean>());
+
+    Suspender(ServiceGraph graph, LifecycleExecutor executor) {
+        this.graph = graph;
+        this.executor = executor;
+    }
+
+    /**
+     * @throws ServicesFailedException if any of the services fail to suspend, in which case the
+     *                                 rest are still suspended
+     */
+    void suspend() {
+        long start = System.currentTimeMillis();
+        TreeMap<Integer, List<Service>> levels = suspendableByLevel(false);
+        Map<Service, Throwable> failedServices = new LinkedHashMap<>();
+
+        for (List<Service> level : levels.descendingMap().values()) {
+            Map<Service, Throwable> failures = forEachInParallel(level, "suspend", Suspendable::suspend);
+            for (Service service : level) {
+                if (!failures.containsKey(service)) {
+                    suspended.add(service);
+                }
+            }
+            failedServices.putAll(failures);
+        }
+
+        if (!failedServices.isEmpty()) {
+            sLogger.error("Services {} failed to suspend", ServiceCentre.getNiceNames(failedServices.keySet()));
+            throw new ServicesFailedException(failedServices);
+        }
+
+        sLogger.info("Suspended {} services in {}ms", suspended.size(), (System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Resumes the services that were suspended.
+     *
+     * @throws ServicesFailedException if any of the services fail to resume, in which case the
+     *                                 rest are still resumed
+     */
+    void resume() {
+        long start = System.currentTimeMillis();
+        Map<Service, Throwable> failedServices = new LinkedHashMap<>();
+
+        int resumed = 0;
+
+        for (List<Service> level : suspendableByLevel(true).values()) {
+            failedServices.putAll(forEachInParallel(level, "resume", Suspendable::resume));
+            resumed += level.size();
+        }
+
+        suspended.clear();
+
+        if (!failedServices.isEmpty()) {
+            sLogger.error("Services {} failed to resume", ServiceCentre.getNiceNames(failedServices.keySet()));
+            throw new ServicesFailedException(failedServices);
+        }
+
+        sLogger.info("Resumed {} services in {}ms", resumed, (System.currentTimeMillis() - start));
+    }
+
+    /**
+     * The running Suspendable services by level, or the ones that are currently suspended.
+     */
+    private TreeMap<Integer, List<Service>> suspendableByLevel(boolean onlySuspended) {
+        TreeMap<Integer, List<Service>> levels = new TreeMap<>();
+
+        for (Node node : graph.nodes()) {
+            Service service = node.service;
+
+            boolean include = onlySuspended ? suspended.contains(service) :
+                service instanceof Suspendable && service.state() == State.RUNNING;
+
+            if (!node.isBarrier() && include) {
+                levels.computeIfAbsent(node.level, level -> new ArrayList<>()).add(service);
+            }
+        }
+
+        return levels;
+    }
+
+    /**
+     * Calls each of the services on the LifecycleExecutor and waits for all of them. Called from
+     * one of the executor's own threads, it calls them one after another instead, since a bounded
+     * executor might have no other thread to run them on.
+     */
+    private Map<Service, Throwable> forEachInParallel(List<Service> services, String action, SuspendableCall call) {
+        final Map<Service, Throwable> failedServices = new ConcurrentHashMap<>();
+        List<ListenableFuture<Void>> futures = new ArrayList<>(services.size());
+        boolean inline = executor.isCurrentThread();
+
+        for (final Service service : services) {
+            ListenableFutureTask<Void> task = ListenableFutureTask.create(() -> {
+                try {
+                    call.call((Suspendable) service);
+                } catch (Exception e) {
+                    sLogger.warn("Service {} failed to {}", service.getClass().getSimpleName(), action, e);
+                    failedServices.put(service, e);
+                }
+                return null;
+            });
+
+            if (inline) {
+                task.run();
+            } else {
+                executor.execute(task);
+            }
+            futures.add(task);
+        }
+
+        Futures.getUnchecked(Futures.successfulAsList(futures));
+
+        return failedServices;
+    }
+
+    private interface SuspendableCall {
+        void call(Suspendable service) throws Exception;
+    }
+}
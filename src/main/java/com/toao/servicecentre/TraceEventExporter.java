@@ -0,0 +1,130 @@
+package com.toao.servicecentre;
+
+import com.toao.servicecentre.LifecycleReport.LevelTiming;
+import com.toao.servicecentre.LifecycleReport.ServiceTiming;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Writes a {@link LifecycleReport} in the Chrome trace event format, which can be opened in
+ * Perfetto or chrome://tracing to see every service as a span on a timeline.
+ *
+ * Each service gets its own track with spans for provisioning, starting, warming up and stopping. Each level
+ * gets a track with its startup and shutdown barrier waits. Anything that didn't happen is left out.
+ */
+public final class TraceEventExporter {
+    private static final int SERVICES_PID = 1;
+    private static final int LEVELS_PID = 2;
+
+    private TraceEventExporter() {
+    }
+
+    public static void write(LifecycleReport report, Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            write(report, writer);
+        }
+    }
+
+    public static void write(LifecycleReport report, Writer writer) throws IOException {
+        TraceWriter trace = new TraceWriter(writer);
+
+        trace.processName(SERVICES_PID, "Services");
+        trace.processName(LEVELS_PID, "Levels");
+
+        List<ServiceTiming> services = report.getServices();
+        for (int tid = 0; tid < services.size(); tid++) {
+            ServiceTiming timing = services.get(tid);
+            String name = timing.getName();
+
+            trace.threadName(SERVICES_PID, tid, name + " (level " + timing.getLevel() + ")");
+            trace.span(SERVICES_PID, tid, name + " provision", "provision", timing.getProvisionBeganNanos(), timing.getProvisionedNanos());
+            trace.span(SERVICES_PID, tid, name + " start", "start", timing.getStartRequestedNanos(), timing.getRunningNanos());
+            trace.span(SERVICES_PID, tid, name + " warm-up", "warm-up", timing.getWarmUpStartedNanos(), timing.getWarmedUpNanos());
+            trace.span(SERVICES_PID, tid, name + " stop", "stop", timing.getStopRequestedNanos(), timing.getTerminatedNanos());
+        }
+
+        for (LevelTiming timing : report.getLevels()) {
+            int level = timing.getLevel();
+
+            trace.threadName(LEVELS_PID, level, "Level " + level);
+            trace.span(LEVELS_PID, level, "Level " + level + " start", "start", timing.getStartNanos(), timing.getRunningNanos());
+            trace.span(LEVELS_PID, level, "Level " + level + " stop", "stop", timing.getStopNanos(), timing.getTerminatedNanos());
+        }
+
+        trace.finish();
+    }
+
+    private static final class TraceWriter {
+        private final Writer writer;
+        private boolean first = true;
+
+        TraceWriter(Writer writer) throws IOException {
+            this.writer = writer;
+            writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        }
+
+        void processName(int pid, String name) throws IOException {
+            metadata("process_name", pid, 0, name);
+        }
+
+        void threadName(int pid, int tid, String name) throws IOException {
+            metadata("thread_name", pid, tid, name);
+        }
+
+        private void metadata(String type, int pid, int tid, String name) throws IOException {
+            next();
+            writer.write("{\"ph\":\"M\",\"name\":\"" + type + "\",\"pid\":" + pid + ",\"tid\":" + tid +
+                ",\"args\":{\"name\":" + quote(name) + "}}");
+        }
+
+        /**
+         * A complete event, with its timestamp and duration in microseconds.
+         */
+        void span(int pid, int tid, String name, String category, long fromNanos, long toNanos) throws IOException {
+            if (fromNanos < 0 || toNanos < 0) {
+                return;
+            }
+
+            next();
+            writer.write("{\"ph\":\"X\",\"name\":" + quote(name) + ",\"cat\":\"" + category + "\",\"pid\":" + pid +
+                ",\"tid\":" + tid + ",\"ts\":" + micros(fromNanos) + ",\"dur\":" + micros(toNanos - fromNanos) + "}");
+        }
+
+        void finish() throws IOException {
+            writer.write("]}");
+            writer.flush();
+        }
+
+        private void next() throws IOException {
+            writer.write(first ? "\n" : ",\n");
+            first = false;
+        }
+
+        private static String micros(long nanos) {
+            return String.valueOf(nanos / 1000) + '.' + String.format("%03d", nanos % 1000);
+        }
+
+        private static String quote(String value) {
+            StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+
+                if (c == '"' || c == '\\') {
+                    builder.append('\\').append(c);
+                } else if (c < 0x20) {
+                    builder.append(String.format("\\u%04x", (int) c));
+                } else {
+                    builder.append(c);
+                }
+            }
+
+            return builder.append('"').toString();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.toao.servicecentre;
+
+/**
+ * Implemented by managed services that need to do some work once everything is running but
+ * before the ServiceCentre reports itself as ready, such as filling caches or exercising hot
+ * paths so the JIT has compiled them before real traffic arrives.
+ *
+ * {@link #warmUp()} is called on the {@link LifecycleExecutor} after every service is running,
+ * once the services the service depends on have finished warming up. A warm-up that throws
+ * fails the readiness of the ServiceCentre, but leaves the services running.
+ */
+public interface WarmUp {
+    void warmUp() throws Exception;
+}
@@ -0,0 +1,103 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Service;
+import com.toao.servicecentre.ServiceCentre.ServicesFailedException;
+import com.toao.servicecentre.ServiceGraph.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+/**
+ * Runs the {@link WarmUp}s of the running services in a {@link ServiceGraph}, each one as soon
+ * as all of its dependencies have warmed up, or failed to.
+ *
+ * Nothing blocks: each node's warm-up is chained onto the futures of its dependencies. Deferred
+ * lazy services haven't been started, so they aren't warmed up.
+ */
+final class WarmUpRunner {
+    private static Logger sLogger = LoggerFactory.getLogger(WarmUpRunner.class);
+
+    private final ServiceGraph graph;
+    private final LifecycleRecorder recorder;
+    private final Executor executor;
+    private final Map<Service, Throwable> failedServices = new ConcurrentHashMap<>();
+
+    WarmUpRunner(ServiceGraph graph, LifecycleRecorder recorder, Executor executor) {
+        this.graph = graph;
+        this.recorder = recorder;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts the warm-ups, returning a future that completes once all of them have finished.
+     * It fails with a {@link ServicesFailedException} if any of them threw.
+     */
+    ListenableFuture<Void> run() {
+        Map<Node, ListenableFuture<?>> warmedUp = new IdentityHashMap<>();
+        List<ListenableFuture<?>> all = new ArrayList<>();
+
+        // Nodes are in dependency order, so every dependency's future already exists
+        for (Node node : graph.nodes()) {
+            if (node.lazy) {
+                continue;
+            }
+
+            List<ListenableFuture<?>> dependencies = new ArrayList<>(node.dependencies.size());
+            for (Node dependency : node.dependencies) {
+                ListenableFuture<?> future = warmedUp.get(dependency);
+                if (future != null) {
+                    dependencies.add(future);
+                }
+            }
+
+            // A dependency that fails to warm up shouldn't hold back the rest
+            ListenableFuture<?> ready = Futures.successfulAsList(dependencies);
+            ListenableFuture<?> future = node.isBarrier() || !(node.service instanceof WarmUp) ? ready :
+                Futures.transform(ready, warmUp(node), executor);
+
+            warmedUp.put(node, future);
+            all.add(future);
+        }
+
+        final SettableFuture<Void> finished = SettableFuture.create();
+
+        Futures.successfulAsList(all).addListener(() -> {
+            if (failedServices.isEmpty()) {
+                finished.set(null);
+            } else {
+                finished.setException(new ServicesFailedException(failedServices));
+            }
+        }, directExecutor());
+
+        return finished;
+    }
+
+    private AsyncFunction<Object, Void> warmUp(final Node node) {
+        return ignored -> {
+            Service service = node.service;
+
+            sLogger.debug("Warming up service {}", node);
+            recorder.warmUpStarted(service);
+
+            try {
+                ((WarmUp) service).warmUp();
+                recorder.warmedUp(service);
+            } catch (Exception e) {
+                sLogger.error("Service {} failed to warm up", node, e);
+                failedServices.put(service, e);
+                throw e;
+            }
+
+            return Futures.immediateFuture(null);
+        };
+    }
+}
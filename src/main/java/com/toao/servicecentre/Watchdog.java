@@ -0,0 +1,160 @@
+package com.toao.servicecentre;
+
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.Service.State;
+import com.toao.servicecentre.LifecycleReport.StallSample;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches for services that have been STARTING or STOPPING for longer than a threshold while
+ * the ServiceCentre is starting up or shutting down, and samples the stacks of the threads
+ * doing their lifecycle work.
+ *
+ * Those threads are found by name and by stack. AbstractIdleService, and so ManagedIdleService,
+ * names the thread running startUp() or shutDown() after the service and its state, and any
+ * other thread with one of the service's own methods on its stack counts too. A stuck service is
+ * sampled once per threshold, up to a limit, and each sample is logged and recorded for the
+ * {@link LifecycleReport}.
+ */
+final class Watchdog implements Runnable {
+    private static Logger sLogger = LoggerFactory.getLogger(Watchdog.class);
+
+    static final int MAX_SAMPLES_PER_SERVICE = 5;
+
+    private final Supplier<Collection<Service>> services;
+    private final LifecycleRecorder recorder;
+    private final long thresholdNanos;
+    private final ScheduledExecutorService executor;
+    // Only touched by the watchdog thread
+    private final Map<Service, Observation> observations = new IdentityHashMap<>();
+
+    Watchdog(Supplier<Collection<Service>> services, LifecycleRecorder recorder, long thresholdNanos) {
+        this.services = services;
+        this.recorder = recorder;
+        this.thresholdNanos = thresholdNanos;
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "ServiceCentre watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+
+        long period = Math.max(TimeUnit.MILLISECONDS.toNanos(10), thresholdNanos / 4);
+        executor.scheduleAtFixedRate(this, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+        try {
+            check(System.nanoTime());
+        } catch (RuntimeException e) {
+            // Never let a failed check cancel the schedule
+            sLogger.warn("Watchdog check failed", e);
+        }
+    }
+
+    private void check(long now) {
+        Set<Service> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (Service service : services.get()) {
+            State state = service.state();
+
+            if (state != State.STARTING && state != State.STOPPING) {
+                continue;
+            }
+
+            seen.add(service);
+
+            Observation observation = observations.get(service);
+            if (observation == null || observation.state != state) {
+                observation = new Observation(state, now);
+                observations.put(service, observation);
+            }
+
+            long stalled = now - observation.since;
+
+            if (stalled >= thresholdNanos && observation.samples < MAX_SAMPLES_PER_SERVICE &&
+                (observation.samples == 0 || now - observation.lastSample >= thresholdNanos)) {
+                observation.samples++;
+                observation.lastSample = now;
+                sample(service, state, stalled);
+            }
+        }
+
+        observations.keySet().retainAll(seen);
+    }
+
+    private void sample(Service service, State state, long stalledNanos) {
+        Map<Thread, StackTraceElement[]> threads = lifecycleThreads(service, state);
+        long stalledMillis = TimeUnit.NANOSECONDS.toMillis(stalledNanos);
+
+        if (threads.isEmpty()) {
+            sLogger.warn("Service {} has been {} for {}ms, no thread found working on it", service, state, stalledMillis);
+            recorder.stalled(new StallSample(service, state, stalledNanos, null, new StackTraceElement[0]));
+            return;
+        }
+
+        for (Map.Entry<Thread, StackTraceElement[]> entry : threads.entrySet()) {
+            StackTraceElement[] stack = entry.getValue();
+
+            if (sLogger.isWarnEnabled()) {
+                StringBuilder builder = new StringBuilder();
+                for (StackTraceElement element : stack) {
+                    builder.append("\n\tat ").append(element);
+                }
+                sLogger.warn("Service {} has been {} for {}ms, thread \"{}\" is at:{}", service, state, stalledMillis,
+                    entry.getKey().getName(), builder);
+            }
+
+            recorder.stalled(new StallSample(service, state, stalledNanos, entry.getKey().getName(), stack));
+        }
+    }
+
+    private static Map<Thread, StackTraceElement[]> lifecycleThreads(Service service, State state) {
+        String threadName = service.getClass().getSimpleName() + " " + state;
+        String className = service.getClass().getName();
+        Map<Thread, StackTraceElement[]> threads = new LinkedHashMap<>();
+
+        for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+            if (entry.getKey().getName().equals(threadName) || hasFrameOf(entry.getValue(), className)) {
+                threads.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return threads;
+    }
+
+    private static boolean hasFrameOf(StackTraceElement[] stack, String className) {
+        for (StackTraceElement element : stack) {
+            if (element.getClassName().equals(className)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Observation {
+        final State state;
+        final long since;
+        int samples;
+        long lastSample;
+
+        Observation(State state, long since) {
+            this.state = state;
+            this.since = since;
+        }
+    }
+}
@@ -9,4 +9,33 @@ import java.lang.annotation.Target;
 @Target(ElementType.TYPE)
 public @interface ManagedService {
 	int level() default 0;
+
+	/**
+	 * How long the service has to reach RUNNING once started, 0 to wait forever.
+	 */
+	long startupTimeoutMillis() default 0;
+
+	/**
+	 * How long the service has to reach TERMINATED once stopped, 0 to wait forever.
+	 */
+	long shutdownTimeoutMillis() default 0;
+
+	/**
+	 * Leave the service NEW when the ServiceCentre starts, and start it the first time it is
+	 * called through a {@link com.toao.servicecentre.LazyServiceProvider}. It is still
+	 * constructed with the other services, so keep expensive work out of its constructor.
+	 */
+	boolean lazy() default false;
+
+	/**
+	 * Named resources the service uses while it starts, each optionally followed by a weight,
+	 * for example {@code {"db:2", "disk"}}. A resource without a weight has a weight of 1.
+	 * Starts are held back while a resource is at the capacity given to the ServiceCentre.
+	 */
+	String[] resources() default {};
+
+	/**
+	 * Whether and how the service is restarted if it stops after it was running.
+	 */
+	Supervision supervision() default @Supervision;
 }
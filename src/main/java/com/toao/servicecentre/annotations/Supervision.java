@@ -0,0 +1,57 @@
+package com.toao.servicecentre.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * How a ServiceCentre replaces a service that stops unexpectedly once it is running.
+ *
+ * Guava services can't be restarted, so each restart is a fresh instance from the Injector.
+ * A singleton would come back as the same stopped instance, so it is constructed directly
+ * through its injectable constructor, with its members injected, which leaves out method
+ * interceptors. Services bound to an instance, a provider or a {@code @Provides} method, with
+ * method interceptors, or in a custom scope, can't be restarted and are left stopped.
+ *
+ * Services that had the old instance injected keep it, and so does a Provider of a singleton.
+ * Go through a LazyServiceProvider, which always calls the current instance.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({})
+public @interface Supervision {
+	Restart restart() default Restart.NEVER;
+
+	/**
+	 * How long to wait before the first restart, doubling for each further restart in the window.
+	 */
+	long initialBackoffMillis() default 100;
+
+	long maxBackoffMillis() default 30000;
+
+	/**
+	 * How many restarts are allowed within the window before the ServiceCentre gives up on the service.
+	 */
+	int maxRestarts() default 5;
+
+	long windowMillis() default 60000;
+
+	/**
+	 * Whether giving up on the service stops the whole ServiceCentre, which then fails with the service.
+	 */
+	boolean escalate() default false;
+
+	enum Restart {
+		/**
+		 * Leave the service stopped.
+		 */
+		NEVER,
+		/**
+		 * Restart the service if it fails.
+		 */
+		ON_FAILURE,
+		/**
+		 * Restart the service if it fails or terminates while the ServiceCentre is running.
+		 */
+		ALWAYS
+	}
+}
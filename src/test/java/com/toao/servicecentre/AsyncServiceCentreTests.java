@@ -0,0 +1,130 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.testone.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class AsyncServiceCentreTests {
+    Module testModule;
+
+    @Before
+    public void setupServices() {
+        testModule = new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(ServiceOne.class).to(AbstractServiceOne.class);
+                bind(ServiceTwo.class).to(AbstractServiceTwo.class);
+                bind(ServiceThree.class).to(AbstractServiceThree.class);
+
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(AbstractServiceOne.class);
+                activeServices.addBinding().to(AbstractServiceTwo.class);
+                activeServices.addBinding().to(AbstractServiceThree.class);
+            }
+        };
+    }
+
+    @Test
+    public void testAllOk() throws Exception {
+        Injector injector = Guice.createInjector(testModule);
+
+        AsyncServiceCentre serviceCentre = injector.getInstance(AsyncServiceCentre.class);
+
+        CompletableFuture<Void> levelOne = AsyncServiceCentre.toCompletableFuture(serviceCentre.levelRunning(1));
+
+        serviceCentre.startAsync();
+
+        levelOne.get(5, TimeUnit.SECONDS);
+        assertEquals("Service two is running", Service.State.RUNNING, injector.getInstance(ServiceTwo.class).state());
+
+        serviceCentre.allRunning().get(5, TimeUnit.SECONDS);
+        serviceCentre.awaitRunning();
+
+        serviceCentre.stopAsync();
+
+        serviceCentre.allTerminated().get(5, TimeUnit.SECONDS);
+        serviceCentre.awaitTerminated();
+    }
+
+    @Test
+    public void testFailingStart() throws Exception {
+        Injector injector = Guice.createInjector(testModule);
+
+        ServiceThree serviceThree = injector.getInstance(AbstractServiceThree.class);
+        serviceThree.setErrorOnStart();
+
+        AsyncServiceCentre serviceCentre = injector.getInstance(AsyncServiceCentre.class);
+
+        serviceCentre.startAsync();
+
+        try {
+            serviceCentre.allRunning().get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            Map<Service, Throwable> failedServices =
+                ((ServiceCentre.ServicesFailedException) e.getCause()).getFailedServices();
+
+            assertEquals("number of failed services is 1", 1, failedServices.size());
+            assertTrue("Failed service is ServiceThree", failedServices.containsKey(serviceThree));
+        }
+
+        // The levels below still started
+        serviceCentre.levelRunning(1).get(5, TimeUnit.SECONDS);
+
+        try {
+            serviceCentre.levelRunning(2).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue("level fails with the services",
+                e.getCause() instanceof ServiceCentre.ServicesFailedException);
+        }
+
+        assertEquals("service centre failed", Service.State.FAILED, serviceCentre.state());
+    }
+
+    @Test
+    public void testShutdownException() throws Exception {
+        Injector injector = Guice.createInjector(testModule);
+
+        ServiceThree serviceThree = injector.getInstance(AbstractServiceThree.class);
+        serviceThree.setErrorOnShutdown();
+
+        AsyncServiceCentre serviceCentre = injector.getInstance(AsyncServiceCentre.class);
+
+        serviceCentre.startAsync();
+        serviceCentre.allRunning().get(5, TimeUnit.SECONDS);
+
+        serviceCentre.stopAsync();
+
+        try {
+            serviceCentre.allTerminated().get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            Map<Service, Throwable> failedServices =
+                ((ServiceCentre.ServicesFailedException) e.getCause()).getFailedServices();
+
+            assertEquals("number of failed services is 1", 1, failedServices.size());
+            assertTrue("Failed service is ServiceThree", failedServices.containsKey(serviceThree));
+        }
+
+        assertEquals("Service one is shut down", Service.State.TERMINATED, injector.getInstance(ServiceOne.class).state());
+    }
+}
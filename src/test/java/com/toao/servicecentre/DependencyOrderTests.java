@@ -0,0 +1,97 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.testone.*;
+import com.toao.servicecentre.testtwo.*;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class DependencyOrderTests {
+    @Test
+    public void testExistingServicesStartInDependencyOrder() {
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(ServiceOne.class).to(AbstractServiceOne.class);
+                bind(ServiceTwo.class).to(AbstractServiceTwo.class);
+                bind(ServiceThree.class).to(AbstractServiceThree.class);
+
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(AbstractServiceOne.class);
+                activeServices.addBinding().to(AbstractServiceTwo.class);
+                activeServices.addBinding().to(AbstractServiceThree.class);
+            }
+        });
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setStartupOrder(ServiceCentre.StartupOrder.DEPENDENCIES);
+
+        serviceCentre.startAsync().awaitRunning();
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void testSlowServiceDoesNotHoldUpUnrelatedServices() {
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(SlowService.class);
+                activeServices.addBinding().to(QuickService.class);
+                activeServices.addBinding().to(DependentService.class);
+            }
+        });
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setStartupOrder(ServiceCentre.StartupOrder.DEPENDENCIES);
+
+        // SlowService only finishes starting once DependentService, a level above it, has started
+        serviceCentre.startAsync().awaitRunning();
+
+        assertEquals("Slow service is running", Service.State.RUNNING, injector.getInstance(SlowService.class).state());
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void testDependencyCycle() {
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(CycleOne.class).to(CycleServiceOne.class);
+                bind(CycleTwo.class).to(CycleServiceTwo.class);
+
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(CycleServiceOne.class);
+                activeServices.addBinding().to(CycleServiceTwo.class);
+            }
+        });
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setStartupOrder(ServiceCentre.StartupOrder.DEPENDENCIES);
+
+        try {
+            serviceCentre.startAsync().awaitRunning();
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue("cause is an initialisation exception",
+                e.getCause() instanceof ServiceCentre.ServiceCentreInitialisationException);
+            assertTrue("cycle is reported", e.getCause().getMessage().contains("CycleServiceOne"));
+        }
+    }
+}
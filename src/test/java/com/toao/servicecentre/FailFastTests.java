@@ -0,0 +1,62 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.testthree.FailingStartService;
+import com.toao.servicecentre.testthree.SlowStartService;
+import com.toao.servicecentre.testtwo.QuickService;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class FailFastTests {
+    @Test
+    public void testFailFastDoesNotWaitForSiblings() throws Exception {
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(QuickService.class);
+                activeServices.addBinding().to(FailingStartService.class);
+                activeServices.addBinding().to(SlowStartService.class);
+            }
+        });
+
+        QuickService quickService = injector.getInstance(QuickService.class);
+        SlowStartService slowService = injector.getInstance(SlowStartService.class);
+        FailingStartService failingService = injector.getInstance(FailingStartService.class);
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setFailFast(true);
+
+        try {
+            // SlowStartService won't finish starting until it is released below
+            serviceCentre.startAsync().awaitRunning(2, TimeUnit.SECONDS);
+            fail();
+        } catch (IllegalStateException e) {
+            Map<Service, Throwable> failedServices =
+                ((ServiceCentre.ServicesFailedException) e.getCause()).getFailedServices();
+
+            assertEquals("number of failed services is 1", 1, failedServices.size());
+            assertTrue("failing service is reported", failedServices.containsKey(failingService));
+            assertEquals("slow service is still starting", Service.State.STOPPING, slowService.state());
+        } finally {
+            slowService.release();
+        }
+
+        // The rollback stops the slow sibling once it has started, then the level below
+        slowService.awaitTerminated(2, TimeUnit.SECONDS);
+        quickService.awaitTerminated(2, TimeUnit.SECONDS);
+    }
+}
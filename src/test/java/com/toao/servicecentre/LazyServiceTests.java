@@ -0,0 +1,97 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.testfour.LazyReportsService;
+import com.toao.servicecentre.testfour.LazyStorageService;
+import com.toao.servicecentre.testfour.Reports;
+import com.toao.servicecentre.testtwo.QuickService;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+public class LazyServiceTests {
+    Module testModule;
+
+    @Before
+    public void setupServices() {
+        testModule = new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(Reports.class).toProvider(LazyServiceProvider.of(Reports.class, LazyReportsService.class));
+
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(QuickService.class);
+                activeServices.addBinding().to(LazyStorageService.class);
+                activeServices.addBinding().to(LazyReportsService.class);
+            }
+        };
+    }
+
+    @Test
+    public void testStartedOnFirstCall() {
+        Injector injector = Guice.createInjector(testModule);
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        Service reportsService = injector.getInstance(LazyReportsService.class);
+        Service storageService = injector.getInstance(LazyStorageService.class);
+
+        assertEquals("eager service is running", Service.State.RUNNING, injector.getInstance(QuickService.class).state());
+        assertEquals("lazy service is not started", Service.State.NEW, reportsService.state());
+        assertEquals("lazy dependency is not started", Service.State.NEW, storageService.state());
+
+        assertEquals("call goes through", "report", injector.getInstance(Reports.class).report());
+
+        assertEquals("lazy service is running", Service.State.RUNNING, reportsService.state());
+        assertEquals("lazy dependency is running", Service.State.RUNNING, storageService.state());
+
+        serviceCentre.stopAsync().awaitTerminated();
+
+        assertEquals("lazy service is shut down", Service.State.TERMINATED, reportsService.state());
+        assertEquals("lazy dependency is shut down", Service.State.TERMINATED, storageService.state());
+    }
+
+    @Test
+    public void testUnusedServiceIsNotStarted() {
+        Injector injector = Guice.createInjector(testModule);
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+        serviceCentre.stopAsync().awaitTerminated();
+
+        for (LifecycleReport.ServiceTiming timing : serviceCentre.getLifecycleReport().getServices()) {
+            if (timing.getService() instanceof LazyReportsService) {
+                assertEquals("never started", -1, timing.getStartupTime(TimeUnit.NANOSECONDS));
+            }
+        }
+
+        assertEquals("lazy service is terminated", Service.State.TERMINATED,
+            injector.getInstance(LazyReportsService.class).state());
+    }
+
+    @Test
+    public void testCalledBeforeServiceCentreStarts() {
+        Injector injector = Guice.createInjector(testModule);
+
+        try {
+            injector.getInstance(Reports.class).report();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("lazy service is not started", Service.State.NEW,
+                injector.getInstance(LazyReportsService.class).state());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.testone.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static junit.framework.Assert.assertTrue;
+
+public class LifecycleEventsTests {
+    Module testModule;
+
+    @Before
+    public void setupServices() {
+        testModule = new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(ServiceOne.class).to(AbstractServiceOne.class);
+                bind(ServiceTwo.class).to(AbstractServiceTwo.class);
+                bind(ServiceThree.class).to(AbstractServiceThree.class);
+
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(AbstractServiceOne.class);
+                activeServices.addBinding().to(AbstractServiceTwo.class);
+                activeServices.addBinding().to(AbstractServiceThree.class);
+            }
+        };
+    }
+
+    @Test
+    public void testTraceFile() throws Exception {
+        Injector injector = Guice.createInjector(testModule);
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+
+        Path file = Files.createTempFile("servicecentre", ".json");
+        serviceCentre.setTraceFile(file);
+
+        serviceCentre.startAsync().awaitRunning();
+
+        String trace = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        assertTrue("is a trace", trace.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[") && trace.endsWith("]}"));
+        assertTrue("has service spans", trace.contains("\"name\":\"AbstractServiceTwo start\""));
+        assertTrue("has level spans", trace.contains("\"name\":\"Level 2 start\""));
+        assertTrue("no shutdown yet", !trace.contains(" stop\""));
+
+        serviceCentre.stopAsync().awaitTerminated();
+
+        trace = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        assertTrue("rewritten after shutdown", trace.contains("\"name\":\"AbstractServiceTwo stop\""));
+
+        Files.delete(file);
+    }
+}
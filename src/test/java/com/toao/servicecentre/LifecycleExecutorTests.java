@@ -0,0 +1,99 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.testtwo.PooledService;
+import com.toao.servicecentre.testtwo.QuickService;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class LifecycleExecutorTests {
+    @Test
+    public void testServicesUseSharedExecutor() {
+        final LifecycleExecutor executor = LifecycleExecutor.bounded(2);
+
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(LifecycleExecutor.class).toInstance(executor);
+
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(PooledService.class);
+                activeServices.addBinding().to(QuickService.class);
+            }
+        });
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        assertSame("service centre shares the executor", executor, serviceCentre.getLifecycleExecutor());
+
+        serviceCentre.startAsync().awaitRunning();
+
+        // AbstractIdleService renames the thread while it runs, but only the pool's threads are daemons
+        assertTrue("started on a pooled thread", injector.getInstance(PooledService.class).getStartupThread().isDaemon());
+
+        serviceCentre.stopAsync().awaitTerminated();
+
+        assertEquals("pooled service is shut down", Service.State.TERMINATED, injector.getInstance(PooledService.class).state());
+    }
+
+    @Test
+    public void testQueueDepthAndActiveCount() throws Exception {
+        LifecycleExecutor executor = LifecycleExecutor.bounded(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(2);
+
+        Runnable task = () -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finished.countDown();
+        };
+
+        executor.execute(task);
+        executor.execute(task);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getActiveCount() != 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        assertEquals("one task running", 1, executor.getActiveCount());
+        assertEquals("one task queued", 1, executor.getQueueDepth());
+
+        release.countDown();
+        assertTrue("both tasks ran", finished.await(5, TimeUnit.SECONDS));
+
+        while (executor.getActiveCount() != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        assertEquals("nothing running", 0, executor.getActiveCount());
+        assertEquals("nothing queued", 0, executor.getQueueDepth());
+    }
+
+    @Test
+    public void testBoundedNeedsAThread() {
+        try {
+            LifecycleExecutor.bounded(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
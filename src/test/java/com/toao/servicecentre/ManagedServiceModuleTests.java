@@ -0,0 +1,81 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.testone.*;
+import com.toao.servicecentre.testthree.RestartableStore;
+import com.toao.servicecentre.testtwo.QuickService;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+
+public class ManagedServiceModuleTests {
+    private Module getInterfaces() {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(ServiceOne.class).to(AbstractServiceOne.class);
+                bind(ServiceTwo.class).to(AbstractServiceTwo.class);
+                bind(ServiceThree.class).to(AbstractServiceThree.class);
+            }
+        };
+    }
+
+    private int runningCount(ServiceCentre serviceCentre) {
+        serviceCentre.startAsync().awaitRunning();
+        int running = serviceCentre.getServiceStates().getRunningCount();
+        serviceCentre.stopAsync().awaitTerminated();
+        return running;
+    }
+
+    @Test
+    public void testBindsIndexedServices() throws Exception {
+        Injector injector = Guice.createInjector(getInterfaces(), new ManagedServiceModule());
+
+        assertEquals("every indexed service", 5, runningCount(injector.getInstance(ServiceCentre.class)));
+    }
+
+    @Test
+    public void testModuleFilters() throws Exception {
+        Injector injector = Guice.createInjector(getInterfaces(), new ManagedServiceModule()
+            .onlyIncludePackages("com.toao.servicecentre.testone", "com.toao.servicecentre.testthree")
+            .excludePackages("com.toao.servicecentre.testthree"));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        assertEquals("only the included packages", 3, serviceCentre.getServiceStates().getRunningCount());
+        assertEquals("excluded service never started", Service.State.NEW, injector.getInstance(RestartableStore.class).state());
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void testServiceCentreFilters() throws Exception {
+        Injector injector = Guice.createInjector(getInterfaces(), new ManagedServiceModule());
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.onlyIncludePackages("com.toao.servicecentre");
+        serviceCentre.excludePackages("com.toao.servicecentre.testone");
+
+        assertEquals("testone left out", 2, runningCount(serviceCentre));
+    }
+
+    @Test
+    public void testAlsoBoundByHand() throws Exception {
+        Injector injector = Guice.createInjector(getInterfaces(), new ManagedServiceModule(), new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder.newSetBinder(binder(), Service.class, Names.named("activeServices"))
+                    .addBinding().to(QuickService.class);
+            }
+        });
+
+        assertEquals("singletons only managed once", 5, runningCount(injector.getInstance(ServiceCentre.class)));
+    }
+}
@@ -0,0 +1,196 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.LifecycleReport.ServiceTiming;
+import com.toao.servicecentre.testseven.*;
+import com.toao.servicecentre.testfour.LazyReportsService;
+import com.toao.servicecentre.testfour.LazyStorageService;
+import com.toao.servicecentre.testfour.Reports;
+import com.toao.servicecentre.testten.ScaleTopology;
+import com.toao.servicecentre.testthree.FailingStartService;
+import com.toao.servicecentre.testtwo.QuickService;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class ProvisioningTests {
+    @Before
+    public void reset() {
+        Rendezvous.reset();
+        EarlyService.started = new CountDownLatch(1);
+    }
+
+    @SafeVarargs
+    private static Module getModule(final Class<? extends Service>... services) {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                for (Class<? extends Service> service : services) {
+                    activeServices.addBinding().to(service);
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testProvisionsInParallel() {
+        Injector injector = Guice.createInjector(getModule(QuickService.class, RendezvousOne.class, RendezvousTwo.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setProvisioningThreads(2);
+
+        serviceCentre.startAsync().awaitRunning();
+
+        assertEquals("all services running", 3, serviceCentre.getServiceStates().getRunningCount());
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void testStartsTheInjectorsSingletons() {
+        Injector injector = Guice.createInjector(getModule(QuickService.class, SingletonOne.class, SingletonTwo.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setProvisioningThreads(2);
+
+        serviceCentre.startAsync().awaitRunning();
+
+        assertEquals("all services running", 3, serviceCentre.getServiceStates().getRunningCount());
+        assertEquals("the Injector's singleton was started", Service.State.RUNNING,
+            injector.getInstance(SingletonOne.class).state());
+        assertEquals("and the other one", Service.State.RUNNING,
+            injector.getInstance(SingletonTwo.class).state());
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void testStartsServicesBeforeEveryServiceIsProvisioned() {
+        Injector injector = Guice.createInjector(getModule(EarlyService.class, LateService.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        assertEquals("all services running", 2, serviceCentre.getServiceStates().getRunningCount());
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void testProvisioningIsReportedSeparately() {
+        Injector injector = Guice.createInjector(getModule(QuickService.class, SlowConstructedService.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        LifecycleReport report = serviceCentre.getLifecycleReport();
+
+        for (ServiceTiming timing : report.getServices()) {
+            if (timing.getService() instanceof SlowConstructedService) {
+                assertTrue("constructor counted as provisioning", timing.getProvisioningTime(TimeUnit.MILLISECONDS) >= 100);
+                assertTrue("but not as startup", timing.getStartupTime(TimeUnit.MILLISECONDS) < 100);
+                assertTrue("started once provisioned", timing.getStartRequestedNanos() >= timing.getProvisionedNanos());
+            }
+        }
+
+        assertTrue("overall provisioning time", report.getProvisioningTime(TimeUnit.MILLISECONDS) >= 100);
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void testProvisioningFailureFailsStartup() {
+        Injector injector = Guice.createInjector(getModule(QuickService.class, UnprovisionableService.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+
+        try {
+            serviceCentre.startAsync().awaitRunning();
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue("cause is an initialisation exception",
+                e.getCause() instanceof ServiceCentre.ServiceCentreInitialisationException);
+            assertTrue("names the service", e.getCause().getMessage().contains("Missing configuration"));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testLazyServiceAfterFailedStartup() {
+        Injector injector = Guice.createInjector(getModule(FailingStartService.class, LazyStorageService.class,
+            LazyReportsService.class), new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(Reports.class).toProvider(LazyServiceProvider.of(Reports.class, LazyReportsService.class));
+            }
+        });
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setProvisioningThreads(1);
+
+        try {
+            serviceCentre.startAsync().awaitRunning();
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue("failed starting", e.getCause() instanceof ServiceCentre.ServicesFailedException);
+        }
+
+        try {
+            injector.getInstance(Reports.class).report();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("lazy service is not started", Service.State.NEW,
+                injector.getInstance(LazyReportsService.class).state());
+        }
+    }
+
+    @Test
+    public void testReportCanBeReadWhileProvisioning() throws Exception {
+        ScaleTopology topology = ScaleTopology.create(1, 2000, 4, 0, 0, 0, directExecutor());
+        final ServiceCentre serviceCentre = topology.createInjector().getInstance(ServiceCentre.class);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread reader = new Thread(() -> {
+            try {
+                while (serviceCentre.state() != Service.State.RUNNING) {
+                    serviceCentre.getLifecycleReport();
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        reader.start();
+
+        serviceCentre.startAsync().awaitRunning();
+        reader.join();
+
+        assertNull("report read while services were provisioned", failure.get());
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNeedsAProvisioningThread() {
+        Injector injector = Guice.createInjector(getModule());
+
+        injector.getInstance(ServiceCentre.class).setProvisioningThreads(0);
+    }
+}
@@ -0,0 +1,155 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.testthree.FailingStartService;
+import com.toao.servicecentre.testthree.PluginService;
+import com.toao.servicecentre.testthree.RestartableStore;
+import com.toao.servicecentre.testthree.StoreClient;
+import com.toao.servicecentre.testtwo.QuickService;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+public class RegistrationTests {
+    private Module getModule() {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(QuickService.class);
+                activeServices.addBinding().to(RestartableStore.class);
+            }
+        };
+    }
+
+    @Test
+    public void testRegisterAndDeregisterWhileRunning() throws Exception {
+        Injector injector = Guice.createInjector(getModule());
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        StoreClient client = injector.getInstance(StoreClient.class);
+        serviceCentre.register(client);
+
+        assertEquals("registered service running", Service.State.RUNNING, client.state());
+        awaitRunningCount(serviceCentre.getServiceStates(), 3);
+        assertEquals("counted", 3, serviceCentre.getServiceStates().getRunningCount());
+        assertEquals("counted at its level", 1, serviceCentre.getServiceStates().getCount(1, Service.State.RUNNING));
+
+        try {
+            serviceCentre.deregister(injector.getInstance(RestartableStore.class));
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected, the client still injects it
+        }
+
+        serviceCentre.deregister(client);
+
+        assertEquals("deregistered service stopped", Service.State.TERMINATED, client.state());
+        assertEquals("no longer counted", 2, serviceCentre.getServiceStates().getRunningCount());
+        assertEquals("nothing left at its level", 0, serviceCentre.getServiceStates().getCount(1, Service.State.TERMINATED));
+
+        serviceCentre.deregister(injector.getInstance(RestartableStore.class));
+        serviceCentre.stopAsync().awaitTerminated();
+
+        assertEquals("rest shut down", Service.State.TERMINATED, injector.getInstance(QuickService.class).state());
+    }
+
+    @Test
+    public void testRegisterBeforeStart() throws Exception {
+        Injector injector = Guice.createInjector(getModule());
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        StoreClient client = injector.getInstance(StoreClient.class);
+        serviceCentre.register(client);
+
+        serviceCentre.startAsync().awaitRunning();
+
+        assertEquals("started with the rest", Service.State.RUNNING, client.state());
+
+        serviceCentre.stopAsync().awaitTerminated();
+
+        assertEquals("stopped with the rest", Service.State.TERMINATED, client.state());
+    }
+
+    @Test
+    public void testConcurrentRegistration() throws Exception {
+        Injector injector = Guice.createInjector(getModule());
+
+        final ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<PluginService>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 32; i++) {
+            futures.add(executor.submit(new Callable<PluginService>() {
+                @Override
+                public PluginService call() throws Exception {
+                    PluginService plugin = new PluginService();
+                    serviceCentre.register(plugin);
+                    return plugin;
+                }
+            }));
+        }
+
+        List<PluginService> plugins = new ArrayList<>();
+        for (Future<PluginService> future : futures) {
+            plugins.add(future.get());
+        }
+        executor.shutdown();
+
+        awaitRunningCount(serviceCentre.getServiceStates(), 34);
+        assertEquals("all running", 32, serviceCentre.getServiceStates().getCount(3, Service.State.RUNNING));
+
+        serviceCentre.stopAsync().awaitTerminated();
+
+        for (PluginService plugin : plugins) {
+            assertEquals("shut down with the rest", Service.State.TERMINATED, plugin.state());
+        }
+    }
+
+    @Test
+    public void testFailedRegistration() throws Exception {
+        Injector injector = Guice.createInjector(getModule());
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        try {
+            serviceCentre.register(new FailingStartService());
+            fail();
+        } catch (ServiceCentre.ServicesFailedException e) {
+            assertEquals("reported", 1, e.getFailedServices().size());
+        }
+
+        assertEquals("not counted", 0, serviceCentre.getServiceStates().getFailedCount());
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+
+    // Listeners can run just after awaitRunning() returns
+    private static void awaitRunningCount(ServiceStates states, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (states.getRunningCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+}
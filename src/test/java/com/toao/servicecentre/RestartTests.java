@@ -0,0 +1,323 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.testthree.CustomScope;
+import com.toao.servicecentre.testthree.FlakyStore;
+import com.toao.servicecentre.testthree.FlakyStoreReader;
+import com.toao.servicecentre.testthree.FlakyStoreWriter;
+import com.toao.servicecentre.testthree.RestartableStore;
+import com.toao.servicecentre.testthree.StoreClient;
+import com.toao.servicecentre.testtwo.QuickService;
+import com.toao.servicecentre.testtwo.SlowService;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class RestartTests {
+    @Before
+    public void clearInstances() {
+        RestartableStore.instances.clear();
+        StoreClient.instances.clear();
+        FlakyStore.instances.clear();
+        FlakyStoreReader.instances.clear();
+        FlakyStoreWriter.instances.clear();
+        FlakyStore.failNextConstruction = false;
+        FlakyStore.failNextStart = false;
+        FlakyStoreReader.failNextStart = false;
+        FlakyStoreWriter.failNextStart = false;
+    }
+
+    private Module getModule() {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(QuickService.class);
+                activeServices.addBinding().to(RestartableStore.class);
+                activeServices.addBinding().to(StoreClient.class);
+            }
+        };
+    }
+
+    private Module getFlakyModule() {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(QuickService.class);
+                activeServices.addBinding().to(FlakyStore.class);
+                activeServices.addBinding().to(FlakyStoreReader.class);
+                activeServices.addBinding().to(FlakyStoreWriter.class);
+            }
+        };
+    }
+
+    @Test
+    public void testRestartsServiceAndDependents() throws Exception {
+        Injector injector = Guice.createInjector(getModule());
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        RestartableStore originalStore = injector.getInstance(RestartableStore.class);
+        StoreClient originalClient = injector.getInstance(StoreClient.class);
+        QuickService quickService = injector.getInstance(QuickService.class);
+
+        serviceCentre.restart(RestartableStore.class);
+
+        assertEquals("fresh store", 2, RestartableStore.instances.size());
+        assertEquals("fresh client", 2, StoreClient.instances.size());
+
+        RestartableStore freshStore = RestartableStore.instances.get(1);
+        StoreClient freshClient = StoreClient.instances.get(1);
+
+        assertEquals("old store stopped", Service.State.TERMINATED, originalStore.state());
+        assertEquals("old client stopped", Service.State.TERMINATED, originalClient.state());
+        assertEquals("fresh store running", Service.State.RUNNING, freshStore.state());
+        assertEquals("fresh client running", Service.State.RUNNING, freshClient.state());
+        assertSame("fresh client uses fresh store", freshStore, freshClient.getStore());
+        assertSame("current store", freshStore, serviceCentre.currentInstance(originalStore));
+
+        assertSame("unrelated service left alone", quickService, serviceCentre.currentInstance(quickService));
+        assertEquals("unrelated service still running", Service.State.RUNNING, quickService.state());
+        assertEquals("service centre still running", Service.State.RUNNING, serviceCentre.state());
+
+        serviceCentre.stopAsync().awaitTerminated();
+
+        assertEquals("fresh store shut down", Service.State.TERMINATED, freshStore.state());
+        assertEquals("fresh client shut down", Service.State.TERMINATED, freshClient.state());
+    }
+
+    @Test
+    public void testRestartingDependentLeavesDependency() throws Exception {
+        Injector injector = Guice.createInjector(getModule());
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        serviceCentre.restart(StoreClient.class);
+
+        assertEquals("store not restarted", 1, RestartableStore.instances.size());
+        assertEquals("fresh client", 2, StoreClient.instances.size());
+        assertSame("fresh client uses running store", RestartableStore.instances.get(0),
+            StoreClient.instances.get(1).getStore());
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void testUnmanagedClass() throws Exception {
+        Injector injector = Guice.createInjector(getModule());
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        try {
+            serviceCentre.restart(SlowService.class);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        } finally {
+            serviceCentre.stopAsync().awaitTerminated();
+        }
+    }
+
+    @Test
+    public void testServiceInCustomScopeIsNotRestarted() throws Exception {
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                bind(RestartableStore.class).in(new CustomScope());
+                activeServices.addBinding().to(RestartableStore.class);
+            }
+        });
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        try {
+            serviceCentre.restart(RestartableStore.class);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("store still running", Service.State.RUNNING,
+                injector.getInstance(RestartableStore.class).state());
+        } finally {
+            serviceCentre.stopAsync().awaitTerminated();
+        }
+    }
+
+    @Test
+    public void testServiceBoundToInstanceIsNotStopped() throws Exception {
+        RestartableStore store = new RestartableStore();
+
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                bind(RestartableStore.class).toInstance(store);
+                activeServices.addBinding().to(RestartableStore.class);
+                activeServices.addBinding().to(StoreClient.class);
+            }
+        });
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        StoreClient client = injector.getInstance(StoreClient.class);
+
+        try {
+            serviceCentre.restart(RestartableStore.class);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        assertEquals("store still running", Service.State.RUNNING, store.state());
+        assertEquals("client still running", Service.State.RUNNING, client.state());
+        assertSame("store still current", store, serviceCentre.currentInstance(store));
+        assertSame("client still current", client, serviceCentre.currentInstance(client));
+        assertEquals("service centre still running", Service.State.RUNNING, serviceCentre.state());
+
+        // Only the client is in the way of restarting the client
+        serviceCentre.restart(StoreClient.class);
+
+        assertEquals("fresh client", 2, StoreClient.instances.size());
+        assertSame("fresh client uses bound store", store, StoreClient.instances.get(1).getStore());
+
+        serviceCentre.stopAsync().awaitTerminated();
+
+        assertEquals("store shut down", Service.State.TERMINATED, store.state());
+    }
+
+    @Test
+    public void testFailedDependencySkipsBothDependents() throws Exception {
+        Injector injector = Guice.createInjector(getFlakyModule());
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        QuickService quickService = injector.getInstance(QuickService.class);
+
+        FlakyStore.failNextStart = true;
+
+        try {
+            serviceCentre.restart(FlakyStore.class);
+            fail();
+        } catch (ServiceCentre.ServicesFailedException e) {
+            Map<Service, Throwable> failedServices = e.getFailedServices();
+
+            assertEquals("store and both dependents reported", 3, failedServices.size());
+            assertTrue("store reported", failedServices.containsKey(FlakyStore.instances.get(1)));
+            assertTrue("reader reported", failedServices.containsKey(FlakyStoreReader.instances.get(1)));
+            assertTrue("writer reported", failedServices.containsKey(FlakyStoreWriter.instances.get(1)));
+        }
+
+        assertEquals("store failed", Service.State.FAILED, FlakyStore.instances.get(1).state());
+        assertEquals("reader not started", Service.State.NEW, FlakyStoreReader.instances.get(1).state());
+        assertEquals("writer not started", Service.State.NEW, FlakyStoreWriter.instances.get(1).state());
+        assertEquals("unrelated service still running", Service.State.RUNNING, quickService.state());
+        assertEquals("service centre still running", Service.State.RUNNING, serviceCentre.state());
+
+        try {
+            serviceCentre.stopAsync().awaitTerminated();
+            fail();
+        } catch (IllegalStateException e) {
+            Map<Service, Throwable> failedServices =
+                ((ServiceCentre.ServicesFailedException) e.getCause()).getFailedServices();
+
+            assertEquals("only the failed store reported on shutdown", 1, failedServices.size());
+            assertTrue("failed store reported on shutdown", failedServices.containsKey(FlakyStore.instances.get(1)));
+        }
+    }
+
+    @Test
+    public void testFailedDependentDoesNotStopItsSibling() throws Exception {
+        Injector injector = Guice.createInjector(getFlakyModule());
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        FlakyStoreReader.failNextStart = true;
+
+        try {
+            serviceCentre.restart(FlakyStore.class);
+            fail();
+        } catch (ServiceCentre.ServicesFailedException e) {
+            assertEquals("only the reader reported", 1, e.getFailedServices().size());
+            assertTrue("reader reported", e.getFailedServices().containsKey(FlakyStoreReader.instances.get(1)));
+        }
+
+        assertEquals("store running", Service.State.RUNNING, FlakyStore.instances.get(1).state());
+        assertEquals("reader failed", Service.State.FAILED, FlakyStoreReader.instances.get(1).state());
+        assertEquals("writer running", Service.State.RUNNING, FlakyStoreWriter.instances.get(1).state());
+        assertSame("writer uses fresh store", FlakyStore.instances.get(1), FlakyStoreWriter.instances.get(1).getStore());
+
+        try {
+            serviceCentre.stopAsync().awaitTerminated();
+            fail();
+        } catch (IllegalStateException e) {
+            Map<Service, Throwable> failedServices =
+                ((ServiceCentre.ServicesFailedException) e.getCause()).getFailedServices();
+
+            assertEquals("only the failed reader reported on shutdown", 1, failedServices.size());
+            assertTrue("failed reader reported on shutdown", failedServices.containsKey(FlakyStoreReader.instances.get(1)));
+        }
+    }
+
+    @Test
+    public void testProvisioningFailureLeavesCentreRunning() throws Exception {
+        Injector injector = Guice.createInjector(getFlakyModule());
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        FlakyStore originalStore = FlakyStore.instances.get(0);
+        QuickService quickService = injector.getInstance(QuickService.class);
+
+        FlakyStore.failNextConstruction = true;
+
+        try {
+            serviceCentre.restart(FlakyStore.class);
+            fail();
+        } catch (ServiceCentre.ServicesFailedException e) {
+            assertEquals("store and both dependents reported", 3, e.getFailedServices().size());
+            assertTrue("store reported", e.getFailedServices().containsKey(originalStore));
+        }
+
+        assertEquals("no fresh store", 1, FlakyStore.instances.size());
+        assertEquals("no fresh reader", 1, FlakyStoreReader.instances.size());
+        assertEquals("no fresh writer", 1, FlakyStoreWriter.instances.size());
+        assertEquals("unrelated service still running", Service.State.RUNNING, quickService.state());
+        assertEquals("service centre still running", Service.State.RUNNING, serviceCentre.state());
+
+        // Nothing is left half restarted, so a second attempt can bring the subtree back
+        serviceCentre.restart(FlakyStore.class);
+
+        assertEquals("fresh store running", Service.State.RUNNING, FlakyStore.instances.get(1).state());
+        assertEquals("fresh reader running", Service.State.RUNNING, FlakyStoreReader.instances.get(1).state());
+        assertEquals("fresh writer running", Service.State.RUNNING, FlakyStoreWriter.instances.get(1).state());
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+}
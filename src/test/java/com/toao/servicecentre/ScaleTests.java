@@ -0,0 +1,127 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.toao.servicecentre.ServiceCentre.StartupOrder;
+import com.toao.servicecentre.testten.ScaleService;
+import com.toao.servicecentre.testten.ScaleTopology;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+/**
+ * Starts and stops thousands of synthetic services in random topologies, checking the ordering
+ * and the failures reported. How the time taken grows with the number of services is measured by
+ * the ServiceCentreBenchmark, as timings are too noisy to assert on here.
+ */
+public class ScaleTests {
+    private static final int SERVICES = 4000;
+    private static final int LEVELS = 8;
+    private static final long MAX_STARTUP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private ExecutorService executor;
+
+    @Before
+    public void createExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testRandomTopologiesStartAndStopInOrder() {
+        for (long seed = 1; seed <= 3; seed++) {
+            for (StartupOrder order : StartupOrder.values()) {
+                ScaleTopology topology = ScaleTopology.create(seed, SERVICES, LEVELS, MAX_STARTUP_NANOS, 0, 0, executor);
+                ServiceCentre serviceCentre = topology.createServiceCentre(order);
+
+                serviceCentre.startAsync().awaitRunning();
+                assertEquals("all services running, seed " + seed, SERVICES, serviceCentre.getServiceStates().getRunningCount());
+
+                serviceCentre.stopAsync().awaitTerminated();
+                assertEquals("all services terminated, seed " + seed, SERVICES,
+                    serviceCentre.getServiceStates().getCount(Service.State.TERMINATED));
+
+                assertEquals("nothing out of order, seed " + seed + " " + order,
+                    Collections.emptyList(), topology.violations());
+            }
+        }
+    }
+
+    @Test
+    public void testStartFailuresAreReportedCompletely() {
+        for (long seed = 1; seed <= 3; seed++) {
+            ScaleTopology topology = ScaleTopology.create(seed, SERVICES, LEVELS, MAX_STARTUP_NANOS, 25, 0, executor);
+            // Level by level, so every service in the failing level is started
+            ServiceCentre serviceCentre = topology.createServiceCentre(StartupOrder.LEVELS);
+
+            try {
+                serviceCentre.startAsync().awaitRunning();
+                fail();
+            } catch (IllegalStateException e) {
+                Map<Service, Throwable> failedServices =
+                    ((ServiceCentre.ServicesFailedException) e.getCause()).getFailedServices();
+
+                assertEquals("every failure reported, seed " + seed, topology.failingStarts(), identitySet(failedServices));
+                assertEquals("nothing out of order, seed " + seed, Collections.emptyList(), topology.violations());
+            } finally {
+                stopAll(topology);
+            }
+        }
+    }
+
+    @Test
+    public void testStopFailuresAreReportedCompletely() {
+        for (long seed = 1; seed <= 3; seed++) {
+            ScaleTopology topology = ScaleTopology.create(seed, SERVICES, LEVELS, MAX_STARTUP_NANOS, 0, 25, executor);
+            ServiceCentre serviceCentre = topology.createServiceCentre(StartupOrder.DEPENDENCIES);
+            serviceCentre.startAsync().awaitRunning();
+
+            try {
+                serviceCentre.stopAsync().awaitTerminated();
+                fail();
+            } catch (IllegalStateException e) {
+                Map<Service, Throwable> failedServices =
+                    ((ServiceCentre.ServicesFailedException) e.getCause()).getFailedServices();
+
+                assertEquals("every failure reported, seed " + seed, topology.failingStops(), identitySet(failedServices));
+            }
+
+            assertEquals("nothing out of order, seed " + seed, Collections.emptyList(), topology.violations());
+        }
+    }
+
+    private static Set<Service> identitySet(Map<Service, Throwable> failedServices) {
+        Set<Service> services = Collections.newSetFromMap(new IdentityHashMap<Service, Boolean>());
+        services.addAll(failedServices.keySet());
+        return services;
+    }
+
+    private static void stopAll(ScaleTopology topology) {
+        // The services that did start are left running by a failed startup, and stopping them
+        // here isn't in any order
+        for (ScaleService service : topology.services()) {
+            service.stopAsync();
+        }
+        for (ScaleService service : topology.services()) {
+            try {
+                service.awaitTerminated();
+            } catch (IllegalStateException e) {
+                // The failed services
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.StartupPlan.PlannedService;
+import com.toao.servicecentre.testone.AbstractServiceThree;
+import com.toao.servicecentre.testtwo.AnnotatedInterfaceService;
+import com.toao.servicecentre.testtwo.QuickService;
+import com.toao.servicecentre.testtwo.StartLatch;
+import org.junit.Test;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+public class ServiceMetadataTests {
+    @Test
+    public void testClassAnnotation() {
+        ServiceMetadata metadata = ServiceMetadata.of(AbstractServiceThree.class);
+
+        assertTrue("is a service", metadata.isService());
+        assertTrue("is managed", metadata.isManaged());
+        assertTrue("is a singleton", metadata.isSingleton());
+        assertEquals("level", 2, metadata.level());
+
+        assertSame("metadata is cached", metadata, ServiceMetadata.of(AbstractServiceThree.class));
+    }
+
+    @Test
+    public void testPlannedKeysKeepQualifiers() throws Exception {
+        ClassLoader loader = getClass().getClassLoader();
+        String type = QuickService.class.getName();
+
+        assertEquals("unqualified", Key.get(QuickService.class), ServiceMetadata.plannedKey(type, null, loader));
+        assertEquals("javax.inject.Named", Key.get(QuickService.class, Names.named("primary")),
+            ServiceMetadata.plannedKey(type, "javax.inject.Named(primary)", loader));
+        assertEquals("Guice Named", Key.get(QuickService.class, Names.named("(nested)")),
+            ServiceMetadata.plannedKey(type, "com.google.inject.name.Named((nested))", loader));
+        assertEquals("marker qualifier", Key.get(QuickService.class, Fast.class),
+            ServiceMetadata.plannedKey(type, Fast.class.getName(), loader));
+    }
+
+    @Test
+    public void testPlannedKeysKeepTypeArguments() throws Exception {
+        ClassLoader loader = getClass().getClassLoader();
+
+        assertEquals("parameterized", Key.get(new TypeLiteral<List<QuickService>>() {
+        }), ServiceMetadata.plannedKey("java.util.List<" + QuickService.class.getName() + ">", null, loader));
+        assertEquals("wildcards and arrays", Key.get(new TypeLiteral<Map<?, ? super QuickService[]>>() {
+        }), ServiceMetadata.plannedKey("java.util.Map<?, ? super " + QuickService.class.getName() + "[]>", null, loader));
+        assertEquals("nested and qualified", Key.get(new TypeLiteral<Map.Entry<String, ? extends Service>>() {
+        }, Names.named("primary")), ServiceMetadata.plannedKey("java.util.Map$Entry<java.lang.String, ? extends " +
+            Service.class.getName() + ">", "javax.inject.Named(primary)", loader));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPlannedServiceNeedsQualifierForEachDependency() {
+        new PlannedService(QuickService.class.getName(), true, 0, false, 0, 0, Collections.<String>emptyList(),
+            Arrays.asList(StartLatch.class.getName()), null);
+    }
+
+    @Test
+    public void testInterfaceAnnotation() {
+        ServiceMetadata metadata = ServiceMetadata.of(AnnotatedInterfaceService.class);
+
+        assertTrue("is managed", metadata.isManaged());
+        assertEquals("level", 3, metadata.level());
+        assertEquals("startup timeout", 1000, metadata.startupTimeoutMillis());
+    }
+
+    @Test
+    public void testNotAService() {
+        ServiceMetadata metadata = ServiceMetadata.of(StartLatch.class);
+
+        assertFalse("is not a service", metadata.isService());
+        assertFalse("is not managed", metadata.isManaged());
+    }
+
+    @Test
+    public void testInterfaceAnnotatedServiceIsManaged() {
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(AnnotatedInterfaceService.class);
+            }
+        });
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+
+        serviceCentre.startAsync().awaitRunning();
+
+        assertEquals("runs at the interface's level", 3, serviceCentre.getLifecycleReport().getServices().get(0).getLevel());
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+
+    @Qualifier
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface Fast {
+    }
+}
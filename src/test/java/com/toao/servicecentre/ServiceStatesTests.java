@@ -0,0 +1,118 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.testone.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class ServiceStatesTests {
+    Module testModule;
+
+    @Before
+    public void setupServices() {
+        testModule = new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(ServiceOne.class).to(AbstractServiceOne.class);
+                bind(ServiceTwo.class).to(AbstractServiceTwo.class);
+                bind(ServiceThree.class).to(AbstractServiceThree.class);
+
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(AbstractServiceOne.class);
+                activeServices.addBinding().to(AbstractServiceTwo.class);
+                activeServices.addBinding().to(AbstractServiceThree.class);
+            }
+        };
+    }
+
+    @Test
+    public void testCounts() throws Exception {
+        Injector injector = Guice.createInjector(testModule);
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        ServiceStates states = serviceCentre.getServiceStates();
+
+        assertEquals("nothing tracked before start", 0, states.getCount(Service.State.NEW));
+        assertEquals("no transitions yet", -1, states.getLastTransitionMillis());
+
+        serviceCentre.startAsync().awaitRunning();
+
+        assertEquals("all running", 3, states.getCount(Service.State.RUNNING));
+        assertEquals("one running at level 1", 1, states.getCount(1, Service.State.RUNNING));
+        assertEquals("nothing at an unknown level", 0, states.getCount(7, Service.State.RUNNING));
+        assertTrue("transition time recorded", states.getLastTransitionMillis(Service.State.RUNNING) > 0);
+
+        serviceCentre.stopAsync().awaitTerminated();
+
+        // Listeners can run just after awaitTerminated() returns
+        awaitCount(states, Service.State.TERMINATED, 3);
+
+        assertEquals("none running", 0, states.getCount(Service.State.RUNNING));
+        assertEquals("all terminated", 3, states.getTerminatedCount());
+        assertEquals("one terminated at level 2", 1, states.getCount(2, Service.State.TERMINATED));
+    }
+
+    private static void awaitCount(ServiceStates states, Service.State state, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (states.getCount(state) != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testFailedCount() throws Exception {
+        Injector injector = Guice.createInjector(testModule);
+
+        injector.getInstance(AbstractServiceThree.class).setErrorOnStart();
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+
+        try {
+            serviceCentre.startAsync().awaitRunning();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        awaitCount(serviceCentre.getServiceStates(), Service.State.FAILED, 1);
+
+        assertEquals("one failed", 1, serviceCentre.getServiceStates().getFailedCount());
+        assertEquals("failed at level 2", 1, serviceCentre.getServiceStates().getCount(2, Service.State.FAILED));
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        Injector injector = Guice.createInjector(testModule);
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setMBeanName("com.toao.servicecentre:type=ServiceCentre,name=testMBean");
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.toao.servicecentre:type=ServiceCentre,name=testMBean");
+
+        serviceCentre.startAsync().awaitRunning();
+
+        assertEquals("running count", 3, server.getAttribute(name, "RunningCount"));
+        assertEquals("level count", 1, server.invoke(name, "getLevelCount",
+            new Object[]{0, "RUNNING"}, new String[]{int.class.getName(), String.class.getName()}));
+
+        serviceCentre.stopAsync().awaitTerminated();
+
+        assertFalse("unregistered on shutdown", server.isRegistered(name));
+    }
+}
@@ -0,0 +1,197 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.testeight.*;
+import com.toao.servicecentre.testthree.FailingStartService;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class ShutdownOrderTests {
+    @Before
+    public void reset() {
+        Shutdowns.reset();
+        IndependentService.stopped = new CountDownLatch(1);
+        SlowDrainingService.drainedAfterIndependentStopped = false;
+    }
+
+    @SafeVarargs
+    private static Module getModule(final Class<? extends Service>... services) {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                for (Class<? extends Service> service : services) {
+                    activeServices.addBinding().to(service);
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testDrainsBeforeStoppingAndAfterDependents() {
+        Injector injector = Guice.createInjector(getModule(DrainingStore.class, StoreWriter.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setStartupOrder(ServiceCentre.StartupOrder.DEPENDENCIES);
+
+        serviceCentre.startAsync().awaitRunning();
+        serviceCentre.stopAsync().awaitTerminated();
+
+        assertEquals("writer stopped, then the store drained and stopped",
+            Arrays.asList("writer stopped", "store drained", "store stopped"), Shutdowns.events);
+    }
+
+    @Test
+    public void testDrainsThroughLazyServiceAtLowerLevel() {
+        Injector injector = Guice.createInjector(getModule(LazyLedgerService.class, LedgerWriter.class), new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(Ledger.class).toProvider(LazyServiceProvider.of(Ledger.class, LazyLedgerService.class));
+            }
+        });
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setStartupOrder(ServiceCentre.StartupOrder.DEPENDENCIES);
+
+        serviceCentre.startAsync().awaitRunning();
+        injector.getInstance(Ledger.class).record("ledger started");
+        serviceCentre.stopAsync().awaitTerminated();
+
+        assertEquals("writer drained through the ledger before it stopped",
+            Arrays.asList("ledger started", "writer drained", "writer stopped", "ledger stopped"), Shutdowns.events);
+    }
+
+    @Test
+    public void testSlowDrainDoesNotHoldUpUnrelatedServices() {
+        Injector injector = Guice.createInjector(getModule(DrainingStore.class, IndependentService.class,
+            SlowDrainingService.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setStartupOrder(ServiceCentre.StartupOrder.DEPENDENCIES);
+
+        serviceCentre.startAsync().awaitRunning();
+        serviceCentre.stopAsync().awaitTerminated();
+
+        assertTrue("level below stopped while the level above drained", SlowDrainingService.drainedAfterIndependentStopped);
+    }
+
+    @Test
+    public void testLevelsStopOneAfterAnother() {
+        Injector injector = Guice.createInjector(getModule(IndependentService.class, SlowDrainingService.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setShutdownTimeout(200, TimeUnit.MILLISECONDS);
+
+        serviceCentre.startAsync().awaitRunning();
+
+        try {
+            serviceCentre.stopAsync().awaitTerminated();
+            fail();
+        } catch (IllegalStateException e) {
+            Map<Service, Throwable> failedServices =
+                ((ServiceCentre.ServicesFailedException) e.getCause()).getFailedServices();
+
+            assertTrue("level above ran out of time draining",
+                failedServices.get(injector.getInstance(SlowDrainingService.class)) instanceof TimeoutException);
+            assertEquals("level below still stopped", Service.State.TERMINATED,
+                injector.getInstance(IndependentService.class).state());
+        }
+    }
+
+    @Test
+    public void testDrainTimeout() throws Exception {
+        Injector injector = Guice.createInjector(getModule(HangingDrainService.class));
+
+        HangingDrainService hangingService = injector.getInstance(HangingDrainService.class);
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setShutdownTimeout(200, TimeUnit.MILLISECONDS);
+
+        serviceCentre.startAsync().awaitRunning();
+
+        try {
+            serviceCentre.stopAsync().awaitTerminated();
+            fail();
+        } catch (IllegalStateException e) {
+            Map<Service, Throwable> failedServices =
+                ((ServiceCentre.ServicesFailedException) e.getCause()).getFailedServices();
+
+            assertEquals("number of failed services is 1", 1, failedServices.size());
+            assertTrue("failed with a timeout", failedServices.get(hangingService) instanceof TimeoutException);
+
+            // Stopped anyway, without waiting for the drain
+            hangingService.awaitTerminated(1, TimeUnit.SECONDS);
+        } finally {
+            hangingService.release();
+        }
+    }
+
+    @Test
+    public void testFailedDrainStillStops() {
+        Injector injector = Guice.createInjector(getModule(FailingDrainService.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+
+        serviceCentre.startAsync().awaitRunning();
+        serviceCentre.stopAsync().awaitTerminated();
+
+        assertEquals("stopped", Arrays.asList("failing drain stopped"), Shutdowns.events);
+    }
+
+    @Test
+    public void testShutdownHookStopsServiceCentre() {
+        Injector injector = Guice.createInjector(getModule(DrainingStore.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.addShutdownHook();
+
+        Thread hook = serviceCentre.shutdownHook;
+        serviceCentre.addShutdownHook();
+        assertTrue("only added once", hook == serviceCentre.shutdownHook);
+
+        serviceCentre.startAsync().awaitRunning();
+
+        // As the JVM would on exit
+        hook.run();
+
+        assertEquals("ServiceCentre stopped", Service.State.TERMINATED, serviceCentre.state());
+        assertEquals("store drained and stopped", Arrays.asList("store drained", "store stopped"), Shutdowns.events);
+        assertFalse("hook removed once stopped", Runtime.getRuntime().removeShutdownHook(hook));
+    }
+
+    @Test
+    public void testShutdownHookRemovedWhenStartupFails() {
+        Injector injector = Guice.createInjector(getModule(DrainingStore.class, FailingStartService.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.addShutdownHook();
+
+        try {
+            serviceCentre.startAsync().awaitRunning();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("ServiceCentre failed", Service.State.FAILED, serviceCentre.state());
+        }
+
+        assertFalse("hook removed once failed", Runtime.getRuntime().removeShutdownHook(serviceCentre.shutdownHook));
+    }
+}
@@ -0,0 +1,133 @@
+package com.toao.servicecentre;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.testfive.LoaderOne;
+import com.toao.servicecentre.testfive.LoaderThree;
+import com.toao.servicecentre.testfive.LoaderTwo;
+import com.toao.servicecentre.testfive.SlowlyProvisionedLoader;
+import com.toao.servicecentre.testfive.ThrottledService;
+import org.junit.Before;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class StartupBudgetTests {
+    @Before
+    public void reset() {
+        ThrottledService.reset();
+    }
+
+    private Module getModule() {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(LoaderOne.class);
+                activeServices.addBinding().to(LoaderTwo.class);
+                activeServices.addBinding().to(LoaderThree.class);
+            }
+        };
+    }
+
+    private ServiceCentre start(ServiceCentre serviceCentre) {
+        serviceCentre.startAsync().awaitRunning();
+        assertEquals("all started", 3, ThrottledService.startOrder.size());
+        serviceCentre.stopAsync().awaitTerminated();
+        return serviceCentre;
+    }
+
+    @Test
+    public void testUnlimited() throws Exception {
+        Injector injector = Guice.createInjector(getModule());
+
+        start(injector.getInstance(ServiceCentre.class));
+
+        assertTrue("started together", ThrottledService.getMaxStarting() > 1);
+    }
+
+    @Test
+    public void testResourceCapacity() throws Exception {
+        Injector injector = Guice.createInjector(getModule());
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setResourceCapacity("db", 3);
+        start(serviceCentre);
+
+        assertEquals("one at a time", 1, ThrottledService.getMaxStarting());
+    }
+
+    @Test
+    public void testWeightOverCapacityStillStarts() throws Exception {
+        Injector injector = Guice.createInjector(getModule());
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setResourceCapacity("disk", 1);
+        serviceCentre.setResourceCapacity("db", 1);
+        start(serviceCentre);
+
+        assertEquals("one at a time", 1, ThrottledService.getMaxStarting());
+    }
+
+    @Test
+    public void testConcurrencyCap() throws Exception {
+        Injector injector = Guice.createInjector(getModule());
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setMaxConcurrentStarts(1);
+        start(serviceCentre);
+
+        assertEquals("one at a time", 1, ThrottledService.getMaxStarting());
+    }
+
+    @Test
+    public void testLongestFirst() throws Exception {
+        Injector injector = Guice.createInjector(getModule());
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setMaxConcurrentStarts(1);
+        serviceCentre.setExpectedStartupMillis(ImmutableMap.of(
+            LoaderTwo.class.getName(), 100L,
+            LoaderThree.class.getName(), 500L));
+        start(serviceCentre);
+
+        assertEquals("longest first", LoaderThree.class, ThrottledService.startOrder.get(0));
+        assertEquals("then the next longest", LoaderTwo.class, ThrottledService.startOrder.get(1));
+        assertEquals("unknown last", LoaderOne.class, ThrottledService.startOrder.get(2));
+    }
+
+    @Test
+    public void testShorterServicesStartAroundOneBeingProvisioned() throws Exception {
+        Injector injector = Guice.createInjector(getModule(), new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder.newSetBinder(binder(), Service.class, Names.named("activeServices"))
+                    .addBinding().to(SlowlyProvisionedLoader.class);
+            }
+        });
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setProvisioningThreads(4);
+        serviceCentre.setMaxConcurrentStarts(2);
+        serviceCentre.setExpectedStartupMillis(ImmutableMap.of(
+            SlowlyProvisionedLoader.class.getName(), 1000L,
+            LoaderOne.class.getName(), 10L,
+            LoaderTwo.class.getName(), 10L,
+            LoaderThree.class.getName(), 10L));
+        serviceCentre.startAsync().awaitRunning();
+        serviceCentre.stopAsync().awaitTerminated();
+
+        assertEquals("all started", 4, ThrottledService.startOrder.size());
+        assertEquals("held service started last", SlowlyProvisionedLoader.class, ThrottledService.startOrder.get(3));
+        assertTrue("within the cap", ThrottledService.getMaxStarting() <= 2);
+    }
+}
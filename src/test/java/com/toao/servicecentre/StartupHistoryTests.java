@@ -0,0 +1,105 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.testfive.LoaderOne;
+import com.toao.servicecentre.testfive.LoaderThree;
+import com.toao.servicecentre.testfive.LoaderTwo;
+import com.toao.servicecentre.testfive.ThrottledService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class StartupHistoryTests {
+    Path directory;
+    Path history;
+
+    @Before
+    public void createHistory() throws Exception {
+        ThrottledService.reset();
+        directory = Files.createTempDirectory("history");
+        history = directory.resolve("startup.properties");
+    }
+
+    @After
+    public void deleteHistory() throws Exception {
+        Files.deleteIfExists(history);
+        Files.delete(directory);
+    }
+
+    private Module getModule() {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(LoaderOne.class);
+                activeServices.addBinding().to(LoaderTwo.class);
+                activeServices.addBinding().to(LoaderThree.class);
+            }
+        };
+    }
+
+    private ServiceCentre run() {
+        Injector injector = Guice.createInjector(getModule());
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setMaxConcurrentStarts(1);
+        serviceCentre.setStartupHistoryFile(history);
+        serviceCentre.startAsync().awaitRunning();
+        serviceCentre.stopAsync().awaitTerminated();
+
+        return serviceCentre;
+    }
+
+    @Test
+    public void testSavesDurations() throws Exception {
+        ServiceCentre serviceCentre = run();
+
+        assertEquals("nothing to predict from", -1, serviceCentre.getPredictedStartupTime(TimeUnit.MILLISECONDS));
+
+        Map<String, Long> durations = StartupHistory.load(history);
+
+        assertEquals("every service saved", 3, durations.size());
+        assertTrue("duration recorded", durations.get(LoaderOne.class.getName()) >= 50);
+    }
+
+    @Test
+    public void testSlowestFirstAndPrediction() throws Exception {
+        Files.write(history, Arrays.asList(
+            LoaderOne.class.getName() + "=10",
+            LoaderTwo.class.getName() + "=200",
+            LoaderThree.class.getName() + "=not a number"), StandardCharsets.UTF_8);
+
+        ServiceCentre serviceCentre = run();
+
+        assertEquals("slowest first", LoaderTwo.class, ThrottledService.startOrder.get(0));
+        assertEquals("predicted from the slowest", 200, serviceCentre.getPredictedStartupTime(TimeUnit.MILLISECONDS));
+        assertTrue("history updated", StartupHistory.load(history).get(LoaderTwo.class.getName()) < 200);
+    }
+
+    @Test
+    public void testUnreadableHistory() throws Exception {
+        Files.write(history, new byte[]{'\\', 'u', 'z'});
+
+        run();
+
+        assertEquals("replaced", 3, StartupHistory.load(history).size());
+    }
+}
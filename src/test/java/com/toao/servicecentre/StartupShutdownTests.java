@@ -11,9 +11,12 @@ import com.toao.servicecentre.testone.*;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
 public class StartupShutdownTests {
@@ -117,4 +120,40 @@ public class StartupShutdownTests {
             }
         }
     }
+
+    @Test
+    public void testLifecycleReport() {
+        Injector injector = Guice.createInjector(testModule);
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+
+        serviceCentre.startAsync().awaitRunning();
+
+        LifecycleReport report = serviceCentre.getLifecycleReport();
+
+        assertEquals("three services timed", 3, report.getServices().size());
+        assertEquals("three levels timed", 3, report.getLevels().size());
+        assertTrue("startup time recorded", report.getStartupTime(TimeUnit.NANOSECONDS) >= 0);
+        assertEquals("not shut down yet", -1, report.getShutdownTime(TimeUnit.NANOSECONDS));
+
+        for (LifecycleReport.ServiceTiming timing : report.getServices()) {
+            assertTrue("service startup time recorded", timing.getStartupTime(TimeUnit.NANOSECONDS) >= 0);
+        }
+
+        // Each level waits for the one below, so the critical path runs through all of them
+        List<LifecycleReport.ServiceTiming> criticalPath = report.getCriticalPath();
+        assertEquals("critical path length", 3, criticalPath.size());
+        assertTrue("critical path starts with ServiceOne", criticalPath.get(0).getService() instanceof ServiceOne);
+        assertTrue("critical path ends with ServiceThree", criticalPath.get(2).getService() instanceof ServiceThree);
+
+        serviceCentre.stopAsync().awaitTerminated();
+
+        report = serviceCentre.getLifecycleReport();
+
+        assertTrue("shutdown time recorded", report.getShutdownTime(TimeUnit.NANOSECONDS) >= 0);
+
+        for (LifecycleReport.LevelTiming timing : report.getLevels()) {
+            assertTrue("level shutdown time recorded", timing.getShutdownBarrierTime(TimeUnit.NANOSECONDS) >= 0);
+        }
+    }
 }
@@ -0,0 +1,206 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.testthree.CrashingService;
+import com.toao.servicecentre.testthree.CustomScope;
+import com.toao.servicecentre.testthree.EscalatingService;
+import com.toao.servicecentre.testthree.SlowlyRestartedService;
+import com.toao.servicecentre.testtwo.QuickService;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class SupervisionTests {
+    @Before
+    public void clearInstances() {
+        CrashingService.instances.clear();
+        EscalatingService.instances.clear();
+        SlowlyRestartedService.instances.clear();
+    }
+
+    private Module getModule(final Class<? extends Service> supervisedService) {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(QuickService.class);
+                activeServices.addBinding().to(supervisedService);
+            }
+        };
+    }
+
+    @Test
+    public void testRestartedAfterFailure() throws Exception {
+        Injector injector = Guice.createInjector(getModule(CrashingService.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        CrashingService original = injector.getInstance(CrashingService.class);
+        original.crash();
+
+        CrashingService fresh = awaitInstance(CrashingService.instances, 2);
+        fresh.awaitRunning(5, TimeUnit.SECONDS);
+
+        assertEquals("service centre still running", Service.State.RUNNING, serviceCentre.state());
+        assertEquals("replaced in the counts", 2, serviceCentre.getServiceStates().getRunningCount());
+        assertEquals("current instance is the fresh one", fresh, serviceCentre.currentInstance(original));
+
+        serviceCentre.stopAsync().awaitTerminated();
+
+        assertEquals("fresh instance is shut down", Service.State.TERMINATED, fresh.state());
+    }
+
+    @Test
+    public void testEscalatesWhenRestartsRunOut() throws Exception {
+        Injector injector = Guice.createInjector(getModule(EscalatingService.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        injector.getInstance(EscalatingService.class).crash();
+
+        EscalatingService fresh = awaitInstance(EscalatingService.instances, 2);
+        fresh.awaitRunning(5, TimeUnit.SECONDS);
+        fresh.crash();
+
+        try {
+            serviceCentre.awaitTerminated(5, TimeUnit.SECONDS);
+            fail();
+        } catch (IllegalStateException e) {
+            Map<Service, Throwable> failedServices =
+                ((ServiceCentre.ServicesFailedException) serviceCentre.failureCause()).getFailedServices();
+
+            assertTrue("failed with the escalated service", failedServices.containsKey(fresh));
+        }
+
+        assertEquals("quick service was shut down", Service.State.TERMINATED, injector.getInstance(QuickService.class).state());
+    }
+
+    @Test
+    public void testRestartDuringBackoffIsNotOverwritten() throws Exception {
+        Injector injector = Guice.createInjector(getModule(SlowlyRestartedService.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        SlowlyRestartedService original = injector.getInstance(SlowlyRestartedService.class);
+        original.crash();
+
+        // Restarted on purpose while the supervisor's restart is waiting out its backoff
+        serviceCentre.restart(SlowlyRestartedService.class);
+        SlowlyRestartedService restarted = awaitInstance(SlowlyRestartedService.instances, 2);
+
+        Thread.sleep(600);
+
+        assertEquals("no instance from the supervisor", 2, SlowlyRestartedService.instances.size());
+        assertEquals("current instance is the restarted one", restarted, serviceCentre.currentInstance(original));
+        assertEquals("restarted instance running", Service.State.RUNNING, restarted.state());
+        assertEquals("running count", 2, serviceCentre.getServiceStates().getRunningCount());
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void testDeregisterDuringBackoffIsNotOverwritten() throws Exception {
+        Injector injector = Guice.createInjector(getModule(SlowlyRestartedService.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        SlowlyRestartedService original = injector.getInstance(SlowlyRestartedService.class);
+        original.crash();
+
+        try {
+            serviceCentre.deregister(original);
+            fail();
+        } catch (ServiceCentre.ServicesFailedException e) {
+            // It had failed, but is no longer managed either way
+        }
+
+        Thread.sleep(600);
+
+        assertEquals("no instance from the supervisor", 1, SlowlyRestartedService.instances.size());
+        assertEquals("running count", 1, serviceCentre.getServiceStates().getRunningCount());
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void testServiceBoundToInstanceIsNotSupervised() throws Exception {
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                bind(EscalatingService.class).toInstance(new EscalatingService());
+                activeServices.addBinding().to(EscalatingService.class);
+            }
+        });
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        EscalatingService original = injector.getInstance(EscalatingService.class);
+        original.crash();
+
+        Thread.sleep(200);
+
+        assertEquals("no fresh instance", 1, EscalatingService.instances.size());
+        assertEquals("current instance is still the original", original, serviceCentre.currentInstance(original));
+        assertEquals("not escalated", Service.State.RUNNING, serviceCentre.state());
+
+        serviceCentre.stopAsync();
+    }
+
+    @Test
+    public void testServiceInCustomScopeIsNotSupervised() throws Exception {
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                bind(EscalatingService.class).in(new CustomScope());
+                activeServices.addBinding().to(EscalatingService.class);
+            }
+        });
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        EscalatingService original = injector.getInstance(EscalatingService.class);
+        original.crash();
+
+        Thread.sleep(200);
+
+        assertEquals("no fresh instance", 1, EscalatingService.instances.size());
+        assertEquals("not escalated", Service.State.RUNNING, serviceCentre.state());
+
+        serviceCentre.stopAsync();
+    }
+
+    private static <T> T awaitInstance(java.util.List<T> instances, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (instances.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals("instances created", count, instances.size());
+        return instances.get(count - 1);
+    }
+}
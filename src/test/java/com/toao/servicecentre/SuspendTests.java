@@ -0,0 +1,214 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.testnine.*;
+import com.toao.servicecentre.testtwo.QuickService;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class SuspendTests {
+    @Before
+    public void reset() {
+        Suspensions.reset();
+    }
+
+    @SafeVarargs
+    private static Module getModule(final Class<? extends Service>... services) {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                for (Class<? extends Service> service : services) {
+                    activeServices.addBinding().to(service);
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testSuspendsDownAndResumesUp() throws Exception {
+        Injector injector = Guice.createInjector(getModule(SuspendableStore.class, SuspendableCache.class, QuickService.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+        serviceCentre.getReadyFuture().get();
+
+        serviceCentre.suspend();
+
+        assertTrue("suspended", serviceCentre.isSuspended());
+        assertEquals("not ready while suspended", Readiness.SUSPENDED, serviceCentre.getServiceStates().getReadiness());
+        assertEquals("services still running", 3, serviceCentre.getServiceStates().getRunningCount());
+
+        // Already suspended
+        serviceCentre.suspend();
+
+        serviceCentre.resume();
+
+        assertFalse("resumed", serviceCentre.isSuspended());
+        assertEquals("ready again", Readiness.READY, serviceCentre.getServiceStates().getReadiness());
+        assertEquals("suspended from the top level down, resumed from the bottom up",
+            Arrays.asList("cache suspended", "store suspended", "store resumed", "cache resumed"), Suspensions.events);
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void testSuspendFailure() {
+        Injector injector = Guice.createInjector(getModule(SuspendableStore.class, FailingSuspendService.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        try {
+            serviceCentre.suspend();
+            fail();
+        } catch (ServiceCentre.ServicesFailedException e) {
+            Map<Service, Throwable> failedServices = e.getFailedServices();
+
+            assertEquals("number of failed services is 1", 1, failedServices.size());
+            assertTrue("the failing service", failedServices.containsKey(injector.getInstance(FailingSuspendService.class)));
+        }
+
+        assertTrue("the rest are suspended", serviceCentre.isSuspended());
+
+        serviceCentre.resume();
+
+        assertEquals("only what was suspended is resumed",
+            Arrays.asList("store suspended", "store resumed"), Suspensions.events);
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testOnlySuspendsWhileRunning() {
+        Injector injector = Guice.createInjector(getModule(SuspendableStore.class));
+
+        injector.getInstance(ServiceCentre.class).suspend();
+    }
+
+    @Test
+    public void testSuspendsOnHeapUsage() throws Exception {
+        // A single lifecycle thread, which the suspend must not wait on itself for
+        Injector injector = Guice.createInjector(getModule(SuspendableStore.class, SuspendableCache.class),
+            binder -> binder.bind(LifecycleExecutor.class).toInstance(LifecycleExecutor.bounded(1)));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setSuspendOnHeapUsage(0.99);
+        serviceCentre.startAsync().awaitRunning();
+
+        HeapPressureMonitor monitor = serviceCentre.heapPressureMonitor;
+        for (MemoryPoolMXBean pool : monitor.pools()) {
+            assertTrue("threshold set", pool.getCollectionUsageThreshold() > 0);
+        }
+
+        // Under this monitor's threshold, so only another monitor's would have been exceeded
+        monitor.pressure("test", new MemoryUsage(0, 50, 100, 100));
+        assertFalse("not suspended under the threshold", serviceCentre.isSuspended());
+
+        // As the JVM would after a collection that left the heap too full
+        monitor.pressure("test", new MemoryUsage(0, 100, 100, 100));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!serviceCentre.isSuspended() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertTrue("suspended", serviceCentre.isSuspended());
+
+        // isSuspended is set before the services are called, so wait for the suspend to finish
+        serviceCentre.resume();
+        assertEquals("suspended and resumed", Arrays.asList("cache suspended", "store suspended",
+            "store resumed", "cache resumed"), Suspensions.events);
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void testSuspendFromLifecycleThread() throws Exception {
+        final LifecycleExecutor executor = LifecycleExecutor.bounded(1);
+        Injector injector = Guice.createInjector(getModule(SuspendableStore.class, SuspendableCache.class),
+            binder -> binder.bind(LifecycleExecutor.class).toInstance(executor));
+
+        final ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        ListenableFutureTask<Void> task = ListenableFutureTask.create(() -> {
+            serviceCentre.suspend();
+            return null;
+        });
+        executor.execute(task);
+        task.get(5, TimeUnit.SECONDS);
+
+        assertEquals("suspended on the lifecycle thread", Arrays.asList("cache suspended", "store suspended"),
+            Suspensions.events);
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void testMonitorsShareThresholds() {
+        Map<String, Long> before = thresholds();
+
+        HeapPressureMonitor lower = new HeapPressureMonitor(0.9, () -> { });
+        HeapPressureMonitor higher = new HeapPressureMonitor(0.95, () -> { });
+
+        try {
+            for (MemoryPoolMXBean pool : higher.pools()) {
+                assertEquals("the lowest fraction", (long) (pool.getCollectionUsage().getMax() * 0.9),
+                    pool.getCollectionUsageThreshold());
+            }
+
+            lower.close();
+
+            for (MemoryPoolMXBean pool : higher.pools()) {
+                assertEquals("still set for the open monitor", (long) (pool.getCollectionUsage().getMax() * 0.95),
+                    pool.getCollectionUsageThreshold());
+            }
+        } finally {
+            lower.close();
+            higher.close();
+        }
+
+        assertEquals("restored once both are closed", before, thresholds());
+    }
+
+    private static Map<String, Long> thresholds() {
+        Map<String, Long> thresholds = new HashMap<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()) {
+                thresholds.put(pool.getName(), pool.getCollectionUsageThreshold());
+            }
+        }
+        return thresholds;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHeapUsageIsAFraction() {
+        Injector injector = Guice.createInjector(getModule());
+
+        injector.getInstance(ServiceCentre.class).setSuspendOnHeapUsage(1.5);
+    }
+}
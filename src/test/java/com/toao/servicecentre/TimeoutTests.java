@@ -0,0 +1,97 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.testthree.HangingStartService;
+import com.toao.servicecentre.testthree.HangingStopService;
+import com.toao.servicecentre.testtwo.QuickService;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class TimeoutTests {
+    private Module getModule(final Class<? extends Service> hangingService) {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                activeServices.addBinding().to(QuickService.class);
+                activeServices.addBinding().to(hangingService);
+            }
+        };
+    }
+
+    @Test
+    public void testStartupTimeout() {
+        assertStartupTimesOut(ServiceCentre.StartupOrder.LEVELS);
+    }
+
+    @Test
+    public void testStartupTimeoutInDependencyOrder() {
+        assertStartupTimesOut(ServiceCentre.StartupOrder.DEPENDENCIES);
+    }
+
+    private void assertStartupTimesOut(ServiceCentre.StartupOrder startupOrder) {
+        Injector injector = Guice.createInjector(getModule(HangingStartService.class));
+
+        HangingStartService hangingService = injector.getInstance(HangingStartService.class);
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setStartupOrder(startupOrder);
+
+        try {
+            serviceCentre.startAsync().awaitRunning();
+            fail();
+        } catch (IllegalStateException e) {
+            Map<Service, Throwable> failedServices =
+                ((ServiceCentre.ServicesFailedException) e.getCause()).getFailedServices();
+
+            assertEquals("number of failed services is 1", 1, failedServices.size());
+            assertTrue("failed with a timeout", failedServices.get(hangingService) instanceof TimeoutException);
+        } finally {
+            hangingService.release();
+        }
+    }
+
+    @Test
+    public void testShutdownBudget() {
+        Injector injector = Guice.createInjector(getModule(HangingStopService.class));
+
+        HangingStopService hangingService = injector.getInstance(HangingStopService.class);
+        QuickService quickService = injector.getInstance(QuickService.class);
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setShutdownTimeout(200, TimeUnit.MILLISECONDS);
+
+        serviceCentre.startAsync().awaitRunning();
+
+        try {
+            serviceCentre.stopAsync().awaitTerminated();
+            fail();
+        } catch (IllegalStateException e) {
+            Map<Service, Throwable> failedServices =
+                ((ServiceCentre.ServicesFailedException) e.getCause()).getFailedServices();
+
+            assertEquals("number of failed services is 1", 1, failedServices.size());
+            assertTrue("failed with a timeout", failedServices.get(hangingService) instanceof TimeoutException);
+
+            // The level below still got shut down within the budget
+            assertEquals("Quick service is shut down", Service.State.TERMINATED, quickService.state());
+        } finally {
+            hangingService.release();
+        }
+    }
+}
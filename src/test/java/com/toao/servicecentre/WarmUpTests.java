@@ -0,0 +1,97 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.LifecycleReport.ServiceTiming;
+import com.toao.servicecentre.testsix.CacheService;
+import com.toao.servicecentre.testsix.FailingWarmUpService;
+import com.toao.servicecentre.testsix.FrontendService;
+import com.toao.servicecentre.testsix.WarmUpOrder;
+import com.toao.servicecentre.testtwo.QuickService;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class WarmUpTests {
+    @Before
+    public void clearOrder() {
+        WarmUpOrder.warmedUp.clear();
+    }
+
+    @SafeVarargs
+    private static Module getModule(final Class<? extends Service>... services) {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                for (Class<? extends Service> service : services) {
+                    activeServices.addBinding().to(service);
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testWarmsUpInOrderThenReady() throws Exception {
+        Injector injector = Guice.createInjector(getModule(QuickService.class, CacheService.class, FrontendService.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        serviceCentre.getReadyFuture().get(5, TimeUnit.SECONDS);
+
+        assertEquals("ready", Readiness.READY, serviceCentre.getServiceStates().getReadiness());
+        assertEquals("dependencies warm up first", Arrays.asList(CacheService.class, FrontendService.class),
+            WarmUpOrder.warmedUp);
+
+        LifecycleReport report = serviceCentre.getLifecycleReport();
+        assertTrue("ready after running", report.getReadyTime(TimeUnit.NANOSECONDS) >= report.getStartupTime(TimeUnit.NANOSECONDS));
+
+        for (ServiceTiming timing : report.getServices()) {
+            if (timing.getService() instanceof CacheService) {
+                assertTrue("warm-up recorded", timing.getWarmUpTime(TimeUnit.MILLISECONDS) >= 50);
+            } else if (timing.getService() instanceof QuickService) {
+                assertEquals("no warm-up", -1, timing.getWarmUpTime(TimeUnit.MILLISECONDS));
+            }
+        }
+
+        serviceCentre.stopAsync().awaitTerminated();
+
+        assertEquals("stopping", Readiness.STOPPING, serviceCentre.getServiceStates().getReadiness());
+    }
+
+    @Test
+    public void testFailedWarmUp() throws Exception {
+        Injector injector = Guice.createInjector(getModule(FailingWarmUpService.class, FrontendService.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.startAsync().awaitRunning();
+
+        try {
+            serviceCentre.getReadyFuture().get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue("failed services reported", e.getCause() instanceof ServiceCentre.ServicesFailedException);
+        }
+
+        assertEquals("not ready", Readiness.FAILED, serviceCentre.getServiceStates().getReadiness());
+        assertEquals("dependents still warm up", Arrays.asList(FrontendService.class), WarmUpOrder.warmedUp);
+        assertEquals("services still running", Service.State.RUNNING, serviceCentre.state());
+
+        serviceCentre.stopAsync().awaitTerminated();
+    }
+}
@@ -0,0 +1,119 @@
+package com.toao.servicecentre;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.LifecycleReport.StallSample;
+import com.toao.servicecentre.testthree.HangingStartService;
+import com.toao.servicecentre.testthree.HangingStopService;
+import com.toao.servicecentre.testtwo.QuickService;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class WatchdogTests {
+    @SafeVarargs
+    private static Module getModule(final Class<? extends Service>... services) {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                for (Class<? extends Service> service : services) {
+                    activeServices.addBinding().to(service);
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testSamplesServiceStuckStarting() {
+        Injector injector = Guice.createInjector(getModule(QuickService.class, HangingStartService.class));
+
+        HangingStartService hangingService = injector.getInstance(HangingStartService.class);
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setWatchdogThreshold(20, TimeUnit.MILLISECONDS);
+
+        try {
+            serviceCentre.startAsync().awaitRunning();
+            fail();
+        } catch (IllegalStateException e) {
+            List<StallSample> samples = serviceCentre.getLifecycleReport().getStallSamples();
+
+            assertFalse("stuck service was sampled", samples.isEmpty());
+            assertTrue("no more than the limit", samples.size() <= Watchdog.MAX_SAMPLES_PER_SERVICE);
+
+            StallSample sample = samples.get(0);
+            assertTrue("sampled the hanging service", sample.getService() == hangingService);
+            assertEquals("while starting", Service.State.STARTING, sample.getState());
+            assertEquals("on its startup thread", "HangingStartService STARTING", sample.getThreadName());
+            assertTrue("stalled past the threshold", sample.getStalledTime(TimeUnit.MILLISECONDS) >= 20);
+            assertTrue("stack is inside startUp", hasFrame(sample, HangingStartService.class, "startUp"));
+        } finally {
+            hangingService.release();
+        }
+    }
+
+    @Test
+    public void testSamplesServiceStuckStopping() {
+        Injector injector = Guice.createInjector(getModule(HangingStopService.class));
+
+        HangingStopService hangingService = injector.getInstance(HangingStopService.class);
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setShutdownTimeout(200, TimeUnit.MILLISECONDS);
+        serviceCentre.setWatchdogThreshold(20, TimeUnit.MILLISECONDS);
+
+        serviceCentre.startAsync().awaitRunning();
+
+        try {
+            serviceCentre.stopAsync().awaitTerminated();
+            fail();
+        } catch (IllegalStateException e) {
+            List<StallSample> samples = serviceCentre.getLifecycleReport().getStallSamples();
+
+            assertFalse("stuck service was sampled", samples.isEmpty());
+
+            StallSample sample = samples.get(samples.size() - 1);
+            assertTrue("sampled the hanging service", sample.getService() == hangingService);
+            assertEquals("while stopping", Service.State.STOPPING, sample.getState());
+            assertTrue("stack is inside shutDown", hasFrame(sample, HangingStopService.class, "shutDown"));
+        } finally {
+            hangingService.release();
+        }
+    }
+
+    @Test
+    public void testNoSamplesWhenNothingStalls() {
+        Injector injector = Guice.createInjector(getModule(QuickService.class));
+
+        ServiceCentre serviceCentre = injector.getInstance(ServiceCentre.class);
+        serviceCentre.setWatchdogThreshold(1, TimeUnit.SECONDS);
+
+        serviceCentre.startAsync().awaitRunning();
+        serviceCentre.stopAsync().awaitTerminated();
+
+        assertTrue("no samples", serviceCentre.getLifecycleReport().getStallSamples().isEmpty());
+    }
+
+    private static boolean hasFrame(StallSample sample, Class<?> serviceClass, String method) {
+        for (StackTraceElement element : sample.getStackTrace()) {
+            if (element.getClassName().equals(serviceClass.getName()) && element.getMethodName().equals(method)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
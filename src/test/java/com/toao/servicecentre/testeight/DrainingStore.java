@@ -0,0 +1,24 @@
+package com.toao.servicecentre.testeight;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.Drainable;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@Singleton
+@ManagedService(level = 0)
+public class DrainingStore extends AbstractIdleService implements Drainable {
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    public void drain() throws Exception {
+        Shutdowns.events.add("store drained");
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        Shutdowns.events.add("store stopped");
+    }
+}
@@ -0,0 +1,24 @@
+package com.toao.servicecentre.testeight;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.Drainable;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@Singleton
+@ManagedService(level = 0)
+public class FailingDrainService extends AbstractIdleService implements Drainable {
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    public void drain() throws Exception {
+        throw new IllegalStateException("Unable to drain");
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        Shutdowns.events.add("failing drain stopped");
+    }
+}
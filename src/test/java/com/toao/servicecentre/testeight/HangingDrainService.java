@@ -0,0 +1,31 @@
+package com.toao.servicecentre.testeight;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.Drainable;
+import com.toao.servicecentre.annotations.ManagedService;
+
+import java.util.concurrent.CountDownLatch;
+
+@Singleton
+@ManagedService(level = 0)
+public class HangingDrainService extends AbstractIdleService implements Drainable {
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    public void release() {
+        latch.countDown();
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    public void drain() throws Exception {
+        latch.await();
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
@@ -0,0 +1,22 @@
+package com.toao.servicecentre.testeight;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+
+import java.util.concurrent.CountDownLatch;
+
+@Singleton
+@ManagedService(level = 0)
+public class IndependentService extends AbstractIdleService {
+    public static volatile CountDownLatch stopped = new CountDownLatch(1);
+
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        stopped.countDown();
+    }
+}
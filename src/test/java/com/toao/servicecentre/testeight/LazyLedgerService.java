@@ -0,0 +1,26 @@
+package com.toao.servicecentre.testeight;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@Singleton
+@ManagedService(level = 1, lazy = true)
+public class LazyLedgerService extends AbstractIdleService implements Ledger {
+    @Override
+    public void record(String entry) {
+        if (!isRunning()) {
+            throw new IllegalStateException("Ledger is " + state());
+        }
+        Shutdowns.events.add(entry);
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        Shutdowns.events.add("ledger stopped");
+    }
+}
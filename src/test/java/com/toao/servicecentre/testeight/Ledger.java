@@ -0,0 +1,5 @@
+package com.toao.servicecentre.testeight;
+
+public interface Ledger {
+    void record(String entry);
+}
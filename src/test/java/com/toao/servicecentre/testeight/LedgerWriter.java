@@ -0,0 +1,32 @@
+package com.toao.servicecentre.testeight;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.Drainable;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@Singleton
+@ManagedService(level = 2)
+public class LedgerWriter extends AbstractIdleService implements Drainable {
+    private final Ledger ledger;
+
+    @Inject
+    public LedgerWriter(Ledger ledger) {
+        this.ledger = ledger;
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    public void drain() throws Exception {
+        ledger.record("writer drained");
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        Shutdowns.events.add("writer stopped");
+    }
+}
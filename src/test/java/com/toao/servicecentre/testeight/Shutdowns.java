@@ -0,0 +1,12 @@
+package com.toao.servicecentre.testeight;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class Shutdowns {
+    public static final List<String> events = new CopyOnWriteArrayList<>();
+
+    public static void reset() {
+        events.clear();
+    }
+}
@@ -0,0 +1,37 @@
+package com.toao.servicecentre.testeight;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.Drainable;
+import com.toao.servicecentre.annotations.ManagedService;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Only finishes draining once IndependentService, a level below it, has stopped. Injects
+ * DrainingStore so that it doesn't wait for the whole level below when shutting down in
+ * dependency order.
+ */
+@Singleton
+@ManagedService(level = 1)
+public class SlowDrainingService extends AbstractIdleService implements Drainable {
+    public static volatile boolean drainedAfterIndependentStopped;
+
+    @Inject
+    public SlowDrainingService(DrainingStore store) {
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    public void drain() throws Exception {
+        drainedAfterIndependentStopped = IndependentService.stopped.await(5, TimeUnit.SECONDS);
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
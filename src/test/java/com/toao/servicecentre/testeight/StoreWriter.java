@@ -0,0 +1,23 @@
+package com.toao.servicecentre.testeight;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@Singleton
+@ManagedService(level = 1)
+public class StoreWriter extends AbstractIdleService {
+    @Inject
+    public StoreWriter(DrainingStore store) {
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        Shutdowns.events.add("writer stopped");
+    }
+}
@@ -0,0 +1,9 @@
+package com.toao.servicecentre.testfive;
+
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@Singleton
+@ManagedService(level = 0, resources = {"db:2", "disk"})
+public class LoaderThree extends ThrottledService {
+}
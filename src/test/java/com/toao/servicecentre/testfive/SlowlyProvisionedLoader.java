@@ -0,0 +1,21 @@
+package com.toao.servicecentre.testfive;
+
+import com.toao.servicecentre.annotations.ManagedService;
+
+/**
+ * Can only be constructed once the three loaders have been started. It isn't a singleton, as
+ * Guice would hold its singleton lock while this waits, and the loaders couldn't be constructed.
+ */
+@ManagedService(level = 0)
+public class SlowlyProvisionedLoader extends ThrottledService {
+    public SlowlyProvisionedLoader() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (startOrder.size() < 3) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("The loaders were held up until this was provisioned");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.toao.servicecentre.testfive;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public abstract class ThrottledService extends AbstractIdleService {
+    public static final List<Class<?>> startOrder = new CopyOnWriteArrayList<>();
+    private static final AtomicInteger starting = new AtomicInteger();
+    private static final AtomicInteger maxStarting = new AtomicInteger();
+
+    public static void reset() {
+        startOrder.clear();
+        maxStarting.set(0);
+    }
+
+    public static int getMaxStarting() {
+        return maxStarting.get();
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        startOrder.add(getClass());
+        maxStarting.accumulateAndGet(starting.incrementAndGet(), Math::max);
+
+        try {
+            Thread.sleep(50);
+        } finally {
+            starting.decrementAndGet();
+        }
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
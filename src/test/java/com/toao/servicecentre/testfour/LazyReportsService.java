@@ -0,0 +1,33 @@
+package com.toao.servicecentre.testfour;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@Singleton
+@ManagedService(level = 1, lazy = true)
+public class LazyReportsService extends AbstractIdleService implements Reports {
+    private final LazyStorageService storage;
+
+    @Inject
+    public LazyReportsService(LazyStorageService storage) {
+        this.storage = storage;
+    }
+
+    @Override
+    public String report() {
+        if (!isRunning() || !storage.isRunning()) {
+            throw new IllegalStateException("Called before starting");
+        }
+        return "report";
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
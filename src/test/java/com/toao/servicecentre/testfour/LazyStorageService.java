@@ -0,0 +1,17 @@
+package com.toao.servicecentre.testfour;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@Singleton
+@ManagedService(level = 0, lazy = true)
+public class LazyStorageService extends AbstractIdleService {
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
@@ -0,0 +1,5 @@
+package com.toao.servicecentre.testfour;
+
+public interface Reports {
+    String report();
+}
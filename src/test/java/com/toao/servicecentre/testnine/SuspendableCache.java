@@ -0,0 +1,28 @@
+package com.toao.servicecentre.testnine;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.Suspendable;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@Singleton
+@ManagedService(level = 1)
+public class SuspendableCache extends AbstractIdleService implements Suspendable {
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    public void suspend() throws Exception {
+        Suspensions.events.add("cache suspended");
+    }
+
+    @Override
+    public void resume() throws Exception {
+        Suspensions.events.add("cache resumed");
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
@@ -0,0 +1,12 @@
+package com.toao.servicecentre.testnine;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class Suspensions {
+    public static final List<String> events = new CopyOnWriteArrayList<>();
+
+    public static void reset() {
+        events.clear();
+    }
+}
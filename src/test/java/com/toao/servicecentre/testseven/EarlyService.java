@@ -0,0 +1,22 @@
+package com.toao.servicecentre.testseven;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+
+import java.util.concurrent.CountDownLatch;
+
+@Singleton
+@ManagedService(level = 1)
+public class EarlyService extends AbstractIdleService {
+    public static volatile CountDownLatch started = new CountDownLatch(1);
+
+    @Override
+    protected void startUp() throws Exception {
+        started.countDown();
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
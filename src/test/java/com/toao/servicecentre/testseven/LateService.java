@@ -0,0 +1,26 @@
+package com.toao.servicecentre.testseven;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.toao.servicecentre.annotations.ManagedService;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Can only be constructed once EarlyService has started.
+ */
+@ManagedService(level = 2)
+public class LateService extends AbstractIdleService {
+    public LateService() throws InterruptedException {
+        if (!EarlyService.started.await(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("EarlyService wasn't started until every service was provisioned");
+        }
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
@@ -0,0 +1,24 @@
+package com.toao.servicecentre.testseven;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Only lets the services constructed with it through once both are being constructed at once.
+ */
+public class Rendezvous {
+    private static volatile CountDownLatch arrived = new CountDownLatch(2);
+
+    public static void reset() {
+        arrived = new CountDownLatch(2);
+    }
+
+    static void arrive() throws InterruptedException {
+        CountDownLatch latch = arrived;
+        latch.countDown();
+
+        if (!latch.await(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("The services weren't provisioned in parallel");
+        }
+    }
+}
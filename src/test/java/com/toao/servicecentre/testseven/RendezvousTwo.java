@@ -0,0 +1,19 @@
+package com.toao.servicecentre.testseven;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@ManagedService(level = 1)
+public class RendezvousTwo extends AbstractIdleService {
+    public RendezvousTwo() throws InterruptedException {
+        Rendezvous.arrive();
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
@@ -0,0 +1,28 @@
+package com.toao.servicecentre.testsix;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.WarmUp;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@Singleton
+@ManagedService(level = 0)
+public class CacheService extends AbstractIdleService implements WarmUp {
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    public void warmUp() throws Exception {
+        if (!isRunning()) {
+            throw new IllegalStateException("Warmed up before running");
+        }
+
+        Thread.sleep(50);
+        WarmUpOrder.warmedUp.add(getClass());
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
@@ -0,0 +1,23 @@
+package com.toao.servicecentre.testsix;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.WarmUp;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@Singleton
+@ManagedService(level = 0)
+public class FailingWarmUpService extends AbstractIdleService implements WarmUp {
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    public void warmUp() throws Exception {
+        throw new IllegalStateException("Cold");
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
@@ -0,0 +1,23 @@
+package com.toao.servicecentre.testsix;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.WarmUp;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@Singleton
+@ManagedService(level = 1)
+public class FrontendService extends AbstractIdleService implements WarmUp {
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    public void warmUp() throws Exception {
+        WarmUpOrder.warmedUp.add(getClass());
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
@@ -0,0 +1,8 @@
+package com.toao.servicecentre.testsix;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class WarmUpOrder {
+    public static final List<Class<?>> warmedUp = new CopyOnWriteArrayList<>();
+}
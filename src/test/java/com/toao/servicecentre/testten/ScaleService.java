@@ -0,0 +1,77 @@
+package com.toao.servicecentre.testten;
+
+import com.google.common.util.concurrent.AbstractService;
+
+/**
+ * A synthetic service for {@link ScaleTopology}, which takes a set time to start and may fail
+ * to start or to stop. Each start and stop is checked against the topology for ordering.
+ *
+ * Levels and dependencies come from the class, so the topology generates a subclass for each
+ * service, which injects the services it depends on and passes its index up.
+ */
+public abstract class ScaleService extends AbstractService {
+    private final ScaleTopology topology;
+    private final int index;
+
+    protected ScaleService(ScaleTopology topology, int index) {
+        this.topology = topology;
+        this.index = index;
+
+        topology.provisioned(this);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getLevel() {
+        return topology.level(index);
+    }
+
+    @Override
+    protected void doStart() {
+        topology.starting(this);
+
+        long startupNanos = topology.startupNanos(index);
+
+        if (startupNanos == 0) {
+            started();
+            return;
+        }
+
+        topology.executor().execute(() -> {
+            spin(startupNanos);
+            started();
+        });
+    }
+
+    private void started() {
+        if (topology.failsOnStart(index)) {
+            topology.failed(this);
+            notifyFailed(new IllegalStateException("Synthetic startup failure"));
+        } else {
+            topology.running(this);
+            notifyStarted();
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        topology.stopping(this);
+        topology.stopped(this);
+
+        if (topology.failsOnStop(index)) {
+            notifyFailed(new IllegalStateException("Synthetic shutdown failure"));
+        } else {
+            notifyStopped();
+        }
+    }
+
+    // Sleeping has far too coarse a granularity for microsecond startup costs
+    private static void spin(long nanos) {
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package com.toao.servicecentre.testten;
+
+import com.google.common.util.concurrent.Service;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
+import com.toao.servicecentre.ServiceCentre;
+import com.toao.servicecentre.ServiceCentre.StartupOrder;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A large random set of {@link ScaleService}s, with random levels, injected dependencies,
+ * startup times and start or stop failures, all taken from a seed so a failing topology can
+ * be recreated.
+ *
+ * Each service injects up to {@link #MAX_DEPENDENCIES} random services from the levels below
+ * it. The ServiceCentre finds dependencies by class, so every service gets a class of its own,
+ * generated and compiled the first time a structure is asked for and shared by the topologies
+ * with the same seed, count and levels. The Injector constructs the services, so they are
+ * provisioned through their real dependencies.
+ *
+ * The services report each transition here, and any that happens out of order is recorded as
+ * a violation: a service starting before the services it injects are running, or stopping
+ * before the started services that inject it have stopped. When starting level by level, and
+ * for services without any dependencies, every service in the levels below must be running
+ * first, and every started service in the levels above must have stopped.
+ */
+public final class ScaleTopology {
+    public static final int MAX_DEPENDENCIES = 3;
+
+    private static final String PACKAGE = "com.toao.servicecentre.testten.generated";
+    // Compiled classes by seed, count and levels
+    private static final Map<String, List<Class<? extends ScaleService>>> COMPILED = new HashMap<>();
+
+    private static final int NEW = 0;
+    private static final int STARTING = 1;
+    private static final int RUNNING = 2;
+    private static final int FAILED = 3;
+    private static final int STOPPED = 4;
+
+    private final Executor executor;
+    private final int[] levels;
+    private final int[][] dependencies;
+    private final int[][] dependents;
+    private final long[] startupNanos;
+    private final BitSet failStart = new BitSet();
+    private final BitSet failStop = new BitSet();
+    private final List<Class<? extends ScaleService>> classes;
+    private final AtomicReferenceArray<ScaleService> services;
+    private final AtomicIntegerArray states;
+    private final int[] total;
+    private final AtomicIntegerArray started;
+    private final AtomicIntegerArray running;
+    private final AtomicIntegerArray stopped;
+    private final Queue<String> violations = new ConcurrentLinkedQueue<>();
+    private volatile boolean byLevel = true;
+
+    /**
+     * @param startFailures the number of services to fail on start, all in one random level so
+     *                      every one of them is started and reported
+     * @param stopFailures  the number of services to fail on stop, in any level
+     */
+    public static ScaleTopology create(long seed, int count, int levels, long maxStartupNanos, int startFailures,
+                                       int stopFailures, Executor executor) {
+        return new ScaleTopology(seed, count, levels, maxStartupNanos, startFailures, stopFailures, executor);
+    }
+
+    private ScaleTopology(long seed, int count, int levelCount, long maxStartupNanos, int startFailures,
+                          int stopFailures, Executor executor) {
+        if (levelCount < 1) {
+            throw new IllegalArgumentException("At least one level is needed, not " + levelCount);
+        }
+
+        this.executor = executor;
+
+        // The structure comes first, so the same seed always compiles to the same classes
+        Random random = new Random(seed);
+
+        levels = new int[count];
+        total = new int[levelCount];
+        for (int i = 0; i < count; i++) {
+            levels[i] = random.nextInt(levelCount);
+            total[levels[i]]++;
+        }
+
+        // Services ordered by level, so the ones below any service are a prefix
+        Integer[] byLevel = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            byLevel[i] = i;
+        }
+        Arrays.sort(byLevel, (a, b) -> Integer.compare(levels[a], levels[b]));
+
+        int[] below = new int[levelCount];
+        for (int level = 1; level < levelCount; level++) {
+            below[level] = below[level - 1] + total[level - 1];
+        }
+
+        dependencies = new int[count][];
+        List<List<Integer>> dependentsOf = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            dependentsOf.add(new ArrayList<>());
+        }
+
+        for (int i = 0; i < count; i++) {
+            int candidates = below[levels[i]];
+            int wanted = candidates == 0 ? 0 : random.nextInt(MAX_DEPENDENCIES + 1);
+
+            Set<Integer> chosen = new LinkedHashSet<>();
+            for (int n = 0; n < wanted; n++) {
+                chosen.add(byLevel[random.nextInt(candidates)]);
+            }
+
+            dependencies[i] = new int[chosen.size()];
+            int n = 0;
+            for (int dependency : chosen) {
+                dependencies[i][n++] = dependency;
+                dependentsOf.get(dependency).add(i);
+            }
+        }
+
+        dependents = new int[count][];
+        for (int i = 0; i < count; i++) {
+            dependents[i] = dependentsOf.get(i).stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        int failingLevel = random.nextInt(levelCount);
+        if (total[failingLevel] < startFailures) {
+            throw new IllegalArgumentException("Only " + total[failingLevel] + " services in level " + failingLevel
+                + " to fail on start, not " + startFailures);
+        }
+
+        // Shuffle the candidates and take the first few
+        List<Integer> inFailingLevel = new ArrayList<>();
+        List<Integer> all = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            all.add(i);
+            if (levels[i] == failingLevel) {
+                inFailingLevel.add(i);
+            }
+        }
+        Collections.shuffle(inFailingLevel, random);
+        Collections.shuffle(all, random);
+
+        for (int i : inFailingLevel.subList(0, startFailures)) {
+            failStart.set(i);
+        }
+        for (int i : all.subList(0, stopFailures)) {
+            failStop.set(i);
+        }
+
+        startupNanos = new long[count];
+        for (int i = 0; i < count; i++) {
+            startupNanos[i] = maxStartupNanos == 0 ? 0 : (long) (random.nextDouble() * maxStartupNanos);
+        }
+
+        classes = compiled(seed + "/" + count + "/" + levelCount);
+        services = new AtomicReferenceArray<>(count);
+        states = new AtomicIntegerArray(count);
+        started = new AtomicIntegerArray(levelCount);
+        running = new AtomicIntegerArray(levelCount);
+        stopped = new AtomicIntegerArray(levelCount);
+    }
+
+    /**
+     * The services the Injector has constructed so far.
+     */
+    public List<ScaleService> services() {
+        List<ScaleService> provisioned = new ArrayList<>();
+        for (int i = 0; i < services.length(); i++) {
+            if (services.get(i) != null) {
+                provisioned.add(services.get(i));
+            }
+        }
+        return provisioned;
+    }
+
+    public Set<Service> failingStarts() {
+        return servicesIn(failStart);
+    }
+
+    public Set<Service> failingStops() {
+        return servicesIn(failStop);
+    }
+
+    /**
+     * The number of injected dependencies between the services.
+     */
+    public int dependencyCount() {
+        int count = 0;
+        for (int[] serviceDependencies : dependencies) {
+            count += serviceDependencies.length;
+        }
+        return count;
+    }
+
+    /**
+     * Everything that happened out of order, empty if nothing did.
+     */
+    public List<String> violations() {
+        return new ArrayList<>(violations);
+    }
+
+    public Injector createInjector() {
+        return Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                Multibinder<Service> activeServices = Multibinder
+                    .newSetBinder(binder(), Service.class, Names.named("activeServices"));
+
+                bind(ScaleTopology.class).toInstance(ScaleTopology.this);
+
+                for (Class<? extends ScaleService> service : classes) {
+                    activeServices.addBinding().to(service);
+                }
+            }
+        });
+    }
+
+    /**
+     * A ServiceCentre for a fresh Injector, with the ordering checked for the given startup order.
+     */
+    public ServiceCentre createServiceCentre(StartupOrder order) {
+        ServiceCentre serviceCentre = createInjector().getInstance(ServiceCentre.class);
+        serviceCentre.setStartupOrder(order);
+        byLevel = order == StartupOrder.LEVELS;
+        return serviceCentre;
+    }
+
+    void provisioned(ScaleService service) {
+        if (!services.compareAndSet(service.getIndex(), null, service)) {
+            violations.add("Service" + service.getIndex() + " was constructed more than once");
+        }
+    }
+
+    int level(int index) {
+        return levels[index];
+    }
+
+    long startupNanos(int index) {
+        return startupNanos[index];
+    }
+
+    boolean failsOnStart(int index) {
+        return failStart.get(index);
+    }
+
+    boolean failsOnStop(int index) {
+        return failStop.get(index);
+    }
+
+    Executor executor() {
+        return executor;
+    }
+
+    void starting(ScaleService service) {
+        int index = service.getIndex();
+        int level = levels[index];
+
+        states.set(index, STARTING);
+        started.incrementAndGet(level);
+
+        for (int dependency : dependencies[index]) {
+            if (states.get(dependency) != RUNNING) {
+                violations.add(service + " started before its dependency Service" + dependency + " was running");
+            }
+        }
+
+        if (byLevel || dependencies[index].length == 0) {
+            for (int lower = 0; lower < level; lower++) {
+                if (running.get(lower) < total[lower]) {
+                    violations.add(service + " at level " + level + " started with only "
+                        + running.get(lower) + " of " + total[lower] + " services running at level " + lower);
+                }
+            }
+        }
+    }
+
+    void running(ScaleService service) {
+        states.set(service.getIndex(), RUNNING);
+        running.incrementAndGet(service.getLevel());
+    }
+
+    void failed(ScaleService service) {
+        states.set(service.getIndex(), FAILED);
+    }
+
+    void stopping(ScaleService service) {
+        int index = service.getIndex();
+        int level = levels[index];
+
+        for (int dependent : dependents[index]) {
+            int state = states.get(dependent);
+            if (state == STARTING || state == RUNNING) {
+                violations.add(service + " stopped before Service" + dependent + ", which injects it");
+            }
+        }
+
+        if (byLevel) {
+            for (int higher = level + 1; higher < total.length; higher++) {
+                if (stopped.get(higher) < started.get(higher)) {
+                    violations.add(service + " at level " + level + " stopped with only "
+                        + stopped.get(higher) + " of " + started.get(higher) + " services stopped at level " + higher);
+                }
+            }
+        }
+    }
+
+    void stopped(ScaleService service) {
+        states.set(service.getIndex(), STOPPED);
+        stopped.incrementAndGet(service.getLevel());
+    }
+
+    private Set<Service> servicesIn(BitSet indices) {
+        Set<Service> set = Collections.newSetFromMap(new IdentityHashMap<Service, Boolean>());
+        for (int i = indices.nextSetBit(0); i >= 0; i = indices.nextSetBit(i + 1)) {
+            if (services.get(i) != null) {
+                set.add(services.get(i));
+            }
+        }
+        return set;
+    }
+
+    private List<Class<? extends ScaleService>> compiled(String structure) {
+        synchronized (COMPILED) {
+            List<Class<? extends ScaleService>> compiled = COMPILED.get(structure);
+
+            if (compiled == null) {
+                compiled = compile();
+                COMPILED.put(structure, compiled);
+            }
+
+            return compiled;
+        }
+    }
+
+    private List<Class<? extends ScaleService>> compile() {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("Scale topologies are compiled when they are created, so the tests need a JDK");
+        }
+
+        List<JavaFileObject> sources = new ArrayList<>(levels.length);
+        for (int i = 0; i < levels.length; i++) {
+            sources.add(source(i));
+        }
+
+        Map<String, ByteArrayOutputStream> bytecode = new HashMap<>();
+        JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(
+            compiler.getStandardFileManager(null, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+                                                       FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("bytes:///" + className.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream output = new ByteArrayOutputStream();
+                        bytecode.put(className, output);
+                        return output;
+                    }
+                };
+            }
+        };
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        List<String> options = Arrays.asList("-proc:none", "-classpath", System.getProperty("java.class.path"));
+
+        if (!compiler.getTask(null, fileManager, diagnostics, options, null, sources).call()) {
+            throw new IllegalStateException("Unable to compile the topology: " + diagnostics.getDiagnostics());
+        }
+
+        ClassLoader loader = new ClassLoader(ScaleTopology.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                ByteArrayOutputStream output = bytecode.get(name);
+                if (output == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                byte[] bytes = output.toByteArray();
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        };
+
+        List<Class<? extends ScaleService>> classes = new ArrayList<>(levels.length);
+        try {
+            for (int i = 0; i < levels.length; i++) {
+                classes.add(loader.loadClass(PACKAGE + ".Service" + i).asSubclass(ScaleService.class));
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Compiled topology is missing a class", e);
+        }
+        return classes;
+    }
+
+    private JavaFileObject source(int index) {
+        StringBuilder parameters = new StringBuilder(ScaleTopology.class.getName() + " topology");
+        for (int dependency : dependencies[index]) {
+            parameters.append(", Service").append(dependency).append(" dependency").append(dependency);
+        }
+
+        String name = "Service" + index;
+        String source = "package " + PACKAGE + ";\n"
+            + "@javax.inject.Singleton\n"
+            + "@com.toao.servicecentre.annotations.ManagedService(level = " + levels[index] + ")\n"
+            + "public class " + name + " extends " + ScaleService.class.getName() + " {\n"
+            + "    @javax.inject.Inject\n"
+            + "    public " + name + "(" + parameters + ") {\n"
+            + "        super(topology, " + index + ");\n"
+            + "    }\n"
+            + "}\n";
+
+        return new SimpleJavaFileObject(URI.create("string:///" + PACKAGE.replace('.', '/') + "/" + name + ".java"),
+            JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+    }
+}
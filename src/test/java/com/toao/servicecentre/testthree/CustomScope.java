@@ -0,0 +1,16 @@
+package com.toao.servicecentre.testthree;
+
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.Scope;
+import com.google.inject.Scopes;
+
+/**
+ * Keeps one instance like a singleton, but isn't Guice's singleton scope.
+ */
+public class CustomScope implements Scope {
+    @Override
+    public <T> Provider<T> scope(Key<T> key, Provider<T> unscoped) {
+        return Scopes.SINGLETON.scope(key, unscoped);
+    }
+}
@@ -0,0 +1,34 @@
+package com.toao.servicecentre.testthree;
+
+import com.google.common.util.concurrent.AbstractService;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+import com.toao.servicecentre.annotations.Supervision;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+@Singleton
+@ManagedService(level = 1, supervision = @Supervision(restart = Supervision.Restart.ON_FAILURE,
+    initialBackoffMillis = 10, maxRestarts = 1, escalate = true))
+public class EscalatingService extends AbstractService {
+    public static final List<EscalatingService> instances = new CopyOnWriteArrayList<>();
+
+    public EscalatingService() {
+        instances.add(this);
+    }
+
+    public void crash() {
+        notifyFailed(new IllegalStateException("Crashed"));
+    }
+
+    @Override
+    protected void doStart() {
+        notifyStarted();
+    }
+
+    @Override
+    protected void doStop() {
+        notifyStopped();
+    }
+}
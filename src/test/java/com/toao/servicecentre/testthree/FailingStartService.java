@@ -0,0 +1,18 @@
+package com.toao.servicecentre.testthree;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@Singleton
+@ManagedService(level = 1)
+public class FailingStartService extends AbstractIdleService {
+    @Override
+    protected void startUp() throws Exception {
+        throw new RuntimeException("Failed to start");
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
@@ -0,0 +1,38 @@
+package com.toao.servicecentre.testthree;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+@Singleton
+@ManagedService(level = 0)
+public class FlakyStore extends AbstractIdleService {
+    public static final List<FlakyStore> instances = new CopyOnWriteArrayList<>();
+
+    public static volatile boolean failNextConstruction;
+    public static volatile boolean failNextStart;
+
+    public FlakyStore() {
+        if (failNextConstruction) {
+            failNextConstruction = false;
+            throw new IllegalStateException("Synthetic construction failure");
+        }
+
+        instances.add(this);
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        if (failNextStart) {
+            failNextStart = false;
+            throw new IllegalStateException("Synthetic startup failure");
+        }
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
@@ -0,0 +1,45 @@
+package com.toao.servicecentre.testthree;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+@Singleton
+@ManagedService(level = 1)
+public class FlakyStoreReader extends AbstractIdleService {
+    public static final List<FlakyStoreReader> instances = new CopyOnWriteArrayList<>();
+
+    public static volatile boolean failNextStart;
+
+    private final FlakyStore store;
+
+    @Inject
+    public FlakyStoreReader(FlakyStore store) {
+        this.store = store;
+        instances.add(this);
+    }
+
+    public FlakyStore getStore() {
+        return store;
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        if (failNextStart) {
+            failNextStart = false;
+            throw new IllegalStateException("Synthetic startup failure");
+        }
+
+        if (!store.isRunning()) {
+            throw new IllegalStateException("Store is not running");
+        }
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
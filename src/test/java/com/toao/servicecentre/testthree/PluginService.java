@@ -0,0 +1,15 @@
+package com.toao.servicecentre.testthree;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@ManagedService(level = 3)
+public class PluginService extends AbstractIdleService {
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
@@ -0,0 +1,26 @@
+package com.toao.servicecentre.testthree;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+@Singleton
+@ManagedService(level = 0)
+public class RestartableStore extends AbstractIdleService {
+    public static final List<RestartableStore> instances = new CopyOnWriteArrayList<>();
+
+    public RestartableStore() {
+        instances.add(this);
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
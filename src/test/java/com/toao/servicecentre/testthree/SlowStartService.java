@@ -0,0 +1,27 @@
+package com.toao.servicecentre.testthree;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@Singleton
+@ManagedService(level = 1)
+public class SlowStartService extends AbstractIdleService {
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    public void release() {
+        released.countDown();
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        released.await(5, TimeUnit.SECONDS);
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
@@ -0,0 +1,34 @@
+package com.toao.servicecentre.testthree;
+
+import com.google.common.util.concurrent.AbstractService;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+import com.toao.servicecentre.annotations.Supervision;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+@Singleton
+@ManagedService(level = 1, supervision = @Supervision(restart = Supervision.Restart.ON_FAILURE,
+    initialBackoffMillis = 300, maxRestarts = 3))
+public class SlowlyRestartedService extends AbstractService {
+    public static final List<SlowlyRestartedService> instances = new CopyOnWriteArrayList<>();
+
+    public SlowlyRestartedService() {
+        instances.add(this);
+    }
+
+    public void crash() {
+        notifyFailed(new IllegalStateException("Crashed"));
+    }
+
+    @Override
+    protected void doStart() {
+        notifyStarted();
+    }
+
+    @Override
+    protected void doStop() {
+        notifyStopped();
+    }
+}
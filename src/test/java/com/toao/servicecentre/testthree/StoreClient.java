@@ -0,0 +1,38 @@
+package com.toao.servicecentre.testthree;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+@Singleton
+@ManagedService(level = 1)
+public class StoreClient extends AbstractIdleService {
+    public static final List<StoreClient> instances = new CopyOnWriteArrayList<>();
+
+    private final RestartableStore store;
+
+    @Inject
+    public StoreClient(RestartableStore store) {
+        this.store = store;
+        instances.add(this);
+    }
+
+    public RestartableStore getStore() {
+        return store;
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        if (!store.isRunning()) {
+            throw new IllegalStateException("Store is not running");
+        }
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
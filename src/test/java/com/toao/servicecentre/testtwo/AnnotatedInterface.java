@@ -0,0 +1,8 @@
+package com.toao.servicecentre.testtwo;
+
+import com.google.common.util.concurrent.Service;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@ManagedService(level = 3, startupTimeoutMillis = 1000)
+public interface AnnotatedInterface extends Service {
+}
@@ -0,0 +1,15 @@
+package com.toao.servicecentre.testtwo;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Singleton;
+
+@Singleton
+public class AnnotatedInterfaceService extends AbstractIdleService implements AnnotatedInterface {
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
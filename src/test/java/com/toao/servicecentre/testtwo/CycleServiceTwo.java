@@ -0,0 +1,25 @@
+package com.toao.servicecentre.testtwo;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@Singleton
+@ManagedService(level = 0)
+public class CycleServiceTwo extends AbstractIdleService implements CycleTwo {
+    private final CycleOne cycleOne;
+
+    @Inject
+    public CycleServiceTwo(CycleOne cycleOne) {
+        this.cycleOne = cycleOne;
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
@@ -0,0 +1,6 @@
+package com.toao.servicecentre.testtwo;
+
+import com.google.common.util.concurrent.Service;
+
+public interface CycleTwo extends Service {
+}
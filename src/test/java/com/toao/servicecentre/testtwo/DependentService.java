@@ -0,0 +1,31 @@
+package com.toao.servicecentre.testtwo;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+
+import static org.junit.Assert.assertEquals;
+
+@Singleton
+@ManagedService(level = 1)
+public class DependentService extends AbstractIdleService {
+    private final QuickService quickService;
+    private final StartLatch startLatch;
+
+    @Inject
+    public DependentService(QuickService quickService, StartLatch startLatch) {
+        this.quickService = quickService;
+        this.startLatch = startLatch;
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        assertEquals("Quick service is running", State.RUNNING, quickService.state());
+        startLatch.release();
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
@@ -0,0 +1,24 @@
+package com.toao.servicecentre.testtwo;
+
+import com.google.inject.Singleton;
+import com.toao.servicecentre.ManagedIdleService;
+import com.toao.servicecentre.annotations.ManagedService;
+
+@Singleton
+@ManagedService(level = 0)
+public class PooledService extends ManagedIdleService {
+    private volatile Thread startupThread;
+
+    public Thread getStartupThread() {
+        return startupThread;
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        startupThread = Thread.currentThread();
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
@@ -0,0 +1,31 @@
+package com.toao.servicecentre.testtwo;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.toao.servicecentre.annotations.ManagedService;
+
+/**
+ * Doesn't finish starting until {@link DependentService} has started.
+ */
+@Singleton
+@ManagedService(level = 0)
+public class SlowService extends AbstractIdleService {
+    private final StartLatch startLatch;
+
+    @Inject
+    public SlowService(StartLatch startLatch) {
+        this.startLatch = startLatch;
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        if (!startLatch.await()) {
+            throw new IllegalStateException("Dependent service was not started");
+        }
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+    }
+}
@@ -0,0 +1,19 @@
+package com.toao.servicecentre.testtwo;
+
+import com.google.inject.Singleton;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@Singleton
+public class StartLatch {
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    public void release() {
+        latch.countDown();
+    }
+
+    public boolean await() throws InterruptedException {
+        return latch.await(5, TimeUnit.SECONDS);
+    }
+}